@@ -0,0 +1,51 @@
+
+package benchmarks;
+
+import client.Client;
+import data.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * <code>broadcastMessage()</code> fan-out to real loopback clients over the
+ * NIO transport. The message is encoded once and queued for every client;
+ * senders block while a client's queue is full, so throughput includes
+ * getting the bytes out.
+ * @author jaron
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"1", "16", "128"})
+    int clients;
+
+    private LoopbackServer server;
+    private Client[] connected;
+    private Data message;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        server = LoopbackServer.open(true);
+        connected = new Client[clients];
+        for (int i = 0; i < clients; i++)
+            connected[i] = server.connect("client-" + i);
+        message = new Data("STATE", 1L, 12.5f, -3.0f, 0.75f, "player-1");
+    }
+
+    @TearDown
+    public void tearDown(){
+        for (Client client : connected)
+            client.stop();
+        server.stop();
+    }
+
+    @Benchmark
+    public int broadcast(){
+        return server.broadcastMessage(message);
+    }
+}
@@ -0,0 +1,69 @@
+
+package benchmarks;
+
+import data.*;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Encoding and decoding of a message frame with the binary codec, for a
+ * small movement update and a larger message with a list, a map and a
+ * long string.
+ * @author jaron
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataCodecBenchmark {
+
+    @Param({"small", "large"})
+    String payload;
+
+    private Codec codec;
+    private OpcodeTable opcodes;
+    private Data data;
+    private byte[] frame;
+
+    @Setup
+    public void setup() throws IOException {
+        codec = new BinaryCodec();
+        opcodes = new OpcodeTable(Arrays.asList("MOVE", "STATE"));
+
+        if (payload.equals("small")){
+            data = new Data("MOVE", 42, 1.5f, -2.25f, 0.5f, "player-1");
+        } else {
+            ArrayList<Integer> inventory = new ArrayList<>();
+            for (int i = 0; i < 100; i++)
+                inventory.add(i * 7);
+            HashMap<String, Object> stats = new HashMap<>();
+            for (int i = 0; i < 16; i++)
+                stats.put("stat" + i, (double) i);
+            char[] chat = new char[1024];
+            Arrays.fill(chat, 'x');
+            data = new Data("STATE", 42L, inventory, stats, new String(chat));
+        }
+        data.sign("client-1");
+        frame = Wire.encode(data, codec, opcodes);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return Wire.encode(data, codec, opcodes);
+    }
+
+    @Benchmark
+    public Data decode() throws IOException {
+        return Wire.decode(frame, Wire.LENGTH_SIZE, frame.length - Wire.LENGTH_SIZE, codec, opcodes);
+    }
+
+    @Benchmark
+    public Data roundTrip() throws IOException {
+        byte[] encoded = Wire.encode(data, codec, opcodes);
+        return Wire.decode(encoded, Wire.LENGTH_SIZE, encoded.length - Wire.LENGTH_SIZE, codec, opcodes);
+    }
+}
@@ -0,0 +1,97 @@
+
+package benchmarks;
+
+import data.*;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import server.*;
+
+/**
+ * Looking up the response for a received message, by the opcode sent on
+ * the wire or by its identifier string, with few and many registered
+ * responses. Handlers aren't run, only the lookup and what leads up to it.
+ * @author jaron
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @Param({"8", "256"})
+    int responses;
+
+    @Param({"true", "false"})
+    boolean byOpcode;
+
+    private DispatchServer server;
+    private Data[] messages;
+    private int next;
+
+    /**
+     * A server that isn't started, with <code>responses</code> registered
+     * handlers and the handler executor left out
+     */
+    static class DispatchServer extends Server {
+
+        // read by registerResponses(), which runs in the Server constructor
+        static int responseCount;
+
+        Blackhole blackhole;
+
+        DispatchServer(){
+            super(0, false, false, DefaultClientDataImpl.class, false);
+        }
+
+        @Override
+        public void registerResponses(){
+            for (int i = 0; i < responseCount; i++){
+                registerResponse("MSG" + i, new Response(){
+                    @Override
+                    public void run(Data data, Socket socket){
+                    }
+                });
+            }
+        }
+
+        @Override
+        protected void startRequestHandler(Response response, Data data, Socket socket){
+            blackhole.consume(response);
+        }
+
+        void receive(Data message){
+            dispatch(message, null);
+        }
+
+        int opcodeOf(String identifier){
+            return opcodes.opcode(identifier);
+        }
+    }
+
+    @Setup
+    public void setup(Blackhole blackhole){
+        Server.setLogger(LoopbackServer.QUIET);
+        DispatchServer.responseCount = responses;
+        server = new DispatchServer();
+        server.blackhole = blackhole;
+
+        // a spread of identifiers so the lookup isn't always the same bucket
+        messages = new Data[64];
+        for (int i = 0; i < messages.length; i++){
+            String id = "MSG" + (i * 31 % responses);
+            messages[i] = new Data(id, i);
+            messages[i].sign("client-1");
+            if (byOpcode)
+                messages[i].setOpcode(server.opcodeOf(id));
+        }
+    }
+
+    @Benchmark
+    public void dispatch(){
+        server.receive(messages[next++ & (messages.length - 1)]);
+    }
+}
@@ -0,0 +1,87 @@
+
+package benchmarks;
+
+import client.Client;
+import data.*;
+import java.net.Socket;
+import server.*;
+
+/**
+ * A server on an ephemeral loopback port for the benchmarks that need real
+ * connections. Answers ECHO requests with their payload and blocks senders
+ * instead of dropping clients that fall behind, so a benchmark measures the
+ * library rather than its overload handling. Logging is turned down to
+ * warnings so it stays out of the results.
+ * @author jaron
+ */
+class LoopbackServer extends Server {
+
+    static final Logger QUIET = new ConsoleLogger(LogLevel.WARN);
+
+    // how long to wait for clients to connect before giving up
+    private static final long CONNECT_TIMEOUT = 10_000L;
+
+    private LoopbackServer(boolean useNio){
+        super(0, false, false, DefaultClientDataImpl.class, useNio);
+    }
+
+    /**
+     * Starts a LoopbackServer
+     * @param useNio Whether to use the NIO transport
+     * @return The running server
+     */
+    static LoopbackServer open(boolean useNio){
+        Server.setLogger(QUIET);
+        return new LoopbackServer(useNio);
+    }
+
+    @Override
+    public void registerResponses(){
+        setSlowConsumerPolicy(SlowConsumerPolicy.BLOCK);
+        registerResponse("ECHO", new Response(){
+            @Override
+            public void run(Data data, Socket socket){
+                sendReply(socket, "ECHO", data.get(1));
+            }
+        });
+    }
+
+    /**
+     * Getter for the port the server listens on
+     * @return The port
+     */
+    int getPort(){
+        return server.getLocalPort();
+    }
+
+    /**
+     * Connects a client that handles messages on its listener thread and
+     * ignores everything but replies
+     * @param id The client ID
+     * @return The connected client
+     * @throws InterruptedException If interrupted while waiting for the server to register it
+     */
+    Client connect(String id) throws InterruptedException {
+        Client client = new Client("localhost", getPort(), 5000, id){
+            @Override
+            public void registerResponses(){
+                setExecutor(Runnable::run);
+                registerResponse("STATE", new Response(){
+                    @Override
+                    public void run(Data data, Socket socket){
+                    }
+                });
+            }
+        };
+        client.setLogger(QUIET);
+        client.start();
+
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        while (!isClientConnected(id)){
+            if (System.currentTimeMillis() > deadline)
+                throw new IllegalStateException("Client " + id + " didn't connect");
+            Thread.sleep(1);
+        }
+        return client;
+    }
+}
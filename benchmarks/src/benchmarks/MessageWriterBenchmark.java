@@ -0,0 +1,72 @@
+
+package benchmarks;
+
+import data.*;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The small movement update from <code>DataCodecBenchmark</code> built with a
+ * <code>MessageWriter</code> and read with a <code>MessageReader</code>, to
+ * compare against the boxed <code>Data</code> path, and the same update as a
+ * <code>Move</code> message through its generated codec.
+ * @author jaron
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageWriterBenchmark {
+
+    private OpcodeTable opcodes;
+    private byte[] frame;
+    private final Move move = new Move();
+
+    @Setup
+    public void setup(){
+        opcodes = new OpcodeTable(Arrays.asList("MOVE", "STATE"));
+        MessageWriter writer = write();
+        int start = writer.frame(opcodes);
+        frame = Arrays.copyOfRange(writer.array(), start, writer.end());
+        move.entity = 42;
+        move.x = 1.5f;
+        move.y = -2.25f;
+        move.z = 0.5f;
+    }
+
+    private static MessageWriter write(){
+        return MessageWriter.get("MOVE").putInt(42).putFloat(1.5f).putFloat(-2.25f).putFloat(0.5f);
+    }
+
+    @Benchmark
+    public int encode(){
+        MessageWriter writer = write();
+        return writer.frame(opcodes);
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) throws IOException {
+        MessageReader reader = MessageReader.wrap(frame, Wire.LENGTH_SIZE, frame.length - Wire.LENGTH_SIZE, opcodes);
+        blackhole.consume(reader.getInt());
+        blackhole.consume(reader.getFloat());
+        blackhole.consume(reader.getFloat());
+        blackhole.consume(reader.getFloat());
+    }
+
+    @Benchmark
+    public int encodeTyped(){
+        return MoveCodec.INSTANCE.write(move).frame(opcodes);
+    }
+
+    @Benchmark
+    public Move decodeTyped() throws IOException {
+        MessageReader reader = MessageReader.wrap(frame, Wire.LENGTH_SIZE, frame.length - Wire.LENGTH_SIZE, opcodes);
+        MoveCodec.INSTANCE.read(reader, move);
+        return move;
+    }
+}
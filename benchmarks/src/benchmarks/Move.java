@@ -0,0 +1,14 @@
+package benchmarks;
+
+import data.Message;
+
+/**
+ * The movement update from <code>MessageWriterBenchmark</code> as a typed
+ * message, encoded by the generated <code>MoveCodec</code>.
+ * @author jaron
+ */
+@Message("MOVE")
+public class Move {
+    public int entity;
+    public float x, y, z;
+}
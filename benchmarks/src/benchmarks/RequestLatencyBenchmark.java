@@ -0,0 +1,45 @@
+
+package benchmarks;
+
+import client.Client;
+import data.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A <code>Client.sendMessage()</code> call waiting for the server's reply
+ * over loopback, on the blocking and the NIO transport. Sample time mode
+ * gives the latency percentiles.
+ * @author jaron
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestLatencyBenchmark {
+
+    @Param({"false", "true"})
+    boolean nio;
+
+    private LoopbackServer server;
+    private Client client;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        server = LoopbackServer.open(nio);
+        client = server.connect("client-1");
+    }
+
+    @TearDown
+    public void tearDown(){
+        client.stop();
+        server.stop();
+    }
+
+    @Benchmark
+    public Data request(){
+        return client.sendMessage(new Data("ECHO", 42), 1000);
+    }
+}
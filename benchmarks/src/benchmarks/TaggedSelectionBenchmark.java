@@ -0,0 +1,52 @@
+
+package benchmarks;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import server.*;
+
+/**
+ * Picking the recipients of <code>sendMessageToTaggedClients()</code> from
+ * the client registry's tag index, for any of several tags and for all of
+ * them. Every client has a team, one of eight zones and a role.
+ * @author jaron
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaggedSelectionBenchmark {
+
+    @Param({"16", "1000", "10000"})
+    int clients;
+
+    private ClientRegistry registry;
+    private final List<String> anyTags = Arrays.asList("spectator", "zone-3");
+    private final List<String> allTags = Arrays.asList("team-red", "zone-3", "player");
+
+    @Setup
+    public void setup(){
+        registry = new ClientRegistry();
+        for (int i = 0; i < clients; i++){
+            RemoteClient client = new RemoteClient("client-" + i, null, new DefaultClientDataImpl());
+            registry.add(client);
+            registry.setTags(client, Arrays.asList(
+                    i % 2 == 0 ? "team-red" : "team-blue",
+                    "zone-" + (i % 8),
+                    i % 10 == 0 ? "spectator" : "player"));
+        }
+    }
+
+    @Benchmark
+    public RemoteClient[] withAnyTag(){
+        return registry.withAnyTag(anyTags);
+    }
+
+    @Benchmark
+    public RemoteClient[] withAllTags(){
+        return registry.withAllTags(allTags);
+    }
+}
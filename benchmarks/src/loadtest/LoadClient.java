@@ -0,0 +1,68 @@
+
+package loadtest;
+
+import client.Client;
+import data.*;
+import java.net.Socket;
+
+/**
+ * A simulated client for a load test. Answers are handled on the client's
+ * listener thread and recorded against the request that caused them.
+ * @author jaron
+ */
+class LoadClient extends Client {
+
+    private final LoadStats stats;
+    private final String tag;
+
+    /**
+     * Constructor for a LoadClient
+     * @param port The LoadServer's port
+     * @param id The client ID
+     * @param tag The tag the client joins with and shouts to
+     * @param stats Where latencies are recorded
+     */
+    LoadClient(int port, String id, String tag, LoadStats stats){
+        super("localhost", port, 5000, id);
+        this.tag = tag;
+        this.stats = stats;
+    }
+
+    @Override
+    public void registerResponses(){
+        setExecutor(Runnable::run);
+        registerResponse("ECHO_REPLY", new Response(){
+            @Override
+            public void run(Data data, Socket socket){
+                stats.received("ECHO", (long) data.get(1));
+            }
+        });
+        registerResponse("SHOUT_RELAY", new Response(){
+            @Override
+            public void run(Data data, Socket socket){
+                stats.received("SHOUT", (long) data.get(1));
+            }
+        });
+    }
+
+    /**
+     * Tells the server which tag this client has
+     */
+    void join(){
+        sendMessage(new Data("JOIN", tag), 0, false);
+    }
+
+    /**
+     * Sends one request without waiting for an answer
+     * @param id The request id, one of ECHO, MOVE or SHOUT
+     * @param padding Extra bytes to make the message the configured size
+     */
+    void send(String id, byte[] padding){
+        Data data = new Data(id, System.nanoTime());
+        if (id.equals("SHOUT"))
+            data.add(tag);
+        data.add(padding);
+        sendMessage(data, 0, false);
+        stats.sent(id);
+    }
+}
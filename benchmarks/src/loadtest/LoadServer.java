@@ -0,0 +1,70 @@
+
+package loadtest;
+
+import data.*;
+import java.net.Socket;
+import server.*;
+
+/**
+ * The server side of a load test, on an ephemeral loopback port, running
+ * handlers on a work stealing pool. Apart from JOIN, every request carries
+ * the time it was sent as its first value:
+ * <ul>
+ *   <li>JOIN sets the sender's tag</li>
+ *   <li>ECHO is answered to the sender</li>
+ *   <li>MOVE isn't answered, its latency is recorded here</li>
+ *   <li>SHOUT is relayed to every client with the tag it names</li>
+ * </ul>
+ * @author jaron
+ */
+class LoadServer extends Server {
+
+    private final LoadStats stats;
+
+    /**
+     * Constructor for the LoadServer
+     * @param useNio Whether to use the NIO transport
+     * @param stats Where MOVE latencies are recorded
+     */
+    LoadServer(boolean useNio, LoadStats stats){
+        super(0, true, false, DefaultClientDataImpl.class, useNio);
+        this.stats = stats;
+    }
+
+    @Override
+    public void registerResponses(){
+        setExecutor(HandlerExecutors.workStealingPool(64 * 1024, OverflowPolicy.CALLER_RUNS));
+        registerResponse("JOIN", new Response(){
+            @Override
+            public void run(Data data, Socket socket){
+                setClientTags(data.getSenderID(), (String) data.get(1));
+            }
+        });
+        registerResponse("ECHO", new Response(){
+            @Override
+            public void run(Data data, Socket socket){
+                sendReply(socket, "ECHO_REPLY", data.get(1));
+            }
+        });
+        registerResponse("MOVE", new Response(){
+            @Override
+            public void run(Data data, Socket socket){
+                stats.received("MOVE", (long) data.get(1));
+            }
+        });
+        registerResponse("SHOUT", new Response(){
+            @Override
+            public void run(Data data, Socket socket){
+                sendMessageToTaggedClients(new Data("SHOUT_RELAY", data.get(1)), (String) data.get(2));
+            }
+        });
+    }
+
+    /**
+     * Getter for the port the server listens on
+     * @return The port
+     */
+    int getPort(){
+        return server.getLocalPort();
+    }
+}
@@ -0,0 +1,128 @@
+
+package loadtest;
+
+import data.LatencyHistogram;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and end-to-end latency histograms for a load test, per request
+ * id, plus connection churn. Latencies are measured from the send time
+ * the client wrote into the message to when its answer was handled, which
+ * works because the server and every client share the JVM's clock.
+ * @author jaron
+ */
+class LoadStats {
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final LatencyHistogram connectTimes = new LatencyHistogram();
+    private final LongAdder reconnects = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+
+    /**
+     * What was sent and received for one request id
+     */
+    private static class Entry {
+        final LongAdder sent = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    private Entry entry(String id){
+        Entry e = entries.get(id);
+        if (e == null){
+            entries.putIfAbsent(id, new Entry());
+            e = entries.get(id);
+        }
+        return e;
+    }
+
+    /**
+     * Counts a sent request
+     * @param id The request id
+     */
+    void sent(String id){
+        entry(id).sent.increment();
+    }
+
+    /**
+     * Records the arrival of a request or of its answer
+     * @param id The request id
+     * @param sentAt The <code>System.nanoTime()</code> the request was sent at
+     */
+    void received(String id, long sentAt){
+        entry(id).latency.record(System.nanoTime() - sentAt);
+    }
+
+    /**
+     * Records a client replaced during the test
+     * @param nanos How long the new client took to be registered by the server, or -1 if it never was
+     */
+    void reconnected(long nanos){
+        reconnects.increment();
+        if (nanos < 0)
+            connectFailures.increment();
+        else
+            connectTimes.record(nanos);
+    }
+
+    /**
+     * Returns the total number of answers received so far
+     * @return The number of recorded latencies
+     */
+    long getReceived(){
+        long total = 0;
+        for (Entry e : entries.values())
+            total += e.latency.getCount();
+        return total;
+    }
+
+    /**
+     * Returns the total number of requests sent so far
+     * @return The number of requests
+     */
+    long getSent(){
+        long total = 0;
+        for (Entry e : entries.values())
+            total += e.sent.sum();
+        return total;
+    }
+
+    /**
+     * Starts counting from zero, i.e. after the warmup
+     */
+    void reset(){
+        for (Entry e : entries.values()){
+            e.sent.reset();
+            e.latency.reset();
+        }
+        connectTimes.reset();
+        reconnects.reset();
+        connectFailures.reset();
+    }
+
+    /**
+     * Prints the per request id table and the churn summary
+     * @param out Where to print
+     * @param seconds How long the measured part of the test ran
+     */
+    void report(PrintStream out, double seconds){
+        out.println(String.format("%-10s %10s %10s %10s %9s %9s %9s %9s",
+                "Request", "sent", "received", "recv/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+        for (String id : new TreeSet<>(entries.keySet())){
+            Entry e = entries.get(id);
+            LatencyHistogram h = e.latency;
+            out.println(String.format("%-10s %10d %10d %10.0f %9.2f %9.2f %9.2f %9.2f",
+                    id, e.sent.sum(), h.getCount(), h.getCount() / seconds,
+                    h.percentile(0.5) / 1000.0, h.percentile(0.99) / 1000.0,
+                    h.percentile(0.999) / 1000.0, h.getMax() / 1000.0));
+        }
+        if (reconnects.sum() > 0){
+            out.println(String.format("Churn: %d clients replaced (%d failed), connect p50=%.2fms p99=%.2fms max=%.2fms",
+                    reconnects.sum(), connectFailures.sum(), connectTimes.percentile(0.5) / 1000.0,
+                    connectTimes.percentile(0.99) / 1000.0, connectTimes.getMax() / 1000.0));
+        }
+    }
+}
@@ -0,0 +1,291 @@
+
+package loadtest;
+
+import data.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import server.Server;
+import server.ServerMetrics;
+
+/**
+ * In-process load generator and soak test. Starts a LoadServer on loopback
+ * and connects simulated clients to it, each sending a weighted mix of
+ * requests at a fixed rate from a shared pool of sender threads. Clients
+ * can be replaced at a steady rate to exercise connection churn. After the
+ * warmup, counters are reset and the test reports throughput and end-to-end
+ * latency percentiles per request id every few seconds and at the end.
+ * <pre>
+ *   java -cp benchmarks/target/benchmarks.jar loadtest.LoadTest [options]
+ *
+ *   --clients N        simulated clients (1000)
+ *   --rate N           requests per second per client (5)
+ *   --mix ID:W,...     request weights, ECHO, MOVE and SHOUT (ECHO:70,MOVE:20,SHOUT:10)
+ *   --tags TAG:W,...   tag weights clients are spread over (red:50,blue:50)
+ *   --payload N        extra bytes per request (32)
+ *   --churn N          clients replaced per second (0)
+ *   --warmup N         seconds before measuring (5)
+ *   --duration N       seconds measured (30)
+ *   --report N         seconds between progress lines (5)
+ *   --senders N        sender threads (available processors)
+ *   --blocking         use the blocking transport instead of NIO
+ * </pre>
+ * @author jaron
+ */
+public class LoadTest {
+
+    private static final Logger QUIET = new ConsoleLogger(LogLevel.WARN);
+
+    // how long a client may take to be registered by the server
+    private static final long CONNECT_TIMEOUT = 10_000_000_000L;
+
+    private int clients = 1000;
+    private int rate = 5;
+    private String[] mixIds;
+    private int[] mixWeights;
+    private String[] tagNames;
+    private int[] tagWeights;
+    private int payload = 32;
+    private double churn = 0;
+    private int warmup = 5;
+    private int duration = 30;
+    private int reportInterval = 5;
+    private int senders = Runtime.getRuntime().availableProcessors();
+    private boolean useNio = true;
+
+    private final LoadStats stats = new LoadStats();
+    private LoadServer server;
+    private AtomicReferenceArray<LoadClient> slots;
+    private int generation;
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        try {
+            test.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        test.run();
+        // client listener threads don't die with main
+        System.exit(0);
+    }
+
+    private void parse(String[] args){
+        String mix = "ECHO:70,MOVE:20,SHOUT:10";
+        String tags = "red:50,blue:50";
+        for (int i = 0; i < args.length; i++){
+            String arg = args[i];
+            if (arg.equals("--blocking")){
+                useNio = false;
+                continue;
+            }
+            if (i + 1 >= args.length)
+                throw new IllegalArgumentException("Missing value for " + arg);
+            String value = args[++i];
+            switch (arg){
+                case "--clients": clients = Integer.parseInt(value); break;
+                case "--rate": rate = Integer.parseInt(value); break;
+                case "--mix": mix = value; break;
+                case "--tags": tags = value; break;
+                case "--payload": payload = Integer.parseInt(value); break;
+                case "--churn": churn = Double.parseDouble(value); break;
+                case "--warmup": warmup = Integer.parseInt(value); break;
+                case "--duration": duration = Integer.parseInt(value); break;
+                case "--report": reportInterval = Integer.parseInt(value); break;
+                case "--senders": senders = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        Map<String, Integer> mixMap = weights(mix);
+        for (String id : mixMap.keySet()){
+            if (!id.equals("ECHO") && !id.equals("MOVE") && !id.equals("SHOUT"))
+                throw new IllegalArgumentException("Unknown request " + id + ", use ECHO, MOVE or SHOUT");
+        }
+        mixIds = mixMap.keySet().toArray(new String[0]);
+        mixWeights = cumulative(mixMap.values());
+        Map<String, Integer> tagMap = weights(tags);
+        tagNames = tagMap.keySet().toArray(new String[0]);
+        tagWeights = cumulative(tagMap.values());
+    }
+
+    private static Map<String, Integer> weights(String spec){
+        LinkedHashMap<String, Integer> weights = new LinkedHashMap<>();
+        for (String part : spec.split(",")){
+            String[] pair = part.trim().split(":");
+            int weight = pair.length > 1 ? Integer.parseInt(pair[1]) : 1;
+            if (weight > 0)
+                weights.put(pair[0], weight);
+        }
+        if (weights.isEmpty())
+            throw new IllegalArgumentException("No weights in " + spec);
+        return weights;
+    }
+
+    private static int[] cumulative(Collection<Integer> weights){
+        int[] sums = new int[weights.size()];
+        int total = 0, i = 0;
+        for (int w : weights)
+            sums[i++] = total += w;
+        return sums;
+    }
+
+    private static String pick(String[] names, int[] cumulative){
+        int r = ThreadLocalRandom.current().nextInt(cumulative[cumulative.length - 1]);
+        for (int i = 0; i < cumulative.length; i++){
+            if (r < cumulative[i])
+                return names[i];
+        }
+        return names[names.length - 1];
+    }
+
+    private void run() throws Exception {
+        System.out.println(String.format("%d clients x %d/s, mix %s, tags %s, %d byte payload, churn %.1f/s, %s transport",
+                clients, rate, Arrays.toString(mixIds), Arrays.toString(tagNames), payload, churn,
+                useNio ? "NIO" : "blocking"));
+
+        Server.setLogger(QUIET);
+        server = new LoadServer(useNio, stats);
+
+        long connectStart = System.nanoTime();
+        slots = new AtomicReferenceArray<>(clients);
+        connectAll();
+        System.out.println(String.format("Connected %d clients in %.1fs", server.numConnectedClients(),
+                (System.nanoTime() - connectStart) / 1e9));
+
+        ScheduledExecutorService sendPool = Executors.newScheduledThreadPool(senders, daemon("LoadSender"));
+        byte[] padding = new byte[payload];
+        long period = 1_000_000_000L / rate;
+        for (int i = 0; i < clients; i++){
+            final int slot = i;
+            sendPool.scheduleAtFixedRate(new Runnable(){
+                @Override
+                public void run(){
+                    LoadClient client = slots.get(slot);
+                    if (client != null)
+                        client.send(pick(mixIds, mixWeights), padding);
+                }
+            }, ThreadLocalRandom.current().nextLong(period), period, TimeUnit.NANOSECONDS);
+        }
+
+        ScheduledExecutorService churnPool = null;
+        if (churn > 0){
+            churnPool = Executors.newSingleThreadScheduledExecutor(daemon("LoadChurn"));
+            churnPool.scheduleAtFixedRate(new Runnable(){
+                @Override
+                public void run(){
+                    replaceClient(ThreadLocalRandom.current().nextInt(clients));
+                }
+            }, 0, (long) (1_000_000_000L / churn), TimeUnit.NANOSECONDS);
+        }
+
+        Thread.sleep(warmup * 1000L);
+        stats.reset();
+        long start = System.nanoTime();
+        long end = start + duration * 1_000_000_000L;
+        long lastSent = 0, lastReceived = 0, last = start;
+        while (System.nanoTime() < end){
+            Thread.sleep(Math.max(1, Math.min(reportInterval * 1000L, (end - System.nanoTime()) / 1_000_000)));
+            long now = System.nanoTime();
+            long sent = stats.getSent(), received = stats.getReceived();
+            double seconds = (now - last) / 1e9;
+            System.out.println(String.format("t=%3.0fs  sent %8.0f/s  received %8.0f/s  connected %d",
+                    (now - start) / 1e9, (sent - lastSent) / seconds, (received - lastReceived) / seconds,
+                    server.numConnectedClients()));
+            lastSent = sent;
+            lastReceived = received;
+            last = now;
+        }
+        double measured = (System.nanoTime() - start) / 1e9;
+
+        sendPool.shutdownNow();
+        if (churnPool != null)
+            churnPool.shutdownNow();
+        // let the last answers arrive
+        Thread.sleep(500);
+
+        System.out.println();
+        stats.report(System.out, measured);
+        ServerMetrics m = server.getMetrics();
+        System.out.println(String.format("Server: %d accepted, %d evicted, %d dropped messages, %d send failures, max outbound queue %d",
+                m.getAcceptedConnections(), m.getEvictedClients(), m.getDroppedMessages(),
+                m.getSendFailures(), m.getMaxOutboundQueueDepth()));
+
+        // the server is usually still working through a backlog, which now fails
+        Server.setLogger(new ConsoleLogger(LogLevel.OFF));
+        for (int i = 0; i < clients; i++){
+            LoadClient client = slots.get(i);
+            if (client != null)
+                client.stop();
+        }
+        server.stop();
+    }
+
+    /**
+     * Connects every client from a few threads at once, then waits for the
+     * server to have registered them all
+     */
+    private void connectAll() throws InterruptedException {
+        ExecutorService connectPool = Executors.newFixedThreadPool(16, daemon("LoadConnect"));
+        for (int i = 0; i < clients; i++){
+            final int slot = i;
+            connectPool.execute(new Runnable(){
+                @Override
+                public void run(){
+                    slots.set(slot, connect(slot, 0));
+                }
+            });
+        }
+        connectPool.shutdown();
+        connectPool.awaitTermination(1, TimeUnit.HOURS);
+
+        long deadline = System.nanoTime() + CONNECT_TIMEOUT;
+        while (server.numConnectedClients() < clients && System.nanoTime() < deadline)
+            Thread.sleep(10);
+    }
+
+    private LoadClient connect(int slot, int gen){
+        LoadClient client = new LoadClient(server.getPort(), "client-" + slot + "-" + gen,
+                pick(tagNames, tagWeights), stats);
+        client.setLogger(QUIET);
+        client.start();
+        client.join();
+        return client;
+    }
+
+    /**
+     * Disconnects the client in a slot and connects a new one in its place,
+     * timing how long the server takes to register it
+     */
+    private void replaceClient(int slot){
+        LoadClient old = slots.getAndSet(slot, null);
+        if (old != null)
+            old.stop();
+
+        long start = System.nanoTime();
+        LoadClient client = connect(slot, ++generation);
+        String id = "client-" + slot + "-" + generation;
+        while (!server.isClientConnected(id)){
+            if (System.nanoTime() - start > CONNECT_TIMEOUT){
+                stats.reconnected(-1);
+                slots.set(slot, client);
+                return;
+            }
+            Thread.yield();
+        }
+        stats.reconnected(System.nanoTime() - start);
+        slots.set(slot, client);
+    }
+
+    private static ThreadFactory daemon(String name){
+        return new ThreadFactory(){
+            @Override
+            public Thread newThread(Runnable task){
+                Thread t = new Thread(task, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
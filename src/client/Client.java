@@ -6,8 +6,14 @@ import server.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.AlreadyConnectedException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 /**
  *
@@ -17,6 +23,15 @@ public abstract class Client {
     
 
     protected HashMap<String, Response> responses = new HashMap<>();
+    protected HashMap<String, MessageHandler> messageHandlers = new HashMap<>();
+    
+    // compiled from responses and handlers once registerResponses() has run
+    protected OpcodeTable opcodes;
+    private volatile Response[] dispatchTable = new Response[0];
+    private volatile MessageHandler[] handlerTable = new MessageHandler[0];
+    
+    // sent by the server after logging in
+    protected volatile OpcodeTable serverOpcodes;
     
     protected String id;
 
@@ -26,15 +41,101 @@ public abstract class Client {
     
     protected Socket socket;
     protected InetSocketAddress address;
+    protected DataInputStream in;
+    protected OutputStream out;
+    protected Codec codec = new BinaryCodec();
+    private final Object writeLock = new Object();
+    protected FlushPolicy flushPolicy = FlushPolicy.immediate();
+    
+    // bytes written but not flushed yet, and whether a deadline flush is pending
+    private int unflushed;
+    private boolean flushScheduled;
+    
+    protected final ConcurrentHashMap<Integer, CompletableFuture<Data>> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestID = new AtomicInteger();
 
 
     protected int timeout;
     protected Thread listener;
+    protected Executor executor = HandlerExecutors.threadPerTask();
     protected ILocalClientData localClientData;
     
+    // other clients' data by lowercased id, kept up to date from PING deltas
+    private final LinkedHashMap<String, IClientData> roster = new LinkedHashMap<>();
+    private long rosterVersion;
+    
+    // the server's clock, estimated from the timestamps of the last PONG
+    private final ClockSync serverClock = new ClockSync();
+    private long clockSequence;
+    private long clockReceived;
+    private long clockAnswered;
+    
+    // the optional UDP channel, opened once the server sends its port and our token
+    protected boolean useUdp;
+    private volatile DatagramChannel udpChannel;
+    private volatile DatagramSession udpSession;
+    private ScheduledFuture<?> udpTicker;
+    
+    // state replicated by the server's SnapshotReplicator
+    protected final SnapshotBuffer snapshots = new SnapshotBuffer();
+    
+    protected final ClientMetrics metrics = new ClientMetrics(this);
+    protected Logger logger = AsyncLogger.getDefault();
+    protected boolean jmxEnabled;
+    
     protected int errors;
     protected boolean stopped;
     
+    /**
+     * Setter for the executor that runs response handlers. Defaults to a new
+     * thread per message, see <code>HandlerExecutors</code> for pooled and
+     * virtual thread alternatives.
+     * @param executor The executor to run handlers on
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+    
+    /**
+     * Setter for the codec used to encode messages on the wire. Must match
+     * the codec used by the server.
+     * @param codec The codec to use
+     */
+    public void setCodec(Codec codec) {
+        this.codec = codec;
+    }
+    
+    /**
+     * Setter for when written messages are flushed to the server. Defaults
+     * to flushing every message, see <code>FlushPolicy.batched()</code>.
+     * Takes effect on the next connection for the TCP_NODELAY option.
+     * @param flushPolicy The flush policy
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+    
+    /**
+     * Publishes the client's metrics as an MXBean while it runs, under
+     * <code>SimpleJavaNetcodeLib:type=Client,name="id"</code>
+     * @param jmxEnabled Whether to register the MXBean
+     */
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+    
+    /**
+     * Setter for asking the server for a UDP channel at login, for use with
+     * <code>sendUnreliable()</code>. The server has to have UDP enabled too.
+     * @param useUdp Whether to open a UDP channel
+     */
+    public void setUdpEnabled(boolean useUdp) {
+        this.useUdp = useUdp;
+    }
+    
+    // how often retransmits and delayed acks are checked, in milliseconds
+    public static final long UDP_TICK_INTERVAL = 5;
+    
     public static final String DEFAULT_USER_ID = UUID.randomUUID().toString();
     public static final int DEFAULT_TIMEOUT = 30000;
     
@@ -92,6 +193,7 @@ public abstract class Client {
         
         registerDefaultResponses();
         registerResponses();
+        compileResponses();
     }
     
     /**
@@ -172,29 +274,205 @@ public abstract class Client {
         responses.put("PING", new Response(){
             @Override
             public void run(Data data, Socket socket) {
-                if (data.size() > 2) { 
-                    localClientData.setConnectedClientInfo((ArrayList<IClientData>) data.get(2));
-                    for (IClientData cd : localClientData.getConnectedClientInfo()){
-                        if (cd.getClientID().equalsIgnoreCase(id)) {
-                            localClientData.setPing(cd.getPing());
-                        }
-                    }
+                long acked;
+                synchronized (roster) {
+                    if (data.size() > 7)
+                        applyRoster(data);
+                    acked = rosterVersion;
                 }
                 //localClientData.updatePing((long) data.get(1));
                 onClientDataUpdate();
                 
-                Data response = new Data("PONG", System.nanoTime());
+                // echo the server's send time and sequence so it can time the
+                // round trip, plus our own timestamps for the clock estimate
+                long received = data.getReceivedAt();
+                long answered = System.nanoTime();
+                synchronized (serverClock) {
+                    clockSequence = (long) data.get(2);
+                    clockReceived = received;
+                    clockAnswered = answered;
+                }
+                Data response = new Data("PONG", data.get(1), acked, data.get(2), received, answered);
                 response.sign(id);
                 sendMessage(response, timeout, false);
+                
+                // keeps the server's idea of our UDP address, and any NAT mapping, fresh
+                DatagramSession session = udpSession;
+                if (session != null) {
+                    try {
+                        session.hello();
+                    } catch (IOException e) {  }
+                }
+            }
+        });
+        
+        responses.put("CLOCK", new Response(){
+            @Override
+            public void run(Data data, Socket socket) {
+                synchronized (serverClock) {
+                    if ((long) data.get(1) == clockSequence)
+                        serverClock.addSample((long) data.get(2), clockReceived, clockAnswered, (long) data.get(3));
+                }
+            }
+        });
+        
+        responses.put("SNAPSHOT", new Response(){
+            @Override
+            public void run(Data data, Socket socket) {
+                Snapshot snapshot = snapshots.apply(data);
+                if (snapshot == null)
+                    return;
+                
+                // acks only need to get there eventually, a lost one is covered by the next
+                Data ack = new Data("SNAPSHOT_ACK", snapshot.getSequence());
+                sendMessage(ack, udpSession != null ? Delivery.UNRELIABLE : Delivery.TCP);
+                onSnapshot(snapshot);
+            }
+        });
+        
+        responses.put("UDP", new Response(){
+            @Override
+            public void run(Data data, Socket socket) {
+                openUdp((int) data.get(1), (long) data.get(2));
+            }
+        });
+        
+        responses.put("OPCODES", new Response(){
+            @Override
+            public void run(Data data, Socket socket) {
+                List<String> identifiers = data.getList(1, String.class);
+                if (identifiers == null){
+                    logError("[Client] Ignoring a malformed opcode table from the server");
+                    return;
+                }
+                serverOpcodes = new OpcodeTable(identifiers);
             }
         });
     }
     
+    /**
+     * Applies the roster update carried by a PING. Updates built on a
+     * version other than ours are skipped; acknowledging our own version
+     * makes the server send the right changes next time. A malformed update
+     * is checked before anything is applied and dropped whole, so the roster
+     * stays at a version the server knows.
+     * @param data The PING message
+     */
+    private void applyRoster(Data data){
+        List<IClientData> changed = data.getList(6, IClientData.class);
+        List<String> removed = data.getList(7, String.class);
+        if (!(data.get(3) instanceof Long) || !(data.get(4) instanceof Long) 
+                || !(data.get(5) instanceof Boolean) || changed == null || removed == null){
+            logError("[Client] Ignoring a malformed roster update from the server");
+            return;
+        }
+        for (IClientData cd : changed){
+            if (cd.getClientID() == null){
+                logError("[Client] Ignoring a roster update with a client missing its ID");
+                return;
+            }
+        }
+        long version = (long) data.get(3);
+        long baseVersion = (long) data.get(4);
+        boolean full = (boolean) data.get(5);
+        if (!full && baseVersion != rosterVersion)
+            return;
+        
+        if (full)
+            roster.clear();
+        for (String clientID : removed){
+            roster.remove(clientID.toLowerCase(Locale.ROOT));
+        }
+        for (IClientData cd : changed){
+            roster.put(cd.getClientID().toLowerCase(Locale.ROOT), cd);
+        }
+        rosterVersion = version;
+        
+        if (full || !changed.isEmpty() || !removed.isEmpty()){
+            localClientData.setConnectedClientInfo(new ArrayList<>(roster.values()));
+            IClientData self = roster.get(id.toLowerCase(Locale.ROOT));
+            if (self != null)
+                localClientData.setPing(self.getPing());
+        }
+    }
+    
+    /**
+     * Returns the current time on the server's <code>System.nanoTime()</code>
+     * clock, estimated from the server's pings. Until the first ping has been
+     * answered this is just the local clock.
+     * @return The server's time in nanoseconds
+     */
+    public long serverTimeNanos(){
+        return toServerTime(System.nanoTime());
+    }
+    
+    /**
+     * Converts a local <code>System.nanoTime()</code> value into server time
+     * @param localNanos The local timestamp
+     * @return The same moment on the server's clock
+     */
+    public long toServerTime(long localNanos){
+        return serverClock.isSynchronized() ? serverClock.toInitiatorTime(localNanos) : localNanos;
+    }
+    
+    /**
+     * Returns whether the server's clock has been estimated yet
+     * @return Whether <code>serverTimeNanos()</code> is based on the server's clock
+     */
+    public boolean isClockSynchronized(){
+        return serverClock.isSynchronized();
+    }
+    
+    /**
+     * Getter for the client's metrics. The getters read the current values,
+     * so a monitoring agent can keep the object and poll it.
+     * @return The metrics
+     */
+    public ClientMetrics getMetrics(){
+        return metrics;
+    }
+    
+    /**
+     * Getter for the snapshots received from the server's SnapshotReplicator
+     * @return The snapshot buffer
+     */
+    public SnapshotBuffer getSnapshots(){
+        return snapshots;
+    }
+    
+    /**
+     * Returns a replicated entity's state as of the interpolation delay ago
+     * on the server's clock, see <code>SnapshotBuffer.sample()</code>
+     * @param entityID The entity id
+     * @return The entity's fields, or null if no snapshot has it
+     */
+    public Object[] getInterpolated(int entityID){
+        return snapshots.sample(entityID, serverTimeNanos() - snapshots.getInterpolationDelay());
+    }
+    
+    /**
+     * Looks up another connected client's data, as of the last PING
+     * @param clientID The id of the client
+     * @return The client's data, or null if it isn't connected
+     */
+    public IClientData getConnectedClient(String clientID){
+        synchronized (roster) {
+            return roster.get(clientID.toLowerCase(Locale.ROOT));
+        }
+    }
+    
     /**
      * Starts the client, connecting to the server and starting the listener.
      */
     public void start(){
         stopped = false;
+        if (jmxEnabled) {
+            try {
+                metrics.register("Client", String.valueOf(id));
+            } catch (javax.management.JMException e) {
+                logError("[Client] Error registering metrics MXBean: " + e.getMessage());
+            }
+        }
         login();
         startListener();
     }
@@ -207,6 +485,7 @@ public abstract class Client {
         try {
             logout();
         } catch (IOException ex) {  }
+        metrics.unregister();
         log("[Client] Stopping...");
     }
     
@@ -217,6 +496,10 @@ public abstract class Client {
         errors++;
         timeout += 1000;
         log("[Client] Attempting to repair connection...");
+        metrics.reconnecting();
+        failPendingRequests();
+        closeUdp();
+        snapshots.clear();
         if (socket != null) {
             try {
                 socket.close();
@@ -243,19 +526,26 @@ public abstract class Client {
             }
             
             socket = new Socket();
+            socket.setTcpNoDelay(flushPolicy.isTcpNoDelay());
             socket.connect(address, timeout);
+            serverOpcodes = null;
+            synchronized (roster) {
+                rosterVersion = 0;
+            }
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            synchronized (writeLock) {
+                out = new BufferedOutputStream(socket.getOutputStream(), Math.max(8192, flushPolicy.getMaxBytes()));
+                unflushed = 0;
+            }
             
             log("[Client] Connected to " + socket.getRemoteSocketAddress());
             
             try {
                 log("[Client] Logging in...");
                 
-                ObjectOutputStream out = new ObjectOutputStream(
-                    new BufferedOutputStream(socket.getOutputStream()));
-                Data loginRequest = new Data("REGISTER_CLIENT", id);
+                Data loginRequest = new Data("REGISTER_CLIENT", id, opcodes.identifiers(), useUdp);
                 loginRequest.sign(id);
-                out.writeObject(loginRequest);
-                out.flush();
+                write(loginRequest);
                 
                 log("[Client] Logged in.");
                 onReconnect();
@@ -280,9 +570,179 @@ public abstract class Client {
         Data message = new Data("LOGOUT", id);
         message.sign(id);
         sendMessage(message, 100, false);
+        failPendingRequests();
+        closeUdp();
         socket.close();
     }
     
+    /**
+     * Opens the UDP channel to the server and starts its listener
+     * @param port The server's UDP port
+     * @param token The token identifying this client's datagrams
+     */
+    protected synchronized void openUdp(int port, long token){
+        closeUdp();
+        try {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.connect(new InetSocketAddress(socket.getInetAddress(), port));
+            DatagramSession session = new DatagramSession(token, new DatagramSession.Sink(){
+                @Override
+                public void send(ByteBuffer datagram) throws IOException {
+                    channel.write(datagram);
+                }
+            });
+            udpChannel = channel;
+            udpSession = session;
+            startUdpListener(channel, session);
+            udpTicker = SharedTimer.get().scheduleAtFixedRate(new Runnable(){
+                @Override
+                public void run(){
+                    try {
+                        session.tick();
+                    } catch (IOException e) {
+                        if (session.isClosed())
+                            udpSessionClosed();
+                    }
+                }
+            }, UDP_TICK_INTERVAL, UDP_TICK_INTERVAL, TimeUnit.MILLISECONDS);
+            
+            // lets the server learn our address before it sends anything
+            session.hello();
+            log("[Client] Opened UDP channel to port " + port);
+        } catch (IOException e) {
+            logError("[Client] Could not open UDP channel: " + e.getMessage());
+            closeUdp();
+        }
+    }
+    
+    /**
+     * The server stopped acknowledging reliable datagrams, so it is treated
+     * as gone like after a TCP timeout: closing the socket makes the
+     * listener reconnect, which opens a new UDP channel
+     */
+    private void udpSessionClosed(){
+        logError("[Client] Server stopped acknowledging datagrams.");
+        closeUdp();
+        try {
+            if (socket != null)
+                socket.close();
+        } catch (IOException e) {  }
+    }
+    
+    private synchronized void closeUdp(){
+        if (udpTicker != null) {
+            udpTicker.cancel(false);
+            udpTicker = null;
+        }
+        DatagramChannel channel = udpChannel;
+        udpChannel = null;
+        udpSession = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {  }
+        }
+    }
+    
+    private void startUdpListener(DatagramChannel channel, DatagramSession session){
+        DatagramSession.Receiver receiver = new DatagramSession.Receiver(){
+            @Override
+            public void receive(Data message) {
+                metrics.received(message);
+                dispatch(message);
+            }
+        };
+        new Thread(new Runnable(){
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocate(Datagrams.MAX_DATAGRAM_SIZE);
+                while (!stopped && channel.isOpen()){
+                    try {
+                        buffer.clear();
+                        channel.receive(buffer);
+                        buffer.flip();
+                        session.receive(buffer, codec, opcodes, receiver);
+                    } catch (ClosedChannelException e) {
+                        return;
+                    } catch (IOException e) {
+                        // e.g. ICMP port unreachable while the server restarts
+                        if (!stopped && channel.isOpen())
+                            logError("[Client] Error reading datagram: " + e.getMessage());
+                    } catch (RuntimeException e) {
+                        logError("[Client] Error handling datagram: " + e);
+                    }
+                }
+            }
+        }, "UdpListener").start();
+    }
+    
+    /**
+     * Sends a message over the UDP channel. It may be lost, duplicated or
+     * arrive out of order; the server drops it if a newer message with the
+     * same identifier already arrived. Meant for frequent state updates,
+     * like positions, where only the latest one matters.
+     * @param data The data to send
+     * @return False if there is no UDP channel or the message couldn't be sent
+     */
+    public boolean sendUnreliable(Data data){
+        return sendMessage(data, Delivery.UNRELIABLE);
+    }
+    
+    /**
+     * Sends a message with the given delivery mode without waiting for a
+     * response, see <code>Delivery</code>. Reliable modes fall back to TCP
+     * while there is no UDP channel, unreliable messages are not sent.
+     * @param data The data to send
+     * @param delivery How to deliver the message
+     * @return Whether the message was sent
+     */
+    public boolean sendMessage(Data data, Delivery delivery){
+        DatagramSession session = udpSession;
+        if (!delivery.isUdp() || (delivery.isReliable() && session == null)) {
+            data.sign(id);
+            try {
+                write(data);
+                return true;
+            } catch (IOException e) {
+                logError("[Client] Error sending message: " + e.getMessage());
+                return false;
+            }
+        }
+        if (session == null)
+            return false;
+        
+        try {
+            byte[] frame = Wire.encode(data, codec, serverOpcodes);
+            if (!session.send(frame, delivery)) {
+                metrics.sendFailed(1);
+                return false;
+            }
+            metrics.sent(data, 1, frame.length);
+            return true;
+        } catch (IOException e) {
+            logError("[Client] Error sending datagram: " + e.getMessage());
+            metrics.sendFailed(1);
+            return false;
+        }
+    }
+    
+    /**
+     * Returns whether the UDP channel is open
+     * @return Whether <code>sendUnreliable()</code> can be used
+     */
+    public boolean isUdpOpen(){
+        return udpChannel != null;
+    }
+    
+    /**
+     * Getter for the state of the UDP channel, i.e. retransmit and round
+     * trip statistics
+     * @return The UDP session, or null if there is no UDP channel
+     */
+    public DatagramSession getUdpSession(){
+        return udpSession;
+    }
+    
     /**
      * Starts the server listener and runs responses.
      */
@@ -295,6 +755,7 @@ public abstract class Client {
         listener = new Thread(new Runnable(){
             @Override
             public void run() {
+                FrameReader frames = new FrameReader();
                 while (!stopped) {
                     try {
                         if (socket != null && !socket.isConnected()) {
@@ -310,38 +771,46 @@ public abstract class Client {
                         
                         onConnectionGood();
                         
-                        ObjectInputStream in = new ObjectInputStream(
-                            new BufferedInputStream(socket.getInputStream()));
-                        Object data = in.readObject();
+                        int length = frames.read(in);
                         
                         if (stopped){
                             return;
                         }
                         
-                        if (data instanceof Data){
-                            Data message = (Data) data;
-                            for (String s : responses.keySet()){
-                                if (s.equalsIgnoreCase(message.id())){
-                                    new Thread(new Runnable(){
-                                        @Override
-                                        public void run() {
-                                            responses.get(s).run(message, socket);
-                                        }
-                                    }).start();
-                                    break;
-                                }
+                        if (Wire.isRaw(frames.array(), 0)){
+                            dispatch(MessageReader.wrap(frames.array(), 0, length, opcodes));
+                            continue;
+                        }
+                        Data message = Wire.decode(frames.array(), 0, length, codec, opcodes);
+                        
+                        metrics.received(message);
+                        if (message.isReply()){
+                            CompletableFuture<Data> pending = pendingRequests.remove(message.getRequestID());
+                            if (pending != null){
+                                pending.complete(message);
+                                continue;
                             }
                         }
-                    } catch (SocketException e) {
+                        
+                        dispatch(message);
+                    } catch (SocketException | EOFException e) {
                         if (!stopped) {
                             logError("[Client] Connection lost.");
                             onConnectionProblem();
                             repairConnection();
                         }
-                    } catch (ClassNotFoundException | IOException | InterruptedException e) {
+                    } catch (IOException | InterruptedException e) {
                         onConnectionProblem();
                         logError("[Client] Connection was interrupted: " + e.getMessage());
                         repairConnection();
+                    } catch (RuntimeException e) {
+                        // A frame that fails to decode leaves the stream at an unknown
+                        // position, so reconnect rather than let the listener die.
+                        if (!stopped) {
+                            logError("[Client] Malformed message from server: " + e);
+                            onConnectionProblem();
+                            repairConnection();
+                        }
                     }
                     
                     errors = 0;
@@ -352,51 +821,298 @@ public abstract class Client {
     }
     
     /**
-     * Sends a message to the server.
+     * Looks up the response for a message from the server and starts its handler
+     * @param message The message sent by the server
+     */
+    protected void dispatch(Data message){
+        int opcode = message.getOpcode();
+        if (opcode == OpcodeTable.NONE)
+            opcode = opcodes.opcode(message.id());
+        Response[] handlers = dispatchTable;
+        if (opcode != OpcodeTable.NONE && opcode < handlers.length && handlers[opcode] != null){
+            startResponseHandler(handlers[opcode], message);
+        }
+    }
+    
+    /**
+     * Looks up the handler for a message built with a <code>MessageWriter</code>
+     * and runs it on the listener thread
+     * @param message The message sent by the server
+     */
+    protected void dispatch(MessageReader message){
+        int opcode = message.getOpcode();
+        if (opcode == OpcodeTable.NONE)
+            opcode = opcodes.opcode(message.id());
+        MessageHandler[] handlers = handlerTable;
+        if (opcode == OpcodeTable.NONE || opcode >= handlers.length || handlers[opcode] == null)
+            return;
+        metrics.received(message.id(), message.getWireSize());
+        
+        long start = System.nanoTime();
+        try {
+            handlers[opcode].handle(message, socket);
+        } catch (RuntimeException e) {
+            logError("[Client] Error handling " + message.id() + ": " + e);
+        }
+        metrics.handled(message.id(), System.nanoTime() - start);
+    }
+    
+    /**
+     * Hands a message from the server to the handler executor
+     * @param response The response registered for the message
+     * @param message The message sent by the server
+     */
+    protected void startResponseHandler(Response response, Data message){
+        Socket current = socket;
+        try {
+            executor.execute(new Runnable(){
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        response.run(message, current);
+                    } finally {
+                        metrics.handled(message, System.nanoTime() - start);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logError("[Client] Dropped message " + message.id() + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Sends a message to the server over the registered connection. Replies
+     * are matched to their request by correlation ID, so several requests can
+     * be waiting on the same connection at once.
      * @param data The message to be sent to the server
-     * @param timeout The timeout length in milliseconds
+     * @param timeout The time in milliseconds to wait for a response
      * @param expectResponse Whether or not to expect an immediate response from the server
      * @return The data from the server (if a response was expected)
      */
     public Data sendMessage(Data data, int timeout, boolean expectResponse){
+        if (!expectResponse){
+            data.sign(id);
+            try {
+                write(data);
+            } catch (IOException e) {
+                logError("[Client] Error while sending message: " + e.getMessage());
+            }
+            return null;
+        }
         
+        CompletableFuture<Data> pending = sendAsync(data, timeout);
         try {
-            Socket writeSocket = new Socket();
-            writeSocket.connect(address, timeout);
-            
-            ObjectOutputStream out = new ObjectOutputStream(
-                new BufferedOutputStream(writeSocket.getOutputStream()));
-            data.sign(id);
-            out.writeObject(data);
-            out.flush();
-            
-            if (expectResponse){
-                ObjectInputStream in = new ObjectInputStream(
-                    new BufferedInputStream(writeSocket.getInputStream()));
-                Object response = in.readObject();
-                in.close();
-                
-                out.close();
-            
-                writeSocket.close();
-                
-                if (response instanceof Data){
-                    return (Data) response;
-                }
+            return pending.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException)
+                logError("[Client] Timed out: did not receive response from server?");
+            else
+                logError("[Client] Error while sending message: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            pending.cancel(false);
+            Thread.currentThread().interrupt();
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Sends a request without waiting for the response. Any number of
+     * requests can be in flight on the connection at once, each reply is
+     * matched to its request by correlation ID. The future fails with a
+     * <code>TimeoutException</code> once the timeout runs out, and with an
+     * <code>IOException</code> if the message can't be sent or the connection
+     * is lost first. Cancelling it stops waiting for the reply and frees its
+     * slot. Replies complete the future on the listener thread, so anything
+     * slow chained onto it should use the <code>...Async</code> variants.
+     * @param data The message to be sent to the server
+     * @param timeout The time in milliseconds to wait for a response
+     * @return The future response
+     */
+    public CompletableFuture<Data> sendAsync(Data data, int timeout){
+        data.sign(id);
+        int requestID = nextRequestID();
+        CompletableFuture<Data> pending = new CompletableFuture<>();
+        pendingRequests.put(requestID, pending);
+        
+        // the deadline is kept on the shared timer rather than a blocked thread
+        ScheduledFuture<?> deadline = SharedTimer.get().schedule(new Runnable(){
+            @Override
+            public void run(){
+                pending.completeExceptionally(new TimeoutException(
+                        "No response to " + data.id() + " within " + timeout + "ms"));
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        pending.whenComplete(new BiConsumer<Data, Throwable>(){
+            @Override
+            public void accept(Data response, Throwable error){
+                pendingRequests.remove(requestID, pending);
+                deadline.cancel(false);
+            }
+        });
+        
+        try {
+            // the ID only goes into the frame, the same message may be sent from other threads
+            write(data, requestID);
+        } catch (IOException e) {
+            pending.completeExceptionally(e);
+        }
+        return pending;
+    }
+    
+    /**
+     * Sends a request without waiting for the response, using the client's
+     * timeout
+     * @param data The message to be sent to the server
+     * @return The future response
+     */
+    public CompletableFuture<Data> sendAsync(Data data){
+        return sendAsync(data, timeout);
+    }
+    
+    /**
+     * Answers a request from the server, for use in the response handler of
+     * a message the server sent with <code>Server.request()</code>. The reply
+     * is matched to the request by correlation ID, so its identifier doesn't
+     * matter to the server.
+     * @param request The request being answered
+     * @param reply The reply to send
+     */
+    public void sendReply(Data request, Data reply){
+        reply.markReply(request.getRequestID());
+        sendMessage(reply, 0, false);
+    }
+    
+    /**
+     * Helper function for answering a request from the server
+     * @param request The request being answered
+     * @param replyID The identifier of the reply
+     * @param datapackageContent The content to send in the reply
+     */
+    public void sendReply(Data request, String replyID, Object... datapackageContent){
+        sendReply(request, new Data(replyID, datapackageContent));
+    }
+    
+    /**
+     * Writes a single message to the server connection.
+     * @param data The message to write
+     * @throws IOException If the client is not connected or the write fails
+     */
+    protected void write(Data data) throws IOException {
+        write(data, 0);
+    }
+    
+    /**
+     * Writes a single message to the server connection
+     * @param data The message to write
+     * @param requestID The correlation ID to send it as a request with, 0 to
+     * use the message's own
+     * @throws IOException If the client is not connected or the write fails
+     */
+    private void write(Data data, int requestID) throws IOException {
+        synchronized (writeLock) {
+            if (out == null || !isConnected()) {
+                metrics.sendFailed(1);
+                throw new ConnectException("Client is not connected");
             }
             
-            out.close();
-            
-            writeSocket.close();
-            
+            byte[] frame = requestID == 0 ? Wire.encode(data, codec, serverOpcodes) 
+                    : Wire.encodeRequest(data, requestID, codec, serverOpcodes);
+            writeFrame(data.id(), frame, 0, frame.length, flushPolicy.shouldFlush(data));
+        }
+    }
+    
+    /**
+     * Sends a message built with a <code>MessageWriter</code> to the server.
+     * The frame is written straight from the writer's buffer.
+     * @param message The message
+     * @return Whether the message was written
+     */
+    public boolean sendMessage(MessageWriter message){
+        synchronized (writeLock) {
+            if (out == null || !isConnected()) {
+                metrics.sendFailed(1);
+                logError("[Client] Error while sending message: Client is not connected");
+                return false;
+            }
             
-        } catch (EOFException e) {
-            logError("[Client] EOFException: did not receive response from server?");
-        } catch (IOException | ClassNotFoundException e) {
-            logError("[Client] Error while sending message: " + e.getMessage());
+            int start = message.frame(serverOpcodes);
+            try {
+                writeFrame(message.id(), message.array(), start, message.end() - start, 
+                        flushPolicy.shouldFlush(message.id()));
+            } catch (IOException e) {
+                logError("[Client] Error while sending message: " + e.getMessage());
+                return false;
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Writes an encoded frame and flushes it according to the flush policy.
+     * Must be called holding the write lock.
+     */
+    private void writeFrame(String messageID, byte[] frame, int offset, int length, boolean flush) throws IOException {
+        try {
+            out.write(frame, offset, length);
+        } catch (IOException e) {
+            metrics.sendFailed(1);
+            throw e;
         }
+        metrics.sent(messageID, 1, length);
+        unflushed += length;
         
-        return null;
+        FlushPolicy policy = flushPolicy;
+        if (flush || unflushed >= policy.getMaxBytes()){
+            out.flush();
+            unflushed = 0;
+        } else if (!flushScheduled){
+            flushScheduled = true;
+            SharedTimer.get().schedule(new Runnable(){
+                @Override
+                public void run(){
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        logError("[Client] Error flushing messages: " + e.getMessage());
+                    }
+                }
+            }, policy.getMaxDelayMicros(), TimeUnit.MICROSECONDS);
+        }
+    }
+    
+    /**
+     * Sends any messages the flush policy is still holding back
+     * @throws IOException If the connection is broken
+     */
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            flushScheduled = false;
+            if (unflushed > 0 && out != null){
+                unflushed = 0;
+                out.flush();
+            }
+        }
+    }
+    
+    private int nextRequestID(){
+        int requestID;
+        do {
+            requestID = nextRequestID.incrementAndGet();
+        } while (requestID == 0);
+        return requestID;
+    }
+    
+    /**
+     * Fails every outstanding request, used when the connection is lost.
+     */
+    protected void failPendingRequests(){
+        for (Integer requestID : pendingRequests.keySet()){
+            CompletableFuture<Data> pending = pendingRequests.remove(requestID);
+            if (pending != null)
+                pending.completeExceptionally(new ConnectException("Connection lost"));
+        }
     }
     
     /**
@@ -416,10 +1132,63 @@ public abstract class Client {
      * @param response The action that occurs upon receiving the response
      */
     public void registerResponse(String identifier, Response response){
-        if (identifier.equalsIgnoreCase("PING"))
-            throw new IllegalArgumentException("Identifier can not be 'PING'.");
+        checkIdentifier(identifier);
+        if (messageHandlers.containsKey(identifier))
+            throw new IllegalArgumentException("Identifier can not be '" + identifier + "'. Already registered.");
         
         responses.put(identifier, response);
+        
+        // registered after startup, the server will send this one by identifier
+        if (opcodes != null)
+            compileResponses();
+    }
+    
+    /**
+     * Registers a handler for messages built with a <code>MessageWriter</code>.
+     * Unlike responses, handlers run straight on the listener thread, so they
+     * must not block. Use within the <code>registerResponses()</code> method.
+     * @param identifier The string used to identify the message, i.e. "MOVE"
+     * @param handler The handler that reads the message
+     */
+    public void registerHandler(String identifier, MessageHandler handler){
+        checkIdentifier(identifier);
+        if (responses.containsKey(identifier))
+            throw new IllegalArgumentException("Identifier can not be '" + identifier + "'. Already registered.");
+        
+        messageHandlers.put(identifier, handler);
+        
+        if (opcodes != null)
+            compileResponses();
+    }
+    
+    private static void checkIdentifier(String identifier){
+        if (identifier.equalsIgnoreCase("PING") || identifier.equalsIgnoreCase("OPCODES")
+                || identifier.equalsIgnoreCase("CLOCK") || identifier.equalsIgnoreCase("UDP")
+                || identifier.equalsIgnoreCase("SNAPSHOT"))
+            throw new IllegalArgumentException("Identifier can not be '" + identifier + "'.");
+    }
+    
+    /**
+     * Compiles the registered responses and handlers into the opcode table
+     * sent to the server and the arrays used to dispatch incoming messages. Opcodes of
+     * responses that were already compiled stay the same.
+     */
+    protected synchronized void compileResponses(){
+        ArrayList<String> identifiers = new ArrayList<>(responses.keySet());
+        identifiers.addAll(messageHandlers.keySet());
+        OpcodeTable table = opcodes == null 
+                ? new OpcodeTable(identifiers) : opcodes.extend(identifiers);
+        Response[] handlers = new Response[table.size() + 1];
+        for (Map.Entry<String, Response> e : responses.entrySet()){
+            handlers[table.opcode(e.getKey())] = e.getValue();
+        }
+        MessageHandler[] rawHandlers = new MessageHandler[table.size() + 1];
+        for (Map.Entry<String, MessageHandler> e : messageHandlers.entrySet()){
+            rawHandlers[table.opcode(e.getKey())] = e.getValue();
+        }
+        opcodes = table;
+        dispatchTable = handlers;
+        handlerTable = rawHandlers;
     }
     
     /**
@@ -455,19 +1224,37 @@ public abstract class Client {
     }
     
     /**
-     * It's just System.out.println();
+     * Setter for where the client logs to. Defaults to
+     * <code>AsyncLogger.getDefault()</code>, which writes to the console on
+     * a background thread.
+     * @param logger The logger
+     */
+    public void setLogger(Logger logger){
+        this.logger = logger;
+    }
+    
+    /**
+     * Getter for where the client logs to
+     * @return The logger
+     */
+    public Logger getLogger(){
+        return logger;
+    }
+    
+    /**
+     * Logs an INFO line, see <code>setLogger()</code>
      * @param message
      */
     public void log(String message){
-        System.out.println(message);
+        logger.log(LogLevel.INFO, message);
     }
 
     /**
-     * It's just System.err.println();
+     * Logs an ERROR line, see <code>setLogger()</code>
      * @param message
      */
     public void logError(String message){
-        System.err.println(message);
+        logger.log(LogLevel.ERROR, message);
     }
     
     //Overrides
@@ -499,4 +1286,13 @@ public abstract class Client {
     public void onClientDataUpdate() {
         
     }
+    
+    /**
+     * Called when a new snapshot of the server's replicated state arrives,
+     * override this method to add functionality.
+     * @param snapshot The full state as of the snapshot
+     */
+    public void onSnapshot(Snapshot snapshot){
+        
+    }
 }
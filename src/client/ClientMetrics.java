@@ -0,0 +1,57 @@
+
+package client;
+
+import data.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The Client's metrics: the message counters from <code>Metrics</code> plus
+ * the state of the connection
+ * @author jaron
+ */
+public class ClientMetrics extends Metrics implements ClientMetricsMXBean {
+
+    private final Client client;
+    private final LongAdder reconnects = new LongAdder();
+
+    ClientMetrics(Client client){
+        this.client = client;
+    }
+
+    void reconnecting(){
+        reconnects.increment();
+    }
+
+    /**
+     * Getter for the number of times the connection was repaired
+     * @return The number of reconnect attempts
+     */
+    @Override
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    /**
+     * Getter for the requests waiting on a reply
+     * @return The number of pending requests
+     */
+    @Override
+    public int getPendingRequests() {
+        return client.pendingRequests.size();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    /**
+     * Getter for the log lines dropped because the logger couldn't keep up
+     * @return The dropped line count, 0 unless logging through an AsyncLogger
+     */
+    @Override
+    public long getDroppedLogLines() {
+        Logger logger = client.getLogger();
+        return logger instanceof AsyncLogger ? ((AsyncLogger) logger).getDroppedCount() : 0;
+    }
+}
@@ -0,0 +1,19 @@
+
+package client;
+
+import data.MetricsMXBean;
+
+/**
+ * The Client's metrics as published over JMX
+ * @author jaron
+ */
+public interface ClientMetricsMXBean extends MetricsMXBean {
+
+    public long getReconnects();
+
+    public int getPendingRequests();
+
+    public boolean isConnected();
+
+    public long getDroppedLogLines();
+}
@@ -0,0 +1,139 @@
+
+package client;
+
+import data.*;
+
+/**
+ * The snapshots received from the server's <code>SnapshotReplicator</code>.
+ * Each SNAPSHOT message only holds what changed since a snapshot the client
+ * already has, so the recent ones are kept to rebuild the full state from.
+ * They also allow rendering entities slightly in the past, interpolated
+ * between the two snapshots around the render time, which hides the gaps
+ * between snapshots and the occasional lost one.
+ * @author jaron
+ */
+public class SnapshotBuffer {
+
+    public static final long DEFAULT_INTERPOLATION_DELAY = 100;
+
+    private final Snapshot[] history = new Snapshot[Snapshot.HISTORY];
+    private Snapshot latest;
+    private long interpolationDelay = DEFAULT_INTERPOLATION_DELAY * 1000000L;
+
+    /**
+     * Rebuilds a snapshot from a SNAPSHOT message and keeps it
+     * @param delta The message
+     * @return The new snapshot, or null if its base is missing or it was already received
+     */
+    synchronized Snapshot apply(Data delta){
+        long sequence = (long) delta.get(1);
+        if (get(sequence) != null)
+            return null;
+
+        Snapshot snapshot = Snapshot.apply(get(Snapshot.baseSequence(delta)), delta);
+        if (snapshot == null)
+            return null;
+
+        // snapshots over UDP can arrive out of order, older ones still help interpolation
+        Snapshot replaced = history[(int) (sequence % Snapshot.HISTORY)];
+        if (replaced != null && replaced.getSequence() > sequence)
+            return null;
+        history[(int) (sequence % Snapshot.HISTORY)] = snapshot;
+        if (latest == null || sequence > latest.getSequence())
+            latest = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * Getter for the newest snapshot
+     * @return The latest snapshot, or null if none arrived yet
+     */
+    public synchronized Snapshot getLatest(){
+        return latest;
+    }
+
+    /**
+     * Looks up a recent snapshot
+     * @param sequence The snapshot's sequence number
+     * @return The snapshot, or null if it's too old or hasn't arrived
+     */
+    public synchronized Snapshot get(long sequence){
+        if (sequence <= 0)
+            return null;
+        Snapshot s = history[(int) (sequence % Snapshot.HISTORY)];
+        return s != null && s.getSequence() == sequence ? s : null;
+    }
+
+    /**
+     * Setter for how far behind the server's clock entities are rendered.
+     * Should cover a couple of snapshot intervals plus some jitter.
+     * @param millis The delay in milliseconds
+     */
+    public synchronized void setInterpolationDelay(long millis) {
+        this.interpolationDelay = millis * 1000000L;
+    }
+
+    /**
+     * Getter for the interpolation delay
+     * @return The delay in nanoseconds
+     */
+    public synchronized long getInterpolationDelay() {
+        return interpolationDelay;
+    }
+
+    /**
+     * Returns an entity's state at the given server time, interpolated
+     * between the snapshots before and after it. Float and Double fields are
+     * interpolated linearly, all other fields take the earlier snapshot's
+     * value. Times past the newest snapshot give its state as is.
+     * @param id The entity id
+     * @param serverTime A time on the server's clock, see <code>Client.serverTimeNanos()</code>
+     * @return The entity's fields, or null if no snapshot has it
+     */
+    public synchronized Object[] sample(int id, long serverTime){
+        Snapshot before = null, after = null, oldest = null;
+        for (Snapshot s : history){
+            if (s == null || !s.contains(id))
+                continue;
+            if (s.getTime() <= serverTime){
+                if (before == null || s.getTime() > before.getTime())
+                    before = s;
+            } else if (after == null || s.getTime() < after.getTime()){
+                after = s;
+            }
+            if (oldest == null || s.getTime() < oldest.getTime())
+                oldest = s;
+        }
+
+        if (before == null)
+            return oldest == null ? null : oldest.get(id);
+        if (after == null)
+            return before.get(id);
+
+        Object[] from = before.state(id);
+        Object[] to = after.state(id);
+        Object[] state = from.clone();
+        if (from.length != to.length)
+            return state;
+
+        double alpha = (double) (serverTime - before.getTime()) / (after.getTime() - before.getTime());
+        for (int f = 0; f < state.length; f++){
+            if (from[f] instanceof Double && to[f] instanceof Double){
+                double a = (Double) from[f];
+                state[f] = a + ((Double) to[f] - a) * alpha;
+            } else if (from[f] instanceof Float && to[f] instanceof Float){
+                float a = (Float) from[f];
+                state[f] = (float) (a + ((Float) to[f] - a) * alpha);
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Forgets every snapshot, i.e. after reconnecting
+     */
+    public synchronized void clear(){
+        java.util.Arrays.fill(history, null);
+        latest = null;
+    }
+}
@@ -0,0 +1,404 @@
+
+package codegen;
+
+import data.Message;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.*;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Annotation processor that generates the codec and handler interface for
+ * every <code>@Message</code> class. For a class <code>Move</code> it writes
+ * <code>MoveCodec</code>, which implements <code>MessageCodec</code> and
+ * writes the fields in declaration order with a fixed layout, and
+ * <code>MoveHandler</code>, the typed handler that
+ * <code>MoveCodec.handler()</code> turns into a <code>MessageHandler</code>
+ * for <code>registerHandler()</code>. Nested classes are named after their
+ * enclosing classes, so <code>Game.Move</code> gets <code>Game_MoveCodec</code>.
+ * <p>
+ * The processor is registered as a service in the library jar, so javac
+ * runs it for any project with the library on its classpath. Fields are
+ * encoded as follows:
+ * <pre>
+ *   primitives       putByte/putShort/putInt/putLong/putFloat/putDouble/putBoolean, char as a short
+ *   String, byte[]   a presence flag followed by the value
+ *   enums            varint of the ordinal plus 1, 0 for null
+ *   &#64;Message types   a presence flag followed by the nested message's fields
+ * </pre>
+ * @author jaron
+ */
+@SupportedAnnotationTypes("data.Message")
+public class MessageProcessor extends AbstractProcessor {
+
+    private static final String CODEC_SUFFIX = "Codec";
+    private static final String HANDLER_SUFFIX = "Handler";
+
+    /**
+     * How a field is written and read
+     */
+    private enum Kind {
+        BOOLEAN, BYTE, SHORT, CHAR, INT, LONG, FLOAT, DOUBLE, STRING, BYTES, ENUM, MESSAGE
+    }
+
+    /**
+     * A field of a message class and its encoding
+     */
+    private static class Field {
+        final String name;
+        final Kind kind;
+        // the field's type, for enums and nested messages
+        final String type;
+
+        Field(String name, Kind kind, String type){
+            this.name = name;
+            this.kind = kind;
+            this.type = type;
+        }
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion(){
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round){
+        for (Element element : round.getElementsAnnotatedWith(Message.class)){
+            if (element.getKind() != ElementKind.CLASS){
+                error(element, "@Message can only be used on classes");
+                continue;
+            }
+            TypeElement type = (TypeElement) element;
+            // both run so every problem with the class is reported at once
+            List<Field> fields = fields(type);
+            boolean ok = check(type);
+            if (fields == null || !ok)
+                continue;
+
+            try {
+                writeCodec(type, fields);
+                writeHandler(type);
+            } catch (IOException e) {
+                error(type, "Could not write the codec for " + type.getSimpleName() + ": " + e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that the generated codec can create and reach the class
+     * @return False if an error was reported
+     */
+    private boolean check(TypeElement type){
+        boolean ok = true;
+        Set<Modifier> modifiers = type.getModifiers();
+        if (modifiers.contains(Modifier.ABSTRACT)){
+            error(type, "@Message classes can not be abstract");
+            ok = false;
+        }
+        if (type.getNestingKind() == NestingKind.MEMBER && !modifiers.contains(Modifier.STATIC)){
+            error(type, "Nested @Message classes must be static");
+            ok = false;
+        } else if (type.getNestingKind() == NestingKind.LOCAL || type.getNestingKind() == NestingKind.ANONYMOUS){
+            error(type, "@Message classes can not be local");
+            ok = false;
+        }
+        for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()){
+            if (e.getModifiers().contains(Modifier.PRIVATE)){
+                error(type, "@Message classes and the classes around them can not be private");
+                ok = false;
+                break;
+            }
+        }
+
+        boolean constructor = false;
+        for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())){
+            if (c.getParameters().isEmpty() && !c.getModifiers().contains(Modifier.PRIVATE))
+                constructor = true;
+        }
+        if (!constructor){
+            error(type, "@Message classes need a constructor without parameters that isn't private");
+            ok = false;
+        }
+        return ok;
+    }
+
+    /**
+     * Collects the fields that are encoded, in declaration order
+     * @return The fields, or null if an error was reported
+     */
+    private List<Field> fields(TypeElement type){
+        List<Field> fields = new ArrayList<>();
+        boolean ok = true;
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())){
+            Set<Modifier> modifiers = field.getModifiers();
+            if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT))
+                continue;
+            if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL)){
+                error(field, "@Message fields can not be private or final");
+                ok = false;
+                continue;
+            }
+
+            Field f = field(field);
+            if (f == null){
+                error(field, "Unsupported @Message field type " + field.asType()
+                        + ", use a primitive, String, byte[], enum or @Message class");
+                ok = false;
+                continue;
+            }
+            fields.add(f);
+        }
+        return ok ? fields : null;
+    }
+
+    private Field field(VariableElement field){
+        String name = field.getSimpleName().toString();
+        TypeMirror type = field.asType();
+        switch (type.getKind()){
+            case BOOLEAN: return new Field(name, Kind.BOOLEAN, null);
+            case BYTE: return new Field(name, Kind.BYTE, null);
+            case SHORT: return new Field(name, Kind.SHORT, null);
+            case CHAR: return new Field(name, Kind.CHAR, null);
+            case INT: return new Field(name, Kind.INT, null);
+            case LONG: return new Field(name, Kind.LONG, null);
+            case FLOAT: return new Field(name, Kind.FLOAT, null);
+            case DOUBLE: return new Field(name, Kind.DOUBLE, null);
+            case ARRAY:
+                if (((ArrayType) type).getComponentType().getKind() == TypeKind.BYTE)
+                    return new Field(name, Kind.BYTES, null);
+                return null;
+            case DECLARED:
+                TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+                if (element.getQualifiedName().contentEquals("java.lang.String"))
+                    return new Field(name, Kind.STRING, null);
+                if (element.getKind() == ElementKind.ENUM)
+                    return new Field(name, Kind.ENUM, element.getQualifiedName().toString());
+                if (element.getAnnotation(Message.class) != null)
+                    return new Field(name, Kind.MESSAGE, codecName(element));
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private void writeCodec(TypeElement type, List<Field> fields) throws IOException {
+        String pkg = packageName(type);
+        String codec = flatName(type) + CODEC_SUFFIX;
+        String handler = flatName(type) + HANDLER_SUFFIX;
+        String name = type.getQualifiedName().toString();
+
+        try (PrintWriter out = new PrintWriter(processingEnv.getFiler()
+                .createSourceFile(qualify(pkg, codec), type).openWriter())){
+            if (!pkg.isEmpty()){
+                out.println("package " + pkg + ";");
+                out.println();
+            }
+            out.println("/**");
+            out.println(" * Generated codec for {@link " + name + "}, do not edit");
+            out.println(" */");
+            out.println("public final class " + codec + " implements data.MessageCodec<" + name + "> {");
+            out.println();
+            out.println("    public static final String ID = \"" + escape(identifier(type)) + "\";");
+            out.println();
+            out.println("    public static final " + codec + " INSTANCE = new " + codec + "();");
+            out.println();
+            boolean enums = false;
+            for (Field f : fields){
+                if (f.kind == Kind.ENUM){
+                    out.println("    private static final " + f.type + "[] " + f.name.toUpperCase(Locale.ROOT)
+                            + "_VALUES = " + f.type + ".values();");
+                    enums = true;
+                }
+            }
+            if (enums)
+                out.println();
+            out.println("    private " + codec + "(){");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public String id(){");
+            out.println("        return ID;");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public data.MessageWriter write(" + name + " message){");
+            out.println("        data.MessageWriter writer = data.MessageWriter.get(ID);");
+            out.println("        writeFields(writer, message);");
+            out.println("        return writer;");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public " + name + " read(data.MessageReader reader){");
+            out.println("        " + name + " message = new " + name + "();");
+            out.println("        readFields(reader, message);");
+            out.println("        return message;");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public void read(data.MessageReader reader, " + name + " message){");
+            out.println("        readFields(reader, message);");
+            out.println("    }");
+            out.println();
+            out.println("    /**");
+            out.println("     * Writes the fields without a header, also used by messages containing this one");
+            out.println("     */");
+            out.println("    public static void writeFields(data.MessageWriter writer, " + name + " message){");
+            for (Field f : fields)
+                writeField(out, f);
+            out.println("    }");
+            out.println();
+            out.println("    /**");
+            out.println("     * Reads the fields written by writeFields into an existing object");
+            out.println("     */");
+            out.println("    public static void readFields(data.MessageReader reader, " + name + " message){");
+            for (Field f : fields)
+                readField(out, f, name);
+            out.println("    }");
+            out.println();
+            out.println("    /**");
+            out.println("     * Adapts a typed handler for registerHandler(ID, ...). The message object is");
+            out.println("     * new for every call and can be kept.");
+            out.println("     */");
+            out.println("    public static data.MessageHandler handler(final " + handler + " handler){");
+            out.println("        return new data.MessageHandler(){");
+            out.println("            @Override");
+            out.println("            public void handle(data.MessageReader reader, java.net.Socket socket){");
+            out.println("                handler.handle(INSTANCE.read(reader), socket);");
+            out.println("            }");
+            out.println("        };");
+            out.println("    }");
+            out.println("}");
+        }
+    }
+
+    private static void writeField(PrintWriter out, Field f){
+        String value = "message." + f.name;
+        switch (f.kind){
+            case BOOLEAN: out.println("        writer.putBoolean(" + value + ");"); break;
+            case BYTE: out.println("        writer.putByte(" + value + ");"); break;
+            case SHORT: out.println("        writer.putShort(" + value + ");"); break;
+            case CHAR: out.println("        writer.putShort(" + value + ");"); break;
+            case INT: out.println("        writer.putInt(" + value + ");"); break;
+            case LONG: out.println("        writer.putLong(" + value + ");"); break;
+            case FLOAT: out.println("        writer.putFloat(" + value + ");"); break;
+            case DOUBLE: out.println("        writer.putDouble(" + value + ");"); break;
+            case ENUM:
+                out.println("        writer.putVarInt(" + value + " == null ? 0 : " + value + ".ordinal() + 1);");
+                break;
+            case STRING:
+            case BYTES:
+            case MESSAGE:
+                out.println("        writer.putBoolean(" + value + " != null);");
+                out.println("        if (" + value + " != null)");
+                if (f.kind == Kind.STRING)
+                    out.println("            writer.putString(" + value + ");");
+                else if (f.kind == Kind.BYTES)
+                    out.println("            writer.putBytes(" + value + ");");
+                else
+                    out.println("            " + f.type + ".writeFields(writer, " + value + ");");
+                break;
+        }
+    }
+
+    private static void readField(PrintWriter out, Field f, String owner){
+        String value = "message." + f.name;
+        switch (f.kind){
+            case BOOLEAN: out.println("        " + value + " = reader.getBoolean();"); break;
+            case BYTE: out.println("        " + value + " = reader.getByte();"); break;
+            case SHORT: out.println("        " + value + " = reader.getShort();"); break;
+            case CHAR: out.println("        " + value + " = (char) reader.getShort();"); break;
+            case INT: out.println("        " + value + " = reader.getInt();"); break;
+            case LONG: out.println("        " + value + " = reader.getLong();"); break;
+            case FLOAT: out.println("        " + value + " = reader.getFloat();"); break;
+            case DOUBLE: out.println("        " + value + " = reader.getDouble();"); break;
+            case ENUM:
+                out.println("        int " + f.name + "Ordinal = reader.getVarInt();");
+                out.println("        " + value + " = " + f.name + "Ordinal == 0 ? null : "
+                        + f.name.toUpperCase(Locale.ROOT) + "_VALUES[" + f.name + "Ordinal - 1];");
+                break;
+            case STRING:
+                out.println("        " + value + " = reader.getBoolean() ? reader.getString() : null;");
+                break;
+            case BYTES:
+                out.println("        " + value + " = reader.getBoolean() ? reader.getBytes() : null;");
+                break;
+            case MESSAGE:
+                // the nested object is reused when reading into an existing message
+                out.println("        if (reader.getBoolean()){");
+                out.println("            if (" + value + " == null)");
+                out.println("                " + value + " = " + f.type + ".INSTANCE.read(reader);");
+                out.println("            else");
+                out.println("                " + f.type + ".readFields(reader, " + value + ");");
+                out.println("        } else {");
+                out.println("            " + value + " = null;");
+                out.println("        }");
+                break;
+        }
+    }
+
+    private void writeHandler(TypeElement type) throws IOException {
+        String pkg = packageName(type);
+        String handler = flatName(type) + HANDLER_SUFFIX;
+        String name = type.getQualifiedName().toString();
+
+        try (PrintWriter out = new PrintWriter(processingEnv.getFiler()
+                .createSourceFile(qualify(pkg, handler), type).openWriter())){
+            if (!pkg.isEmpty()){
+                out.println("package " + pkg + ";");
+                out.println();
+            }
+            out.println("/**");
+            out.println(" * Generated handler for {@link " + name + "}, do not edit");
+            out.println(" */");
+            out.println("public interface " + handler + " {");
+            out.println();
+            out.println("    public void handle(" + name + " message, java.net.Socket socket);");
+            out.println("}");
+        }
+    }
+
+    /**
+     * The identifier from the annotation, or the upper-cased class name
+     */
+    private static String identifier(TypeElement type){
+        String id = type.getAnnotation(Message.class).value();
+        return id.isEmpty() ? type.getSimpleName().toString().toUpperCase(Locale.ROOT) : id;
+    }
+
+    private String packageName(TypeElement type){
+        return processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+    }
+
+    /**
+     * The class name with the names of the classes around it, joined by underscores
+     */
+    private static String flatName(TypeElement type){
+        String name = type.getSimpleName().toString();
+        for (Element e = type.getEnclosingElement(); e instanceof TypeElement; e = e.getEnclosingElement())
+            name = e.getSimpleName() + "_" + name;
+        return name;
+    }
+
+    private String codecName(TypeElement type){
+        return qualify(packageName(type), flatName(type) + CODEC_SUFFIX);
+    }
+
+    private static String qualify(String pkg, String name){
+        return pkg.isEmpty() ? name : pkg + "." + name;
+    }
+
+    private static String escape(String s){
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private void error(Element element, String message){
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -0,0 +1,202 @@
+
+package data;
+
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands log lines to a background thread that writes them to another
+ * Logger, so threads logging never wait on System.out. Lines go through a
+ * fixed-size lock-free ring buffer; when it is full new lines are dropped
+ * and counted instead of blocking, and a note with the count is logged once
+ * there is room again.
+ * @author jaron
+ */
+public class AsyncLogger implements Logger {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private final Logger target;
+    private final int mask;
+    private final LogLevel[] levels;
+    private final String[] messages;
+    // per slot, the position it can next be written at (or read at, plus one)
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported;
+
+    private final Thread thread;
+    private volatile boolean sleeping;
+
+    // created on first use
+    private static class Holder {
+        static final AsyncLogger DEFAULT = create();
+
+        private static AsyncLogger create(){
+            AsyncLogger logger = new AsyncLogger(new ConsoleLogger());
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+                @Override
+                public void run(){
+                    logger.flush(1000);
+                }
+            }, "AsyncLogger-flush"));
+            return logger;
+        }
+    }
+
+    /**
+     * Returns the logger the Server and Client use unless given another one,
+     * writing INFO and up to the console. Lines still waiting when the JVM
+     * exits are written by a shutdown hook.
+     * @return The shared default logger
+     */
+    public static AsyncLogger getDefault(){
+        return Holder.DEFAULT;
+    }
+
+    /**
+     * Constructor for an AsyncLogger with the default capacity
+     * @param target The logger lines are written to
+     */
+    public AsyncLogger(Logger target){
+        this(target, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor for an AsyncLogger
+     * @param target The logger lines are written to
+     * @param capacity The number of lines that can be waiting, rounded up to a power of two
+     */
+    public AsyncLogger(Logger target, int capacity){
+        this.target = target;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.levels = new LogLevel[size];
+        this.messages = new String[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++){
+            sequences.set(i, i);
+        }
+
+        this.thread = new Thread(new Runnable(){
+            @Override
+            public void run(){
+                drainLoop();
+            }
+        }, "AsyncLogger");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public boolean isEnabled(LogLevel level){
+        return target.isEnabled(level);
+    }
+
+    @Override
+    public void log(LogLevel level, String message){
+        if (!target.isEnabled(level))
+            return;
+
+        long pos = tail.get();
+        while (true){
+            int slot = (int) pos & mask;
+            long difference = sequences.get(slot) - pos;
+            if (difference == 0){
+                if (tail.compareAndSet(pos, pos + 1)){
+                    levels[slot] = level;
+                    messages[slot] = message;
+                    sequences.set(slot, pos + 1);
+                    break;
+                }
+                pos = tail.get();
+            } else if (difference < 0){
+                // the writer is behind by a whole buffer
+                dropped.increment();
+                return;
+            } else {
+                pos = tail.get();
+            }
+        }
+
+        if (sleeping)
+            LockSupport.unpark(thread);
+    }
+
+    private boolean drain(){
+        boolean any = false;
+        while (true){
+            int slot = (int) head & mask;
+            if (sequences.get(slot) != head + 1)
+                break;
+            LogLevel level = levels[slot];
+            String message = messages[slot];
+            messages[slot] = null;
+            sequences.set(slot, head + mask + 1);
+            head++;
+            any = true;
+            write(level, message);
+        }
+
+        long total = dropped.sum();
+        if (total != droppedReported){
+            write(LogLevel.WARN, "[AsyncLogger] Dropped " + (total - droppedReported) + " log lines");
+            droppedReported = total;
+        }
+        return any;
+    }
+
+    private void write(LogLevel level, String message){
+        try {
+            target.log(level, message);
+        } catch (RuntimeException e) {  }
+    }
+
+    private void drainLoop(){
+        while (true){
+            if (drain())
+                continue;
+            sleeping = true;
+            // a line may have arrived before the flag was seen
+            if (!drain())
+                LockSupport.parkNanos(100_000_000L);
+            sleeping = false;
+        }
+    }
+
+    /**
+     * Waits until every line logged so far has been written, i.e. before exiting
+     * @param timeoutMillis The longest to wait
+     */
+    public void flush(long timeoutMillis){
+        long until = System.nanoTime() + timeoutMillis * 1000000L;
+        long written = tail.get();
+        while (System.nanoTime() < until){
+            int slot = (int) (written - 1) & mask;
+            // the last line is written once its slot is free for the next round
+            if (written == 0 || sequences.get(slot) >= written + mask)
+                return;
+            LockSupport.unpark(thread);
+            LockSupport.parkNanos(1_000_000L);
+        }
+    }
+
+    /**
+     * Getter for the number of lines dropped because the buffer was full
+     * @return The dropped line count
+     */
+    public long getDroppedCount(){
+        return dropped.sum();
+    }
+
+    /**
+     * Getter for the logger lines are written to
+     * @return The target logger
+     */
+    public Logger getTarget(){
+        return target;
+    }
+}
@@ -0,0 +1,248 @@
+
+package data;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact binary Codec. Every object is written as a one byte type tag
+ * followed by its value; ints and longs use zig-zag varints so small numbers
+ * stay small. Primitives, Strings, byte arrays, Lists and Maps are encoded
+ * natively, anything else falls back to Java serialization. When reading,
+ * lengths and element counts are checked against the bytes left in the
+ * message before anything is allocated, and Lists and Maps can be nested
+ * at most <code>MAX_DEPTH</code> deep.
+ * @author jaron
+ */
+public class BinaryCodec implements Codec {
+    
+    protected static final int TAG_NULL = 0;
+    protected static final int TAG_FALSE = 1;
+    protected static final int TAG_TRUE = 2;
+    protected static final int TAG_BYTE = 3;
+    protected static final int TAG_SHORT = 4;
+    protected static final int TAG_CHAR = 5;
+    protected static final int TAG_INT = 6;
+    protected static final int TAG_LONG = 7;
+    protected static final int TAG_FLOAT = 8;
+    protected static final int TAG_DOUBLE = 9;
+    protected static final int TAG_STRING = 10;
+    protected static final int TAG_BYTES = 11;
+    protected static final int TAG_LIST = 12;
+    protected static final int TAG_MAP = 13;
+    protected static final int TAG_SERIALIZED = 14;
+    
+    // Lists and Maps nested deeper than this are rejected, rather than running out of stack
+    public static final int MAX_DEPTH = 32;
+    
+    @Override
+    public void writeBody(Data data, DataOutput out) throws IOException {
+        Wire.writeVarInt(out, data.size() - 1);
+        for (int i = 1; i < data.size(); i++){
+            writeObject(data.get(i), out);
+        }
+    }
+    
+    @Override
+    public void readBody(DataInput in, Data data) throws IOException {
+        int size = readLength(in);
+        data.ensureCapacity(size + 1);
+        for (int i = 0; i < size; i++){
+            data.add(readObject(in));
+        }
+    }
+    
+    /**
+     * Writes a single tagged object
+     * @param o The object to write
+     * @param out The output to write to
+     * @throws IOException If the object can not be encoded
+     */
+    public void writeObject(Object o, DataOutput out) throws IOException {
+        if (o == null){
+            out.writeByte(TAG_NULL);
+        } else if (o instanceof Boolean){
+            out.writeByte((Boolean) o ? TAG_TRUE : TAG_FALSE);
+        } else if (o instanceof Integer){
+            out.writeByte(TAG_INT);
+            Wire.writeVarInt(out, zigZag((Integer) o));
+        } else if (o instanceof Long){
+            out.writeByte(TAG_LONG);
+            Wire.writeVarLong(out, zigZag((Long) o));
+        } else if (o instanceof String){
+            out.writeByte(TAG_STRING);
+            writeString((String) o, out);
+        } else if (o instanceof Float){
+            out.writeByte(TAG_FLOAT);
+            out.writeFloat((Float) o);
+        } else if (o instanceof Double){
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble((Double) o);
+        } else if (o instanceof Byte){
+            out.writeByte(TAG_BYTE);
+            out.writeByte((Byte) o);
+        } else if (o instanceof Short){
+            out.writeByte(TAG_SHORT);
+            out.writeShort((Short) o);
+        } else if (o instanceof Character){
+            out.writeByte(TAG_CHAR);
+            out.writeChar((Character) o);
+        } else if (o instanceof byte[]){
+            byte[] bytes = (byte[]) o;
+            out.writeByte(TAG_BYTES);
+            Wire.writeVarInt(out, bytes.length);
+            out.write(bytes);
+        } else if (o instanceof List && !(o instanceof Data)){
+            // Data is a List too, but serializing it keeps its id and sender
+            List<?> list = (List<?>) o;
+            out.writeByte(TAG_LIST);
+            Wire.writeVarInt(out, list.size());
+            for (Object element : list){
+                writeObject(element, out);
+            }
+        } else if (o instanceof Map){
+            Map<?, ?> map = (Map<?, ?>) o;
+            out.writeByte(TAG_MAP);
+            Wire.writeVarInt(out, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()){
+                writeObject(entry.getKey(), out);
+                writeObject(entry.getValue(), out);
+            }
+        } else if (o instanceof Serializable){
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream objectOut = new ObjectOutputStream(bytes);
+            objectOut.writeObject(o);
+            objectOut.close();
+            out.writeByte(TAG_SERIALIZED);
+            Wire.writeVarInt(out, bytes.size());
+            out.write(bytes.toByteArray());
+        } else {
+            throw new NotSerializableException(o.getClass().getName());
+        }
+    }
+    
+    /**
+     * Reads a single tagged object
+     * @param in The input to read from
+     * @return The object
+     * @throws IOException If the object can not be decoded
+     */
+    public Object readObject(DataInput in) throws IOException {
+        return readObject(in, 0);
+    }
+    
+    private Object readObject(DataInput in, int depth) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag){
+            case TAG_NULL:
+                return null;
+            case TAG_FALSE:
+                return false;
+            case TAG_TRUE:
+                return true;
+            case TAG_BYTE:
+                return in.readByte();
+            case TAG_SHORT:
+                return in.readShort();
+            case TAG_CHAR:
+                return in.readChar();
+            case TAG_INT:
+                return unZigZag(Wire.readVarInt(in));
+            case TAG_LONG:
+                return unZigZag(Wire.readVarLong(in));
+            case TAG_FLOAT:
+                return in.readFloat();
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_STRING:
+                return readString(in);
+            case TAG_BYTES: {
+                byte[] bytes = new byte[readLength(in)];
+                in.readFully(bytes);
+                return bytes;
+            }
+            case TAG_LIST: {
+                checkDepth(depth);
+                int size = readLength(in);
+                ArrayList<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++){
+                    list.add(readObject(in, depth + 1));
+                }
+                return list;
+            }
+            case TAG_MAP: {
+                checkDepth(depth);
+                int size = readLength(in);
+                HashMap<Object, Object> map = new HashMap<>();
+                for (int i = 0; i < size; i++){
+                    map.put(readObject(in, depth + 1), readObject(in, depth + 1));
+                }
+                return map;
+            }
+            case TAG_SERIALIZED: {
+                byte[] bytes = new byte[readLength(in)];
+                in.readFully(bytes);
+                try {
+                    return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new InvalidObjectException("Unknown class " + e.getMessage());
+                }
+            }
+            default:
+                throw new StreamCorruptedException("Unknown type tag " + tag);
+        }
+    }
+    
+    protected static void writeString(String s, DataOutput out) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        Wire.writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+    
+    protected static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Reads a byte length or element count, which can't be more than the
+     * bytes left since every element takes at least one
+     */
+    private static int readLength(DataInput in) throws IOException {
+        int length = Wire.readVarInt(in);
+        Wire.checkLength(length);
+        int remaining = remaining(in);
+        if (length > remaining)
+            throw new StreamCorruptedException("Length " + length + " exceeds the " 
+                    + remaining + " bytes left in the message");
+        return length;
+    }
+    
+    private static int remaining(DataInput in) throws IOException {
+        // Wire hands codecs a stream over the frame, where available() is exact
+        return in instanceof InputStream ? ((InputStream) in).available() : Wire.MAX_FRAME_SIZE;
+    }
+    
+    private static void checkDepth(int depth) throws IOException {
+        if (depth >= MAX_DEPTH)
+            throw new StreamCorruptedException("Lists and maps nested more than " + MAX_DEPTH + " deep");
+    }
+    
+    private static int zigZag(int value){
+        return (value << 1) ^ (value >> 31);
+    }
+    
+    private static long zigZag(long value){
+        return (value << 1) ^ (value >> 63);
+    }
+    
+    private static int unZigZag(int value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+    
+    private static long unZigZag(long value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,199 @@
+
+package data;
+
+/**
+ * NTP style estimate of the offset between two <code>System.nanoTime()</code>
+ * clocks, built from ping exchanges. The side that starts an exchange (the
+ * server) notes its send time t0 and receive time t3, the other side notes
+ * when it received the ping (t1) and answered it (t2). Each exchange gives
+ * an offset and a network delay:
+ * <pre>
+ *   offset = ((t1 - t0) + (t2 - t3)) / 2
+ *   delay  = (t3 - t0) - (t2 - t1)
+ * </pre>
+ * Delays are rarely symmetric, so only the sample with the lowest delay out
+ * of the last few is trusted. Those filtered samples are then fitted with a
+ * line to follow the drift between the two clocks.
+ * @author jaron
+ */
+public class ClockSync {
+
+    public static final int DEFAULT_WINDOW = 8;
+
+    // filtered samples kept for the drift fit
+    private static final int HISTORY = 32;
+    // no real clock drifts further than this, anything more is noise
+    private static final double MAX_DRIFT = 500e-6;
+    // the fit needs this much time between samples before drift is used
+    private static final long MIN_DRIFT_SPAN = 10_000_000_000L;
+
+    private final int window;
+    private final long[] sampleTimes;
+    private final long[] sampleOffsets;
+    private final long[] sampleDelays;
+    private int samples;
+    private long sampleCount;
+
+    private final long[] historyTimes = new long[HISTORY];
+    private final long[] historyOffsets = new long[HISTORY];
+    private int history;
+
+    private long baseTime;
+    private long baseOffset;
+    private long baseDelay;
+    private double drift;
+
+    /**
+     * Constructor for a ClockSync using the default filter window
+     */
+    public ClockSync(){
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * Constructor for a ClockSync
+     * @param window The number of recent samples the lowest delay is picked from
+     */
+    public ClockSync(int window){
+        this.window = Math.max(1, window);
+        this.sampleTimes = new long[this.window];
+        this.sampleOffsets = new long[this.window];
+        this.sampleDelays = new long[this.window];
+    }
+
+    /**
+     * Adds the timestamps of one exchange
+     * @param t0 When the initiator sent the ping, on its clock
+     * @param t1 When the responder received it, on its clock
+     * @param t2 When the responder answered, on its clock
+     * @param t3 When the initiator received the answer, on its clock
+     * @return False if the timestamps are inconsistent and were ignored
+     */
+    public synchronized boolean addSample(long t0, long t1, long t2, long t3){
+        long delay = (t3 - t0) - (t2 - t1);
+        if (delay < 0 || t2 < t1)
+            return false;
+
+        // differences first, the raw values are on unrelated clocks
+        long offset = ((t1 - t0) + (t2 - t3)) / 2;
+        long time = t0 + (t3 - t0) / 2;
+
+        int slot = (int) (sampleCount % window);
+        sampleTimes[slot] = time;
+        sampleOffsets[slot] = offset;
+        sampleDelays[slot] = delay;
+        sampleCount++;
+        samples = Math.min(samples + 1, window);
+
+        int best = 0;
+        for (int i = 1; i < samples; i++){
+            if (sampleDelays[i] < sampleDelays[best])
+                best = i;
+        }
+        if (history > 0 && historyTimes[(history - 1) % HISTORY] == sampleTimes[best])
+            return true;
+
+        historyTimes[history % HISTORY] = sampleTimes[best];
+        historyOffsets[history % HISTORY] = sampleOffsets[best];
+        history++;
+
+        baseTime = sampleTimes[best];
+        baseOffset = sampleOffsets[best];
+        baseDelay = sampleDelays[best];
+        drift = fitDrift();
+        return true;
+    }
+
+    /**
+     * Least squares slope of the filtered offsets over time
+     */
+    private double fitDrift(){
+        int n = Math.min(history, HISTORY);
+        if (n < 2)
+            return 0;
+
+        long origin = baseTime;
+        double meanX = 0, meanY = 0;
+        long minTime = Long.MAX_VALUE;
+        for (int i = 0; i < n; i++){
+            meanX += historyTimes[i] - origin;
+            meanY += historyOffsets[i] - baseOffset;
+            minTime = Math.min(minTime, historyTimes[i]);
+        }
+        if (origin - minTime < MIN_DRIFT_SPAN)
+            return 0;
+
+        meanX /= n;
+        meanY /= n;
+        double sxx = 0, sxy = 0;
+        for (int i = 0; i < n; i++){
+            double dx = historyTimes[i] - origin - meanX;
+            sxx += dx * dx;
+            sxy += dx * (historyOffsets[i] - baseOffset - meanY);
+        }
+        if (sxx == 0)
+            return 0;
+        return Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, sxy / sxx));
+    }
+
+    /**
+     * Returns whether at least one exchange has been measured
+     * @return Whether the offset is known
+     */
+    public synchronized boolean isSynchronized(){
+        return sampleCount > 0;
+    }
+
+    /**
+     * Returns the estimated offset, responder clock minus initiator clock
+     * @param initiatorTime The initiator time to estimate the offset at
+     * @return The offset in nanoseconds
+     */
+    public synchronized long offset(long initiatorTime){
+        return baseOffset + Math.round(drift * (initiatorTime - baseTime));
+    }
+
+    /**
+     * Converts a time on the initiator's clock to the responder's clock
+     * @param initiatorTime A <code>System.nanoTime()</code> value from the initiator
+     * @return The same moment on the responder's clock
+     */
+    public long toResponderTime(long initiatorTime){
+        return initiatorTime + offset(initiatorTime);
+    }
+
+    /**
+     * Converts a time on the responder's clock to the initiator's clock
+     * @param responderTime A <code>System.nanoTime()</code> value from the responder
+     * @return The same moment on the initiator's clock
+     */
+    public synchronized long toInitiatorTime(long responderTime){
+        // the offset barely changes over the difference, one step is enough
+        long estimate = responderTime - baseOffset;
+        return responderTime - offset(estimate);
+    }
+
+    /**
+     * Getter for the round trip delay of the sample the offset is based on
+     * @return The delay in nanoseconds
+     */
+    public synchronized long getDelay(){
+        return baseDelay;
+    }
+
+    /**
+     * Getter for the estimated drift between the clocks
+     * @return The drift in nanoseconds per nanosecond, i.e. 1e-6 is 1 ppm
+     */
+    public synchronized double getDrift(){
+        return drift;
+    }
+
+    /**
+     * Getter for the number of exchanges measured
+     * @return The number of samples added
+     */
+    public synchronized long getSampleCount(){
+        return sampleCount;
+    }
+}
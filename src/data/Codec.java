@@ -0,0 +1,30 @@
+
+package data;
+
+import java.io.*;
+
+/**
+ * Interface for encoding the contents of a Data message on the wire. The
+ * framing and message header (identifier, sender, correlation ID) are written
+ * by <code>Wire</code>; a Codec only deals with the objects after the identifier.
+ * Both the Server and the Client must use the same Codec.
+ * @author jaron
+ */
+public interface Codec {
+    
+    /**
+     * Write every object in the message after the identifier
+     * @param data The message to encode
+     * @param out The output to write to
+     * @throws IOException If an object can not be encoded
+     */
+    public void writeBody(Data data, DataOutput out) throws IOException;
+    
+    /**
+     * Read the objects written by <code>writeBody</code> and add them to the message
+     * @param in The input to read from, limited to the body of a single message
+     * @param data The message to add the objects to
+     * @throws IOException If the body can not be decoded
+     */
+    public void readBody(DataInput in, Data data) throws IOException;
+}
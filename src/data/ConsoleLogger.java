@@ -0,0 +1,59 @@
+
+package data;
+
+/**
+ * Writes log lines straight to System.out, or System.err for warnings and
+ * errors. The stream's lock is taken on the caller's thread, so this is
+ * normally wrapped in an <code>AsyncLogger</code>.
+ * @author jaron
+ */
+public class ConsoleLogger implements Logger {
+
+    private volatile LogLevel level;
+
+    /**
+     * Constructor for a ConsoleLogger that logs INFO and up
+     */
+    public ConsoleLogger(){
+        this(LogLevel.INFO);
+    }
+
+    /**
+     * Constructor for a ConsoleLogger
+     * @param level The lowest level logged
+     */
+    public ConsoleLogger(LogLevel level){
+        this.level = level;
+    }
+
+    /**
+     * Setter for the lowest level logged
+     * @param level The level
+     */
+    public void setLevel(LogLevel level) {
+        this.level = level;
+    }
+
+    /**
+     * Getter for the lowest level logged
+     * @return The level
+     */
+    public LogLevel getLevel() {
+        return level;
+    }
+
+    @Override
+    public boolean isEnabled(LogLevel level){
+        return level != LogLevel.OFF && level.compareTo(this.level) >= 0;
+    }
+
+    @Override
+    public void log(LogLevel level, String message){
+        if (!isEnabled(level))
+            return;
+        if (level.compareTo(LogLevel.WARN) >= 0)
+            System.err.println(message);
+        else
+            System.out.println(message);
+    }
+}
@@ -3,6 +3,7 @@ package data;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  *
@@ -10,6 +11,11 @@ import java.util.Arrays;
  */
 public class Data extends ArrayList<Object>{
     private String senderID = null;
+    private int requestID = 0;
+    private boolean reply = false;
+    private transient int opcode = OpcodeTable.NONE;
+    private transient long receivedAt;
+    private transient int wireSize;
     
     /**
      * Constructor for the data object
@@ -29,6 +35,28 @@ public class Data extends ArrayList<Object>{
         return (String) this.get(0);
     }
     
+    /**
+     * Return a copy of the list at the given index, checking that every element
+     * has the expected type. Messages come from the network, so a list may hold
+     * anything the codec can decode.
+     * @param <T> The element type
+     * @param index The position of the list in the message
+     * @param type The class every element must be an instance of
+     * @return A copy of the list, or <code>null</code> if the value isn't a list or holds another type
+     */
+    public <T> List<T> getList(int index, Class<T> type){
+        if (index >= this.size() || !(this.get(index) instanceof List))
+            return null;
+        List<?> list = (List<?>) this.get(index);
+        ArrayList<T> copy = new ArrayList<>(list.size());
+        for (Object element : list){
+            if (!type.isInstance(element))
+                return null;
+            copy.add(type.cast(element));
+        }
+        return copy;
+    }
+    
     /**
      * Return the sender's ID
      * @return The sender's ID
@@ -44,4 +72,85 @@ public class Data extends ArrayList<Object>{
     public void sign(String senderID) {
         this.senderID = senderID;
     }
+    
+    /**
+     * Return the opcode this message arrived with
+     * @return The opcode, or <code>OpcodeTable.NONE</code> if it was sent by identifier
+     */
+    public int getOpcode() {
+        return this.opcode;
+    }
+    
+    /**
+     * Set the opcode this message arrived with, used by the wire decoder
+     * @param opcode The opcode from the receiver's table
+     */
+    public void setOpcode(int opcode) {
+        this.opcode = opcode;
+    }
+    
+    /**
+     * Return when this message was read off the wire
+     * @return The <code>System.nanoTime()</code> it was decoded at, 0 for local messages
+     */
+    public long getReceivedAt() {
+        return this.receivedAt;
+    }
+    
+    /**
+     * Set when this message was read off the wire, used by the wire decoder
+     * @param receivedAt The <code>System.nanoTime()</code> it was decoded at
+     */
+    public void setReceivedAt(long receivedAt) {
+        this.receivedAt = receivedAt;
+    }
+    
+    /**
+     * Return the size of the frame this message arrived in
+     * @return The size in bytes including the length prefix, 0 for local messages
+     */
+    public int getWireSize() {
+        return this.wireSize;
+    }
+    
+    /**
+     * Set the size of the frame this message arrived in, used by the wire decoder
+     * @param wireSize The size in bytes including the length prefix
+     */
+    public void setWireSize(int wireSize) {
+        this.wireSize = wireSize;
+    }
+    
+    /**
+     * Return the correlation ID used to match a reply to its request
+     * @return The correlation ID, or 0 if the message is not part of a request
+     */
+    public int getRequestID() {
+        return this.requestID;
+    }
+    
+    /**
+     * Set the correlation ID for a message that expects a reply
+     * @param requestID The correlation ID
+     */
+    public void setRequestID(int requestID) {
+        this.requestID = requestID;
+    }
+    
+    /**
+     * Return whether this message is a reply to an earlier request
+     * @return Whether this message is a reply
+     */
+    public boolean isReply() {
+        return this.reply;
+    }
+    
+    /**
+     * Mark this message as the reply to the request with the given ID
+     * @param requestID The correlation ID of the request being answered
+     */
+    public void markReply(int requestID) {
+        this.requestID = requestID;
+        this.reply = true;
+    }
 }
@@ -0,0 +1,408 @@
+
+package data;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * One end of a UDP channel between the Server and a Client. Numbers every
+ * datagram it sends and acknowledges the other side's datagrams on every
+ * datagram going back, as the newest sequence number plus a bitfield of the
+ * 32 before it. Reliable messages are kept until acknowledged and resent
+ * once their retransmit timeout, based on the measured round trip time,
+ * runs out. Received reliable messages are deduplicated, and ordered ones
+ * are held back until everything before them in their channel arrived.
+ * <code>tick()</code> has to be called every few milliseconds to drive
+ * retransmits and acks. A reliable message that is still unacknowledged
+ * after <code>MAX_TRANSMISSIONS</code> means the other side is gone, like a
+ * TCP timeout: the session closes and its owner should drop the connection.
+ * @author jaron
+ */
+public class DatagramSession {
+
+    /**
+     * Sends a finished datagram to the other side
+     */
+    public interface Sink {
+        void send(ByteBuffer datagram) throws IOException;
+    }
+
+    /**
+     * Handles a message once it is ready to be delivered
+     */
+    public interface Receiver {
+        void receive(Data message);
+    }
+
+    // reliable messages waiting for an ack, sends fail beyond this
+    public static final int MAX_IN_FLIGHT = 1024;
+    public static final int MAX_TRANSMISSIONS = 16;
+
+    private static final long INITIAL_RTO = 200_000_000L;
+    private static final long MIN_RTO = 30_000_000L;
+    private static final long MAX_RTO = 2_000_000_000L;
+    // how long an ack may wait for an outgoing datagram to ride on
+    private static final long ACK_DELAY = 10_000_000L;
+    // acks cover 33 datagrams, so a bare ack goes out well before that many are owed
+    private static final int MAX_UNACKED = 16;
+    // messages further ahead than this in a channel are dropped
+    private static final int RECEIVE_WINDOW = 4 * MAX_IN_FLIGHT;
+
+    private final long token;
+    private final Sink sink;
+
+    // sending
+    private int sequence;
+    private int unorderedSequence;
+    private final int[] channelSequences = new int[Delivery.MAX_ORDERED_CHANNELS];
+    private final HashMap<Integer, Pending> pending = new HashMap<>();
+    private final ArrayList<Pending> expired = new ArrayList<>();
+
+    // receiving
+    private boolean received;
+    private int remoteSequence;
+    private int receivedBits;
+    private boolean ackOwed;
+    private int ackOwedCount;
+    private long ackOwedSince;
+    private final SequenceFilter unreliable = new SequenceFilter();
+    private final Window unordered = new Window(false);
+    private final Window[] ordered = new Window[Delivery.MAX_ORDERED_CHANNELS];
+
+    // RFC 6298 retransmit timeout
+    private long srtt = -1;
+    private long rttvar;
+    private long rto = INITIAL_RTO;
+
+    private long retransmits;
+    private long lost;
+    private boolean closed;
+
+    /**
+     * A reliable message that hasn't been acknowledged yet
+     */
+    private static class Pending {
+        final byte[] frame;
+        final int channel;
+        final int channelSequence;
+        long sentAt;
+        int transmissions;
+
+        Pending(byte[] frame, int channel, int channelSequence){
+            this.frame = frame;
+            this.channel = channel;
+            this.channelSequence = channelSequence;
+        }
+    }
+
+    /**
+     * Receive state of a reliable channel: the next channel sequence number
+     * expected and whatever arrived ahead of it
+     */
+    private static class Window {
+        final boolean ordered;
+        int next;
+        final HashMap<Integer, Data> ahead = new HashMap<>();
+
+        Window(boolean ordered){
+            this.ordered = ordered;
+        }
+
+        void receive(int channelSequence, Data message, Receiver receiver){
+            int distance = channelSequence - next;
+            if (distance < 0 || distance >= RECEIVE_WINDOW || ahead.containsKey(channelSequence))
+                return;
+
+            if (distance > 0){
+                // unordered messages are handled straight away, only remembered for deduplication
+                ahead.put(channelSequence, ordered ? message : null);
+                if (!ordered)
+                    receiver.receive(message);
+                return;
+            }
+
+            receiver.receive(message);
+            next++;
+            while (ahead.containsKey(next)){
+                Data held = ahead.remove(next);
+                if (ordered)
+                    receiver.receive(held);
+                next++;
+            }
+        }
+    }
+
+    /**
+     * Constructor for a DatagramSession
+     * @param token The token written into every datagram, 0 on the server side
+     * @param sink Where finished datagrams are sent
+     */
+    public DatagramSession(long token, Sink sink){
+        this.token = token;
+        this.sink = sink;
+    }
+
+    /**
+     * Sends an encoded message
+     * @param frame The message as encoded by <code>Wire</code>
+     * @param delivery How to deliver it, one of the UDP modes
+     * @return False if too many reliable messages are waiting for an ack
+     * @throws IOException If the datagram can't be sent
+     */
+    public synchronized boolean send(byte[] frame, Delivery delivery) throws IOException {
+        if (closed)
+            throw new ConnectException("Datagram session closed");
+        if (!delivery.isReliable()){
+            transmit(Datagrams.UNRELIABLE, 0, 0, frame);
+            return true;
+        }
+        if (pending.size() >= MAX_IN_FLIGHT)
+            return false;
+
+        int channel = delivery.getChannel();
+        int channelSequence = delivery.isOrdered() ? channelSequences[channel]++ : unorderedSequence++;
+        Pending p = new Pending(frame, channel, channelSequence);
+        transmit(p);
+        return true;
+    }
+
+    /**
+     * Sends a datagram without a message, so the other side learns our address
+     * @throws IOException If the datagram can't be sent
+     */
+    public synchronized void hello() throws IOException {
+        transmit(Datagrams.HELLO, 0, 0, null);
+    }
+
+    private int transmit(byte kind, int channel, int channelSequence, byte[] frame) throws IOException {
+        int seq = ++sequence;
+        ByteBuffer datagram = Datagrams.encode(token, seq, remoteSequence, receivedBits,
+                kind, channel, channelSequence, frame);
+        ackOwed = false;
+        ackOwedCount = 0;
+        sink.send(datagram);
+        return seq;
+    }
+
+    private void transmit(Pending p) throws IOException {
+        p.sentAt = System.nanoTime();
+        p.transmissions++;
+        // every transmission gets a new sequence number, acks are per datagram
+        pending.put(sequence + 1, p);
+        transmit(Datagrams.RELIABLE, p.channel, p.channelSequence, p.frame);
+    }
+
+    /**
+     * Handles a received datagram
+     * @param datagram The datagram, flipped for reading and backed by an array
+     * @param codec The codec used for message bodies
+     * @param opcodes The local opcode table the other side encodes against
+     * @param receiver Gets every message that is ready to be handled
+     * @throws IOException If the datagram can't be decoded
+     */
+    public synchronized void receive(ByteBuffer datagram, Codec codec, OpcodeTable opcodes, Receiver receiver) throws IOException {
+        if (closed)
+            return;
+        if (datagram.remaining() < Datagrams.HEADER_SIZE)
+            throw new IOException("Truncated datagram");
+
+        acknowledged(Datagrams.ack(datagram), Datagrams.ackBits(datagram));
+
+        byte kind = Datagrams.kind(datagram);
+        int seq = Datagrams.sequence(datagram);
+        record(seq);
+        if (kind != Datagrams.UNRELIABLE && kind != Datagrams.RELIABLE)
+            return;
+
+        Data message = Datagrams.decode(datagram, codec, opcodes);
+        if (message == null)
+            return;
+
+        if (kind == Datagrams.UNRELIABLE){
+            if (unreliable.accept(message, seq))
+                receiver.receive(message);
+            return;
+        }
+
+        // acked even if it's a duplicate, the sender evidently missed our ack
+        if (!ackOwed){
+            ackOwed = true;
+            ackOwedSince = System.nanoTime();
+        }
+        if (++ackOwedCount >= MAX_UNACKED)
+            transmit(Datagrams.ACK, 0, 0, null);
+
+        int channel = Datagrams.channel(datagram);
+        Window window = channel == Delivery.MAX_ORDERED_CHANNELS ? unordered : ordered[channel];
+        if (window == null)
+            window = ordered[channel] = new Window(true);
+        window.receive(Datagrams.channelSequence(datagram), message, receiver);
+    }
+
+    /**
+     * Notes a received sequence number for the acks sent back
+     */
+    private void record(int seq){
+        if (!received){
+            received = true;
+            remoteSequence = seq;
+            receivedBits = 0;
+            return;
+        }
+
+        int distance = seq - remoteSequence;
+        if (distance > 0){
+            receivedBits = distance > 32 ? 0 : (receivedBits << distance) | (1 << (distance - 1));
+            if (distance == 32)
+                receivedBits = 1 << 31;
+            remoteSequence = seq;
+        } else if (distance < 0 && distance >= -32){
+            receivedBits |= 1 << (-distance - 1);
+        }
+    }
+
+    /**
+     * Drops pending messages the other side has acknowledged, and samples
+     * the round trip time from the ones that weren't retransmitted
+     */
+    private void acknowledged(int ack, int ackBits){
+        if (pending.isEmpty())
+            return;
+
+        long now = System.nanoTime();
+        for (int i = 0; i <= 32; i++){
+            if (i > 0 && (ackBits & (1 << (i - 1))) == 0)
+                continue;
+            Pending p = pending.remove(ack - i);
+            if (p != null && p.transmissions == 1)
+                sampleRtt(now - p.sentAt);
+        }
+    }
+
+    private void sampleRtt(long rtt){
+        if (srtt < 0){
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+        rto = Math.max(MIN_RTO, Math.min(MAX_RTO, srtt + 4 * rttvar));
+    }
+
+    /**
+     * Resends reliable messages whose retransmit timeout ran out, backing off
+     * for each retry, and sends a bare ack if one has been owed for too long
+     * @throws IOException If a datagram can't be sent, or a reliable message
+     * ran out of transmissions and the session was closed
+     */
+    public synchronized void tick() throws IOException {
+        if (closed)
+            return;
+        long now = System.nanoTime();
+        if (!pending.isEmpty()){
+            Iterator<Pending> it = pending.values().iterator();
+            while (it.hasNext()){
+                Pending p = it.next();
+                long timeout = Math.min(MAX_RTO, rto << Math.min(p.transmissions - 1, 16));
+                if (now - p.sentAt >= timeout){
+                    it.remove();
+                    expired.add(p);
+                }
+            }
+
+            for (Pending p : expired){
+                if (p.transmissions >= MAX_TRANSMISSIONS){
+                    // the receiver's channel would wait for this message forever
+                    lost++;
+                    close();
+                    throw new ConnectException("Reliable message not acknowledged after " 
+                            + MAX_TRANSMISSIONS + " transmissions");
+                }
+            }
+            for (Pending p : expired){
+                retransmits++;
+                transmit(p);
+            }
+            expired.clear();
+        }
+
+        if (ackOwed && now - ackOwedSince >= ACK_DELAY)
+            transmit(Datagrams.ACK, 0, 0, null);
+    }
+
+    /**
+     * Closes the session, dropping everything waiting for an ack. Nothing
+     * can be sent or received afterwards.
+     */
+    public synchronized void close(){
+        closed = true;
+        pending.clear();
+        expired.clear();
+        unordered.ahead.clear();
+        for (Window window : ordered){
+            if (window != null)
+                window.ahead.clear();
+        }
+    }
+    
+    /**
+     * Returns whether the session was closed, e.g. because the other side
+     * stopped acknowledging reliable messages
+     * @return Whether the session is closed
+     */
+    public synchronized boolean isClosed(){
+        return closed;
+    }
+
+    /**
+     * Getter for the smoothed round trip time of reliable messages
+     * @return The round trip time in nanoseconds, or -1 before the first ack
+     */
+    public synchronized long getRoundTripTime(){
+        return srtt;
+    }
+
+    /**
+     * Getter for the current retransmit timeout
+     * @return The timeout in nanoseconds
+     */
+    public synchronized long getRetransmitTimeout(){
+        return rto;
+    }
+
+    /**
+     * Getter for the number of reliable messages waiting for an ack
+     * @return The messages in flight
+     */
+    public synchronized int getInFlight(){
+        return pending.size();
+    }
+
+    /**
+     * Getter for the number of retransmissions
+     * @return The number of resent datagrams
+     */
+    public synchronized long getRetransmitCount(){
+        return retransmits;
+    }
+
+    /**
+     * Getter for the number of reliable messages given up on after
+     * <code>MAX_TRANSMISSIONS</code> attempts, which closes the session
+     * @return The number of lost messages
+     */
+    public synchronized long getLostCount(){
+        return lost;
+    }
+
+    /**
+     * Getter for the number of stale unreliable messages dropped
+     * @return The number of dropped messages
+     */
+    public long getDroppedCount(){
+        return unreliable.getDroppedCount();
+    }
+}
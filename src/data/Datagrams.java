@@ -0,0 +1,153 @@
+
+package data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of the datagrams sent over the optional UDP channel. Each one holds
+ * at most one message, framed exactly like on the TCP connection, behind a
+ * header:
+ * <pre>
+ *   long  token            identifies the client to the server, 0 from the server
+ *   int   sequence         increases with every datagram the sender sends
+ *   int   ack              newest sequence received from the other side
+ *   int   ackBits          bit i set if ack - 1 - i was received too
+ *   byte  kind             HELLO, UNRELIABLE, RELIABLE or ACK
+ *   byte  channel          ordered channel, 255 for unordered reliable messages
+ *   int   channelSequence  position of a reliable message within its channel
+ *   frame                  as written by <code>Wire</code>, missing for HELLO and ACK
+ * </pre>
+ * Clients send a HELLO so the server learns (and NATs keep open) the address
+ * to send back to. ACK datagrams only carry acknowledgements, for when there
+ * is nothing else to send them with.
+ * @author jaron
+ */
+public final class Datagrams {
+    
+    public static final byte HELLO = 0;
+    public static final byte UNRELIABLE = 1;
+    public static final byte RELIABLE = 2;
+    public static final byte ACK = 3;
+    
+    public static final int HEADER_SIZE = 26;
+    // the largest payload a UDP datagram can carry, anything near it will be fragmented
+    public static final int MAX_DATAGRAM_SIZE = 65507;
+    
+    private Datagrams(){  }
+    
+    /**
+     * Builds a datagram
+     * @param token The client's token, 0 when sent by the server
+     * @param sequence The sender's sequence number for this datagram
+     * @param ack The newest sequence number received from the other side
+     * @param ackBits Which of the 32 sequence numbers before <code>ack</code> were received
+     * @param kind The kind of datagram
+     * @param channel The channel of a reliable message
+     * @param channelSequence The position of a reliable message within its channel
+     * @param frame The encoded message, or null
+     * @return The datagram, ready to send
+     * @throws IOException If the message doesn't fit in a datagram
+     */
+    public static ByteBuffer encode(long token, int sequence, int ack, int ackBits, byte kind, 
+            int channel, int channelSequence, byte[] frame) throws IOException {
+        int length = HEADER_SIZE + (frame == null ? 0 : frame.length);
+        if (length > MAX_DATAGRAM_SIZE)
+            throw new IOException("Message is too large for a datagram (" + length + " bytes)");
+        
+        ByteBuffer datagram = ByteBuffer.allocate(length);
+        datagram.putLong(token).putInt(sequence).putInt(ack).putInt(ackBits)
+                .put(kind).put((byte) channel).putInt(channelSequence);
+        if (frame != null)
+            datagram.put(frame);
+        datagram.flip();
+        return datagram;
+    }
+    
+    /**
+     * Reads the token of a received datagram
+     * @param datagram The received datagram, flipped for reading
+     * @return The token
+     */
+    public static long token(ByteBuffer datagram){
+        return datagram.getLong(datagram.position());
+    }
+    
+    /**
+     * Reads the sequence number of a received datagram
+     * @param datagram The received datagram, flipped for reading
+     * @return The sequence number
+     */
+    public static int sequence(ByteBuffer datagram){
+        return datagram.getInt(datagram.position() + 8);
+    }
+    
+    /**
+     * Reads the acknowledged sequence number of a received datagram
+     * @param datagram The received datagram, flipped for reading
+     * @return The newest sequence number the sender has received
+     */
+    public static int ack(ByteBuffer datagram){
+        return datagram.getInt(datagram.position() + 12);
+    }
+    
+    /**
+     * Reads the acknowledgement bitfield of a received datagram
+     * @param datagram The received datagram, flipped for reading
+     * @return The bits for the 32 sequence numbers before <code>ack()</code>
+     */
+    public static int ackBits(ByteBuffer datagram){
+        return datagram.getInt(datagram.position() + 16);
+    }
+    
+    /**
+     * Reads the kind of a received datagram
+     * @param datagram The received datagram, flipped for reading
+     * @return The kind
+     */
+    public static byte kind(ByteBuffer datagram){
+        return datagram.get(datagram.position() + 20);
+    }
+    
+    /**
+     * Reads the channel of a received datagram
+     * @param datagram The received datagram, flipped for reading
+     * @return The channel
+     */
+    public static int channel(ByteBuffer datagram){
+        return datagram.get(datagram.position() + 21) & 0xFF;
+    }
+    
+    /**
+     * Reads the channel sequence number of a received datagram
+     * @param datagram The received datagram, flipped for reading
+     * @return The position of the message within its channel
+     */
+    public static int channelSequence(ByteBuffer datagram){
+        return datagram.getInt(datagram.position() + 22);
+    }
+    
+    /**
+     * Decodes the message in a received datagram
+     * @param datagram The received datagram, flipped for reading and backed by an array
+     * @param codec The codec used for the message body
+     * @param opcodes The local opcode table the sender encoded against
+     * @return The message, or null if the datagram doesn't carry one
+     * @throws IOException If the datagram is truncated or can't be decoded
+     */
+    public static Data decode(ByteBuffer datagram, Codec codec, OpcodeTable opcodes) throws IOException {
+        if (datagram.remaining() < HEADER_SIZE)
+            throw new IOException("Truncated datagram");
+        if (datagram.remaining() == HEADER_SIZE)
+            return null;
+        if (datagram.remaining() < HEADER_SIZE + Wire.LENGTH_SIZE)
+            throw new IOException("Truncated datagram");
+        
+        int start = datagram.position() + HEADER_SIZE;
+        int length = datagram.getInt(start);
+        Wire.checkLength(length);
+        if (length != datagram.limit() - start - Wire.LENGTH_SIZE)
+            throw new IOException("Truncated datagram");
+        return Wire.decode(datagram.array(), datagram.arrayOffset() + start + Wire.LENGTH_SIZE, length, codec, opcodes);
+    }
+}
@@ -0,0 +1,99 @@
+
+package data;
+
+/**
+ * How a message is delivered, chosen per message when sending. TCP is the
+ * default and what plain <code>sendMessage()</code> uses. The other modes
+ * need the UDP channel to be open:
+ * <ul>
+ * <li><code>UNRELIABLE</code> may be lost, stale messages are dropped</li>
+ * <li><code>RELIABLE</code> is retransmitted until acknowledged, but handled
+ * in whatever order it arrives</li>
+ * <li><code>ordered(channel)</code> is retransmitted and handled in order
+ * within its channel. A lost message only holds up its own channel, so chat
+ * and inventory updates on separate channels don't delay each other or
+ * unreliable movement updates.</li>
+ * </ul>
+ * @author jaron
+ */
+public final class Delivery {
+    
+    // ordered channels are 0-254, 255 on the wire marks reliable unordered messages
+    public static final int MAX_ORDERED_CHANNELS = 255;
+    
+    public static final Delivery TCP = new Delivery(false, false, false, -1);
+    public static final Delivery UNRELIABLE = new Delivery(true, false, false, -1);
+    public static final Delivery RELIABLE = new Delivery(true, true, false, MAX_ORDERED_CHANNELS);
+    
+    private static final Delivery[] ORDERED = new Delivery[MAX_ORDERED_CHANNELS];
+    static {
+        for (int i = 0; i < ORDERED.length; i++){
+            ORDERED[i] = new Delivery(true, true, true, i);
+        }
+    }
+    
+    private final boolean udp;
+    private final boolean reliable;
+    private final boolean ordered;
+    private final int channel;
+    
+    private Delivery(boolean udp, boolean reliable, boolean ordered, int channel){
+        this.udp = udp;
+        this.reliable = reliable;
+        this.ordered = ordered;
+        this.channel = channel;
+    }
+    
+    /**
+     * Reliable, ordered delivery over UDP on one of several independent channels
+     * @param channel The channel, from 0 to 254
+     * @return The delivery mode
+     */
+    public static Delivery ordered(int channel){
+        if (channel < 0 || channel >= MAX_ORDERED_CHANNELS)
+            throw new IllegalArgumentException("Channel must be between 0 and " + (MAX_ORDERED_CHANNELS - 1));
+        return ORDERED[channel];
+    }
+    
+    /**
+     * Returns whether the message goes over the UDP channel
+     * @return Whether this is not TCP
+     */
+    public boolean isUdp() {
+        return udp;
+    }
+    
+    /**
+     * Returns whether the message is retransmitted until acknowledged
+     * @return Whether delivery is guaranteed
+     */
+    public boolean isReliable() {
+        return reliable;
+    }
+    
+    /**
+     * Returns whether messages are handled in the order they were sent
+     * @return Whether this is an ordered channel
+     */
+    public boolean isOrdered() {
+        return ordered;
+    }
+    
+    /**
+     * Getter for the ordered channel
+     * @return The channel number, <code>MAX_ORDERED_CHANNELS</code> for
+     * unordered reliable messages and -1 otherwise
+     */
+    public int getChannel() {
+        return channel;
+    }
+    
+    @Override
+    public String toString(){
+        if (!udp)
+            return "TCP";
+        if (!reliable)
+            return "UNRELIABLE";
+        return ordered ? "ORDERED(" + channel + ")" : "RELIABLE";
+    }
+}
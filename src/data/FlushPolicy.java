@@ -0,0 +1,136 @@
+
+package data;
+
+import java.util.*;
+
+/**
+ * Decides when messages written to a connection are flushed to the network.
+ * The default, <code>immediate()</code>, flushes every message on its own.
+ * A <code>batched()</code> policy lets messages collect in a buffer until it
+ * reaches <code>maxBytes</code>, the oldest unflushed message is
+ * <code>maxDelayMicros</code> old, or <code>flush()</code> is called, so a
+ * handler sending several small replies produces one TCP segment instead of
+ * several. Messages whose identifier is marked as flush-now, like PING, are
+ * never held back.
+ * @author jaron
+ */
+public class FlushPolicy {
+    
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024;
+    public static final long DEFAULT_MAX_DELAY_MICROS = 500;
+    
+    private final int maxBytes;
+    private final long maxDelayMicros;
+    private boolean tcpNoDelay;
+    private final Set<String> flushNow = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    
+    /**
+     * Constructor for a FlushPolicy
+     * @param maxBytes The number of unflushed bytes that triggers a flush, 0 to flush every message
+     * @param maxDelayMicros The longest a message waits to be flushed, in microseconds
+     * @param tcpNoDelay Whether to disable Nagle's algorithm on the socket
+     */
+    public FlushPolicy(int maxBytes, long maxDelayMicros, boolean tcpNoDelay){
+        this.maxBytes = Math.max(0, maxBytes);
+        this.maxDelayMicros = Math.max(0, maxDelayMicros);
+        this.tcpNoDelay = tcpNoDelay;
+    }
+    
+    /**
+     * The original behaviour: every message is flushed as soon as it is written
+     * @return A policy that never batches
+     */
+    public static FlushPolicy immediate(){
+        return new FlushPolicy(0, 0, false);
+    }
+    
+    /**
+     * Batching with the default size and deadline. Batching already coalesces
+     * small messages, so Nagle's algorithm is turned off and the timing
+     * messages (PING, PONG, CLOCK) are flushed right away.
+     * @return A batching policy
+     */
+    public static FlushPolicy batched(){
+        return batched(DEFAULT_MAX_BYTES, DEFAULT_MAX_DELAY_MICROS);
+    }
+    
+    /**
+     * Batching with the given size and deadline, see <code>batched()</code>
+     * @param maxBytes The number of unflushed bytes that triggers a flush
+     * @param maxDelayMicros The longest a message waits to be flushed, in microseconds
+     * @return A batching policy
+     */
+    public static FlushPolicy batched(int maxBytes, long maxDelayMicros){
+        FlushPolicy policy = new FlushPolicy(maxBytes, maxDelayMicros, true);
+        policy.addFlushNow("PING", "PONG", "CLOCK");
+        return policy;
+    }
+    
+    /**
+     * Marks message identifiers that are always flushed as soon as they are written
+     * @param identifiers The latency critical identifiers
+     */
+    public void addFlushNow(String... identifiers){
+        for (String identifier : identifiers){
+            flushNow.add(identifier);
+        }
+    }
+    
+    /**
+     * Setter for the TCP_NODELAY socket option applied to new connections
+     * @param tcpNoDelay Whether to disable Nagle's algorithm
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+    
+    /**
+     * Getter for the TCP_NODELAY socket option
+     * @return Whether Nagle's algorithm is disabled
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+    
+    /**
+     * Getter for the size threshold
+     * @return The number of unflushed bytes that triggers a flush
+     */
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+    
+    /**
+     * Getter for the deadline
+     * @return The longest a message waits to be flushed, in microseconds
+     */
+    public long getMaxDelayMicros() {
+        return maxDelayMicros;
+    }
+    
+    /**
+     * Returns whether every message is flushed on its own
+     * @return Whether this policy never batches
+     */
+    public boolean isImmediate(){
+        return maxBytes == 0 || maxDelayMicros == 0;
+    }
+    
+    /**
+     * Returns whether a message has to be flushed as soon as it is written
+     * @param data The message
+     * @return Whether the message can't wait for the rest of its batch
+     */
+    public boolean shouldFlush(Data data){
+        return shouldFlush(data.id());
+    }
+    
+    /**
+     * Returns whether a message has to be flushed as soon as it is written
+     * @param id The message identifier
+     * @return Whether the message can't wait for the rest of its batch
+     */
+    public boolean shouldFlush(String id){
+        return isImmediate() || (!flushNow.isEmpty() && flushNow.contains(id));
+    }
+}
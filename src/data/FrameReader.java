@@ -0,0 +1,47 @@
+
+package data;
+
+import java.io.*;
+
+/**
+ * Reads frames off a stream into a reused array, for the blocking
+ * transport's reader threads. Frames over 64KB get an array of their own
+ * so a single large message doesn't stay allocated.
+ * @author jaron
+ */
+public class FrameReader {
+
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    private byte[] buffer = new byte[1024];
+    private byte[] frame;
+
+    /**
+     * Reads the next frame, leaving its body in <code>array()</code> at offset 0
+     * @param in The stream to read from
+     * @return The length of the frame body
+     * @throws IOException If the stream ends or the length is invalid
+     */
+    public int read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        Wire.checkLength(length);
+        if (length <= buffer.length){
+            frame = buffer;
+        } else if (length <= MAX_RETAINED_BUFFER){
+            buffer = new byte[Math.max(length, Math.min(buffer.length * 2, MAX_RETAINED_BUFFER))];
+            frame = buffer;
+        } else {
+            frame = new byte[length];
+        }
+        in.readFully(frame, 0, length);
+        return length;
+    }
+
+    /**
+     * Returns the array holding the last frame read
+     * @return The frame body, valid until the next read
+     */
+    public byte[] array(){
+        return frame;
+    }
+}
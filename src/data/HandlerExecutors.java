@@ -0,0 +1,174 @@
+
+package data;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Factory methods for the executors that run response handlers on the Server
+ * and Client. Pass the result to <code>setExecutor()</code> on either one.
+ * @author jaron
+ */
+public final class HandlerExecutors {
+    
+    private HandlerExecutors(){  }
+    
+    /**
+     * The original behaviour: a new thread is started for every message.
+     * @return An executor that starts a thread per task
+     */
+    public static Executor threadPerTask(){
+        return new Executor(){
+            @Override
+            public void execute(Runnable task) {
+                new Thread(task).start();
+            }
+        };
+    }
+    
+    /**
+     * A work-stealing pool with a bounded number of pending handlers.
+     * @param parallelism The number of worker threads
+     * @param maxPending The maximum number of handlers running or waiting to run
+     * @param policy What to do with a message once <code>maxPending</code> is reached
+     * @return The bounded executor
+     */
+    public static BoundedExecutor workStealingPool(int parallelism, int maxPending, OverflowPolicy policy){
+        return new BoundedExecutor(new ForkJoinPool(parallelism, 
+                ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true), maxPending, policy);
+    }
+    
+    /**
+     * A work-stealing pool sized to the number of available processors.
+     * @param maxPending The maximum number of handlers running or waiting to run
+     * @param policy What to do with a message once <code>maxPending</code> is reached
+     * @return The bounded executor
+     */
+    public static BoundedExecutor workStealingPool(int maxPending, OverflowPolicy policy){
+        return workStealingPool(Runtime.getRuntime().availableProcessors(), maxPending, policy);
+    }
+    
+    /**
+     * Runs every handler on its own virtual thread. Requires JDK 21 or newer.
+     * @return The virtual thread executor
+     * @throws UnsupportedOperationException If virtual threads are not available
+     */
+    public static Executor virtualThreads(){
+        try {
+            // looked up reflectively so the library still builds and runs on older JDKs
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21 or newer", e);
+        }
+    }
+    
+    /**
+     * Runs every handler on its own virtual thread, with a limit on how many
+     * can be pending at once. Requires JDK 21 or newer.
+     * @param maxPending The maximum number of handlers running or waiting to run
+     * @param policy What to do with a message once <code>maxPending</code> is reached
+     * @return The bounded executor
+     * @throws UnsupportedOperationException If virtual threads are not available
+     */
+    public static BoundedExecutor virtualThreads(int maxPending, OverflowPolicy policy){
+        return new BoundedExecutor(virtualThreads(), maxPending, policy);
+    }
+    
+    /**
+     * Returns whether the running JVM supports virtual threads
+     * @return Whether <code>virtualThreads()</code> can be used
+     */
+    public static boolean virtualThreadsAvailable(){
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Executor wrapper that limits the number of tasks in flight and applies
+     * an OverflowPolicy to anything submitted past that limit.
+     */
+    public static class BoundedExecutor implements Executor {
+        private final Executor delegate;
+        private final Semaphore permits;
+        private final int maxPending;
+        private final OverflowPolicy policy;
+        private final LongAdder rejected = new LongAdder();
+        
+        /**
+         * Constructor for the BoundedExecutor
+         * @param delegate The executor that actually runs the tasks
+         * @param maxPending The maximum number of tasks running or waiting to run
+         * @param policy What to do with a task once <code>maxPending</code> is reached
+         */
+        public BoundedExecutor(Executor delegate, int maxPending, OverflowPolicy policy){
+            this.delegate = delegate;
+            this.permits = new Semaphore(maxPending);
+            this.maxPending = maxPending;
+            this.policy = policy;
+        }
+        
+        @Override
+        public void execute(Runnable task) {
+            if (!permits.tryAcquire()){
+                switch (policy){
+                    case BLOCK:
+                        try {
+                            permits.acquire();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            rejected.increment();
+                            throw new RejectedExecutionException("Interrupted while waiting for a free slot");
+                        }
+                        break;
+                    case CALLER_RUNS:
+                        task.run();
+                        return;
+                    case DISCARD:
+                        rejected.increment();
+                        return;
+                    case ABORT:
+                    default:
+                        rejected.increment();
+                        throw new RejectedExecutionException("Handler queue is full");
+                }
+            }
+            
+            try {
+                delegate.execute(new Runnable(){
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                rejected.increment();
+                throw e;
+            }
+        }
+        
+        /**
+         * Returns the number of tasks currently running or waiting to run
+         * @return The number of pending tasks
+         */
+        public int getPending(){
+            return maxPending - permits.availablePermits();
+        }
+        
+        /**
+         * Returns the number of tasks dropped or rejected because the limit was reached
+         * @return The number of rejected tasks
+         */
+        public long getRejectedCount(){
+            return rejected.sum();
+        }
+    }
+}
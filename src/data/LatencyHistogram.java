@@ -0,0 +1,150 @@
+
+package data;
+
+/**
+ * A small fixed-size histogram for round trip times. Samples are kept in
+ * microsecond buckets that double in width every 16 buckets, so percentiles
+ * are within about 6% of the real value while recording stays a couple of
+ * array operations with no allocation. Also tracks the max, an exponentially
+ * weighted moving average and the RFC 3550 style jitter between samples.
+ * @author jaron
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values below this each get their own bucket
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int LINEAR_BITS = 5;
+    private static final int BUCKETS = LINEAR_LIMIT + (64 - LINEAR_BITS) * SUB_BUCKETS;
+
+    // same weights TCP uses for its smoothed RTT and RTT variance
+    private static final double EWMA_WEIGHT = 1.0 / 8;
+    private static final double JITTER_WEIGHT = 1.0 / 16;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long max;
+    private long last = -1;
+    private double ewma;
+    private double jitter;
+
+    /**
+     * Records a round trip time
+     * @param nanos The round trip time in nanoseconds
+     */
+    public synchronized void record(long nanos){
+        long micros = Math.max(0, nanos / 1000);
+        counts[bucket(micros)]++;
+        count++;
+        if (micros > max)
+            max = micros;
+
+        if (last < 0){
+            ewma = micros;
+        } else {
+            ewma += (micros - ewma) * EWMA_WEIGHT;
+            jitter += (Math.abs(micros - last) - jitter) * JITTER_WEIGHT;
+        }
+        last = micros;
+    }
+
+    /**
+     * Returns the value below which the given fraction of samples fall
+     * @param quantile The fraction, i.e. 0.99 for the 99th percentile
+     * @return The percentile in microseconds, 0 if nothing was recorded
+     */
+    public synchronized long percentile(double quantile){
+        if (count == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++){
+            seen += counts[i];
+            if (seen >= target)
+                return Math.min(max, upperBound(i));
+        }
+        return max;
+    }
+
+    /**
+     * Getter for the number of samples
+     * @return The number of recorded round trips
+     */
+    public synchronized long getCount(){
+        return count;
+    }
+
+    /**
+     * Getter for the largest sample
+     * @return The max round trip time in microseconds
+     */
+    public synchronized long getMax(){
+        return max;
+    }
+
+    /**
+     * Getter for the most recent sample
+     * @return The last round trip time in microseconds, or 0
+     */
+    public synchronized long getLast(){
+        return Math.max(0, last);
+    }
+
+    /**
+     * Getter for the moving average, which weighs recent samples the most
+     * @return The averaged round trip time in microseconds
+     */
+    public synchronized long getAverage(){
+        return Math.round(ewma);
+    }
+
+    /**
+     * Getter for the jitter, the smoothed difference between consecutive samples
+     * @return The jitter in microseconds
+     */
+    public synchronized long getJitter(){
+        return Math.round(jitter);
+    }
+
+    /**
+     * Takes a serializable copy of the current statistics
+     * @return The statistics
+     */
+    public synchronized PingStats stats(){
+        return new PingStats(count, getLast(), percentile(0.5), percentile(0.99), max,
+                getAverage(), getJitter());
+    }
+
+    /**
+     * Clears all samples
+     */
+    public synchronized void reset(){
+        java.util.Arrays.fill(counts, 0);
+        count = 0;
+        max = 0;
+        last = -1;
+        ewma = 0;
+        jitter = 0;
+    }
+
+    private static int bucket(long micros){
+        if (micros < LINEAR_LIMIT)
+            return (int) micros;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - LINEAR_BITS) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket){
+        if (bucket < LINEAR_LIMIT)
+            return bucket;
+
+        int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_BITS;
+        int sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((SUB_BUCKETS + sub) * width) + width - 1;
+    }
+}
@@ -0,0 +1,29 @@
+
+package data;
+
+/**
+ * Levels for the Server and Client logs, from the most to the least verbose
+ * @author jaron
+ */
+public enum LogLevel {
+    /**
+     * Per-message detail, off by default
+     */
+    DEBUG,
+    /**
+     * Normal operation, i.e. clients registering
+     */
+    INFO,
+    /**
+     * Something unexpected that was recovered from
+     */
+    WARN,
+    /**
+     * Something failed
+     */
+    ERROR,
+    /**
+     * Nothing is logged
+     */
+    OFF
+}
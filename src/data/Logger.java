@@ -0,0 +1,37 @@
+
+package data;
+
+import java.util.function.Supplier;
+
+/**
+ * Where the Server and Client send their log lines, see
+ * <code>ConsoleLogger</code> and <code>AsyncLogger</code>
+ * @author jaron
+ */
+public interface Logger {
+
+    /**
+     * Returns whether lines of a level are logged, so expensive messages
+     * aren't built for nothing
+     * @param level The level
+     * @return Whether the level is enabled
+     */
+    public boolean isEnabled(LogLevel level);
+
+    /**
+     * Logs a line
+     * @param level The line's level
+     * @param message The line
+     */
+    public void log(LogLevel level, String message);
+
+    /**
+     * Logs a line that is only built if its level is enabled
+     * @param level The line's level
+     * @param message Builds the line
+     */
+    public default void log(LogLevel level, Supplier<String> message){
+        if (isEnabled(level))
+            log(level, message.get());
+    }
+}
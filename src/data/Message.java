@@ -0,0 +1,39 @@
+
+package data;
+
+import java.lang.annotation.*;
+
+/**
+ * Declares a class as a message type. At build time the
+ * <code>codegen.MessageProcessor</code> annotation processor generates a
+ * <code>MessageCodec</code> for it, named after the class with a Codec
+ * suffix, and a typed handler interface with a Handler suffix. Messages
+ * are written field by field in declaration order with a
+ * <code>MessageWriter</code>, without type tags or reflection:
+ * <pre>
+ *   &#64;Message("MOVE")
+ *   public class Move {
+ *       public int entity;
+ *       public float x, y;
+ *   }
+ *
+ *   registerHandler(MoveCodec.ID, MoveCodec.handler((move, socket) -&gt; ...));
+ *   client.sendMessage(MoveCodec.INSTANCE.write(move));
+ * </pre>
+ * Fields can be primitives, Strings, byte arrays, enums or other message
+ * types, and must not be private, static or final; the class needs a
+ * constructor without parameters. Both ends must use the same version of
+ * the class.
+ * @author jaron
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface Message {
+
+    /**
+     * The message identifier
+     * @return The identifier, or empty for the upper-cased class name
+     */
+    String value() default "";
+}
@@ -0,0 +1,39 @@
+
+package data;
+
+/**
+ * Interface implemented by the codecs generated for <code>@Message</code>
+ * classes, converting a message object to and from a MessageWriter message.
+ * @author jaron
+ * @param <T> The message class
+ */
+public interface MessageCodec<T> {
+
+    /**
+     * Returns the identifier messages are sent with
+     * @return The message identifier
+     */
+    public String id();
+
+    /**
+     * Writes a message into the calling thread's MessageWriter
+     * @param message The message to write
+     * @return The writer, ready to be sent
+     */
+    public MessageWriter write(T message);
+
+    /**
+     * Reads a received message into a new object
+     * @param reader The received message
+     * @return The message object
+     */
+    public T read(MessageReader reader);
+
+    /**
+     * Reads a received message into an existing object, without allocating
+     * anything for fields of primitive or enum type
+     * @param reader The received message
+     * @param message The object to overwrite
+     */
+    public void read(MessageReader reader, T message);
+}
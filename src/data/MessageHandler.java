@@ -0,0 +1,20 @@
+
+package data;
+
+import java.net.Socket;
+
+/**
+ * Interface for handling messages built with a <code>MessageWriter</code>.
+ * Handlers run on the thread that read the message, so they must be quick
+ * and must not keep the reader, which is reused for the next message.
+ * @author jaron
+ */
+public interface MessageHandler {
+
+    /**
+     * Run user-defined code for a received message
+     * @param message The message, positioned at its first value
+     * @param socket The socket for the client/server
+     */
+    public void handle(MessageReader message, Socket socket);
+}
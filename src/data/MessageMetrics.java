@@ -0,0 +1,139 @@
+
+package data;
+
+import java.io.Serializable;
+
+/**
+ * A snapshot of the traffic and handler times for one message identifier.
+ * Handler times are in microseconds.
+ * @author jaron
+ */
+public class MessageMetrics implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String id;
+    private final long messagesIn;
+    private final long bytesIn;
+    private final long messagesOut;
+    private final long bytesOut;
+    private final long handled;
+    private final long handlerAverage;
+    private final long handlerP50;
+    private final long handlerP99;
+    private final long handlerMax;
+
+    /**
+     * Constructor for the MessageMetrics object
+     * @param id The message identifier
+     * @param messagesIn The number of messages received
+     * @param bytesIn The bytes received, including framing
+     * @param messagesOut The number of messages sent
+     * @param bytesOut The bytes sent, including framing
+     * @param handled The number of handler runs timed
+     * @param handlerAverage The moving average of the handler time
+     * @param handlerP50 The median handler time
+     * @param handlerP99 The 99th percentile handler time
+     * @param handlerMax The longest handler time
+     */
+    public MessageMetrics(String id, long messagesIn, long bytesIn, long messagesOut, long bytesOut,
+            long handled, long handlerAverage, long handlerP50, long handlerP99, long handlerMax){
+        this.id = id;
+        this.messagesIn = messagesIn;
+        this.bytesIn = bytesIn;
+        this.messagesOut = messagesOut;
+        this.bytesOut = bytesOut;
+        this.handled = handled;
+        this.handlerAverage = handlerAverage;
+        this.handlerP50 = handlerP50;
+        this.handlerP99 = handlerP99;
+        this.handlerMax = handlerMax;
+    }
+
+    /**
+     * Getter for the message identifier
+     * @return The identifier
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Getter for the number of messages received
+     * @return The messages received
+     */
+    public long getMessagesIn() {
+        return messagesIn;
+    }
+
+    /**
+     * Getter for the bytes received
+     * @return The bytes received, including framing
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * Getter for the number of messages sent, counting each recipient
+     * @return The messages sent
+     */
+    public long getMessagesOut() {
+        return messagesOut;
+    }
+
+    /**
+     * Getter for the bytes sent
+     * @return The bytes sent, including framing
+     */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * Getter for the number of handler runs
+     * @return The number of times the handler ran
+     */
+    public long getHandled() {
+        return handled;
+    }
+
+    /**
+     * Getter for the moving average handler time
+     * @return The average in microseconds
+     */
+    public long getHandlerAverage() {
+        return handlerAverage;
+    }
+
+    /**
+     * Getter for the median handler time
+     * @return The median in microseconds
+     */
+    public long getHandlerP50() {
+        return handlerP50;
+    }
+
+    /**
+     * Getter for the 99th percentile handler time
+     * @return The 99th percentile in microseconds
+     */
+    public long getHandlerP99() {
+        return handlerP99;
+    }
+
+    /**
+     * Getter for the longest handler time
+     * @return The max in microseconds
+     */
+    public long getHandlerMax() {
+        return handlerMax;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("%s in=%d (%dB) out=%d (%dB) handler avg=%.1fms p99=%.1fms max=%.1fms",
+                id, messagesIn, bytesIn, messagesOut, bytesOut,
+                handlerAverage / 1000.0, handlerP99 / 1000.0, handlerMax / 1000.0);
+    }
+}
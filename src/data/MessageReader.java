@@ -0,0 +1,243 @@
+
+package data;
+
+import java.io.*;
+
+/**
+ * Reads a message written by a <code>MessageWriter</code>, straight from the
+ * bytes it arrived in. The values have to be read in the order they were
+ * written. Readers are pooled per thread and handed to a
+ * <code>MessageHandler</code> already positioned at the first value; they are
+ * reused for the next message, so anything needed later has to be copied
+ * out. Reading primitives allocates nothing, <code>getString()</code>
+ * allocates only the returned string.
+ * @author jaron
+ */
+public final class MessageReader {
+
+    private static final ThreadLocal<MessageReader> readers = new ThreadLocal<MessageReader>(){
+        @Override
+        protected MessageReader initialValue() {
+            return new MessageReader();
+        }
+    };
+
+    private byte[] buffer;
+    private int position;
+    private int limit;
+    private int size;
+    private String id;
+    private int opcode;
+    private char[] chars = new char[64];
+
+    private MessageReader(){  }
+
+    /**
+     * Points the calling thread's reader at a frame body, i.e. everything
+     * after the length prefix, and reads its header
+     * @param buffer The buffer holding the frame
+     * @param offset The position of the frame body in the buffer
+     * @param length The length of the frame body
+     * @param opcodes The local opcode table the sender encoded against
+     * @return The reader, positioned at the first value
+     * @throws IOException If the header can't be read
+     */
+    public static MessageReader wrap(byte[] buffer, int offset, int length, OpcodeTable opcodes) throws IOException {
+        MessageReader reader = readers.get();
+        reader.buffer = buffer;
+        reader.position = offset;
+        reader.limit = offset + length;
+        reader.size = Wire.LENGTH_SIZE + length;
+        try {
+            if ((reader.getByte() & Wire.FLAG_RAW) == 0)
+                throw new StreamCorruptedException("Not a MessageWriter message");
+            reader.opcode = reader.getVarInt();
+            if (reader.opcode == OpcodeTable.NONE){
+                reader.id = reader.getString();
+            } else {
+                reader.id = opcodes == null ? null : opcodes.identifier(reader.opcode);
+                if (reader.id == null)
+                    throw new StreamCorruptedException("Unknown opcode " + reader.opcode);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new StreamCorruptedException("Truncated message header");
+        }
+        return reader;
+    }
+
+    /**
+     * Returns the message identifier
+     * @return The identifier
+     */
+    public String id(){
+        return id;
+    }
+
+    /**
+     * Returns the opcode the message was sent with
+     * @return The opcode, or <code>OpcodeTable.NONE</code> if it was sent by identifier
+     */
+    public int getOpcode(){
+        return opcode;
+    }
+
+    /**
+     * Returns the size of the message on the wire
+     * @return The size in bytes including the length prefix
+     */
+    public int getWireSize(){
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes left to read
+     * @return The remaining bytes
+     */
+    public int remaining(){
+        return limit - position;
+    }
+
+    private int need(int bytes){
+        if (bytes < 0)
+            throw new IndexOutOfBoundsException("Negative length in " + id);
+        if (limit - position < bytes)
+            throw new IndexOutOfBoundsException("Read past the end of " + id);
+        int pos = position;
+        position += bytes;
+        return pos;
+    }
+
+    public byte getByte(){
+        return buffer[need(1)];
+    }
+
+    public boolean getBoolean(){
+        return getByte() != 0;
+    }
+
+    public short getShort(){
+        int pos = need(2);
+        return (short) ((buffer[pos] << 8) | (buffer[pos + 1] & 0xFF));
+    }
+
+    public int getInt(){
+        int pos = need(4);
+        return (buffer[pos] << 24) | ((buffer[pos + 1] & 0xFF) << 16)
+                | ((buffer[pos + 2] & 0xFF) << 8) | (buffer[pos + 3] & 0xFF);
+    }
+
+    public long getLong(){
+        long high = getInt();
+        return (high << 32) | (getInt() & 0xFFFFFFFFL);
+    }
+
+    public float getFloat(){
+        return Float.intBitsToFloat(getInt());
+    }
+
+    public double getDouble(){
+        return Double.longBitsToDouble(getLong());
+    }
+
+    /**
+     * Reads an int written by <code>putVarInt</code>
+     * @return The value
+     */
+    public int getVarInt(){
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7){
+            int b = getByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IndexOutOfBoundsException("Malformed varint in " + id);
+    }
+
+    /**
+     * Reads a long written by <code>putVarLong</code>
+     * @return The value
+     */
+    public long getVarLong(){
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7){
+            int b = getByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IndexOutOfBoundsException("Malformed varint in " + id);
+    }
+
+    /**
+     * Reads a string written by <code>putString</code>
+     * @return The string
+     */
+    public String getString(){
+        int length = readChars();
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * Reads a string written by <code>putString</code> without allocating one
+     * @param into Where the characters are appended
+     * @return The builder
+     */
+    public StringBuilder getString(StringBuilder into){
+        int length = readChars();
+        return into.append(chars, 0, length);
+    }
+
+    /**
+     * Decodes a string into the scratch array
+     * @return The number of characters
+     */
+    private int readChars(){
+        int encoded = getVarInt();
+        int end = need(encoded) + encoded;
+        if (chars.length < encoded)
+            chars = new char[Math.max(encoded, chars.length * 2)];
+
+        int n = 0;
+        int pos = end - encoded;
+        while (pos < end){
+            int b = buffer[pos++] & 0xFF;
+            if (b < 0x80){
+                chars[n++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0 && pos < end){
+                chars[n++] = (char) (((b & 0x1F) << 6) | (buffer[pos++] & 0x3F));
+            } else if ((b & 0xF0) == 0xE0 && pos + 1 < end){
+                chars[n++] = (char) (((b & 0x0F) << 12) | ((buffer[pos] & 0x3F) << 6) | (buffer[pos + 1] & 0x3F));
+                pos += 2;
+            } else {
+                throw new IndexOutOfBoundsException("Malformed string in " + id);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Reads a byte array written by <code>putBytes</code>
+     * @return The bytes
+     */
+    public byte[] getBytes(){
+        int length = getVarInt();
+        // checked against the message before allocating
+        int pos = need(length);
+        byte[] bytes = new byte[length];
+        System.arraycopy(buffer, pos, bytes, 0, length);
+        return bytes;
+    }
+
+    /**
+     * Reads a byte array written by <code>putBytes</code> into an existing array
+     * @param into Where the bytes are copied, must have room for them
+     * @param offset Where in the array to copy them to
+     * @return The number of bytes read
+     */
+    public int getBytes(byte[] into, int offset){
+        int length = getVarInt();
+        System.arraycopy(buffer, need(length), into, offset, length);
+        return length;
+    }
+}
@@ -0,0 +1,278 @@
+
+package data;
+
+import java.util.Arrays;
+
+/**
+ * Builds a message out of primitive values, for messages sent often enough
+ * that boxing every value into a <code>Data</code> would matter, i.e. 60 Hz
+ * position updates. Values are written big-endian straight into a byte
+ * array kept by the writer, and are read back in the same order with a
+ * <code>MessageReader</code> by a <code>MessageHandler</code> registered
+ * for the identifier. Writers are pooled per thread: <code>get()</code>
+ * resets the calling thread's writer for a new message, so a message must
+ * be sent before the same thread starts the next one. Once the buffer has
+ * grown to fit the largest message, building and sending one allocates
+ * nothing.
+ * @author jaron
+ */
+public final class MessageWriter {
+
+    // room kept in front of the body for the length prefix, flags and opcode
+    private static final int HEADER_RESERVE = Wire.LENGTH_SIZE + 1 + 5;
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    private static final ThreadLocal<MessageWriter> writers = new ThreadLocal<MessageWriter>(){
+        @Override
+        protected MessageWriter initialValue() {
+            return new MessageWriter();
+        }
+    };
+
+    private byte[] buffer = new byte[256];
+    private int bodyStart;
+    private int position;
+    private String id;
+
+    private MessageWriter(){  }
+
+    /**
+     * Returns the calling thread's writer, emptied for a new message
+     * @param id The message identifier, i.e. "MOVE"
+     * @return The writer
+     */
+    public static MessageWriter get(String id){
+        MessageWriter writer = writers.get();
+        if (writer.buffer.length > MAX_RETAINED_BUFFER)
+            writer.buffer = new byte[256];
+        writer.id = id;
+        writer.bodyStart = HEADER_RESERVE;
+        writer.position = HEADER_RESERVE;
+        return writer;
+    }
+
+    /**
+     * Returns the message identifier
+     * @return The identifier
+     */
+    public String id(){
+        return id;
+    }
+
+    /**
+     * Returns the size of the values written so far
+     * @return The body size in bytes
+     */
+    public int size(){
+        return position - bodyStart;
+    }
+
+    private void ensureCapacity(int bytes){
+        if (position + bytes > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+    }
+
+    public MessageWriter putByte(int value){
+        ensureCapacity(1);
+        buffer[position++] = (byte) value;
+        return this;
+    }
+
+    public MessageWriter putBoolean(boolean value){
+        return putByte(value ? 1 : 0);
+    }
+
+    public MessageWriter putShort(int value){
+        ensureCapacity(2);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+        return this;
+    }
+
+    public MessageWriter putInt(int value){
+        ensureCapacity(4);
+        position = writeInt(buffer, position, value);
+        return this;
+    }
+
+    public MessageWriter putLong(long value){
+        ensureCapacity(8);
+        putInt((int) (value >>> 32));
+        return putInt((int) value);
+    }
+
+    public MessageWriter putFloat(float value){
+        return putInt(Float.floatToIntBits(value));
+    }
+
+    public MessageWriter putDouble(double value){
+        return putLong(Double.doubleToLongBits(value));
+    }
+
+    /**
+     * Writes an int using 1-5 bytes, smaller values taking fewer bytes
+     * @param value The value, treated as unsigned
+     * @return This writer
+     */
+    public MessageWriter putVarInt(int value){
+        ensureCapacity(5);
+        position = writeVarInt(buffer, position, value);
+        return this;
+    }
+
+    /**
+     * Writes a long using 1-10 bytes, smaller values taking fewer bytes
+     * @param value The value, treated as unsigned
+     * @return This writer
+     */
+    public MessageWriter putVarLong(long value){
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0){
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * Writes a string as its encoded length followed by its characters in
+     * modified UTF-8, the same encoding as <code>DataOutput.writeUTF</code>
+     * but without the 64K limit
+     * @param value The string, not null
+     * @return This writer
+     */
+    public MessageWriter putString(String value){
+        ensureCapacity(5 + 3 * value.length());
+        position = writeString(buffer, position, value);
+        return this;
+    }
+
+    /**
+     * Writes a byte array's length followed by its contents
+     * @param value The bytes
+     * @return This writer
+     */
+    public MessageWriter putBytes(byte[] value){
+        return putBytes(value, 0, value.length);
+    }
+
+    /**
+     * Writes a length followed by part of a byte array
+     * @param value The bytes
+     * @param offset Where the part starts
+     * @param length The number of bytes
+     * @return This writer
+     */
+    public MessageWriter putBytes(byte[] value, int offset, int length){
+        ensureCapacity(5 + length);
+        position = writeVarInt(buffer, position, length);
+        System.arraycopy(value, offset, buffer, position, length);
+        position += length;
+        return this;
+    }
+
+    /**
+     * Writes the frame header in front of the body for a receiver. The frame
+     * runs from the returned offset to <code>end()</code> in <code>array()</code>.
+     * Used by the Server and Client when sending.
+     * @param peerOpcodes The receiver's opcode table, or null if not known yet
+     * @return The offset the frame starts at
+     */
+    public int frame(OpcodeTable peerOpcodes){
+        int opcode = peerOpcodes == null ? OpcodeTable.NONE : peerOpcodes.opcode(id);
+        int headerSize = Wire.LENGTH_SIZE + 1 + varIntSize(opcode);
+        if (opcode == OpcodeTable.NONE)
+            headerSize += 5 + 3 * id.length();
+
+        // only happens when the identifier is sent, the body is moved back to make room
+        if (headerSize > bodyStart){
+            int shift = headerSize - bodyStart;
+            ensureCapacity(shift);
+            System.arraycopy(buffer, bodyStart, buffer, bodyStart + shift, position - bodyStart);
+            bodyStart += shift;
+            position += shift;
+        }
+
+        // the header is written to a scratch position first when its exact size isn't known
+        int start;
+        if (opcode == OpcodeTable.NONE){
+            byte[] header = new byte[headerSize];
+            int end = writeString(header, writeVarInt(header, 0, opcode), id);
+            start = bodyStart - end - 1 - Wire.LENGTH_SIZE;
+            System.arraycopy(header, 0, buffer, start + Wire.LENGTH_SIZE + 1, end);
+        } else {
+            start = bodyStart - varIntSize(opcode) - 1 - Wire.LENGTH_SIZE;
+            writeVarInt(buffer, start + Wire.LENGTH_SIZE + 1, opcode);
+        }
+        writeInt(buffer, start, position - start - Wire.LENGTH_SIZE);
+        buffer[start + Wire.LENGTH_SIZE] = (byte) Wire.FLAG_RAW;
+        return start;
+    }
+
+    /**
+     * Returns the array the frame is written in, valid until the next change
+     * @return The writer's buffer
+     */
+    public byte[] array(){
+        return buffer;
+    }
+
+    /**
+     * Returns where the frame ends in <code>array()</code>
+     * @return The offset after the last value
+     */
+    public int end(){
+        return position;
+    }
+
+    private static int writeInt(byte[] b, int pos, int value){
+        b[pos] = (byte) (value >>> 24);
+        b[pos + 1] = (byte) (value >>> 16);
+        b[pos + 2] = (byte) (value >>> 8);
+        b[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+    private static int writeVarInt(byte[] b, int pos, int value){
+        while ((value & ~0x7F) != 0){
+            b[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        b[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int varIntSize(int value){
+        int size = 1;
+        while ((value & ~0x7F) != 0){
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    private static int writeString(byte[] b, int pos, String value){
+        int length = value.length();
+        int encoded = 0;
+        for (int i = 0; i < length; i++){
+            char c = value.charAt(i);
+            encoded += c >= 1 && c <= 0x7F ? 1 : c <= 0x7FF ? 2 : 3;
+        }
+        pos = writeVarInt(b, pos, encoded);
+        for (int i = 0; i < length; i++){
+            char c = value.charAt(i);
+            if (c >= 1 && c <= 0x7F){
+                b[pos++] = (byte) c;
+            } else if (c <= 0x7FF){
+                b[pos++] = (byte) (0xC0 | (c >> 6));
+                b[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                b[pos++] = (byte) (0xE0 | (c >> 12));
+                b[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                b[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+}
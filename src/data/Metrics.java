@@ -0,0 +1,200 @@
+
+package data;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+
+/**
+ * Message and byte counters kept by the Server and Client, in total and per
+ * message identifier, along with handler times per identifier. Counters are
+ * LongAdders, so the threads recording them don't contend; getters read the
+ * current values without stopping anyone. Can be published as an MXBean.
+ * @author jaron
+ */
+public class Metrics implements MetricsMXBean {
+
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final ConcurrentHashMap<String, MessageStats> messages = new ConcurrentHashMap<>();
+
+    private ObjectName objectName;
+
+    private static class MessageStats {
+        final LongAdder messagesIn = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder messagesOut = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LatencyHistogram handlerTimes = new LatencyHistogram();
+    }
+
+    private MessageStats stats(String id){
+        MessageStats stats = messages.get(id);
+        if (stats == null)
+            stats = messages.computeIfAbsent(id, k -> new MessageStats());
+        return stats;
+    }
+
+    /**
+     * Counts a received message
+     * @param data The message, with its wire size set by the decoder
+     */
+    public void received(Data data){
+        received(data.id(), data.getWireSize());
+    }
+
+    /**
+     * Counts a received message
+     * @param id The message identifier
+     * @param bytes The message size including the length prefix
+     */
+    public void received(String id, int bytes){
+        messagesIn.increment();
+        bytesIn.add(bytes);
+        MessageStats stats = stats(id);
+        stats.messagesIn.increment();
+        stats.bytesIn.add(bytes);
+    }
+
+    /**
+     * Counts a message sent to one or more recipients
+     * @param data The message
+     * @param recipients The number of recipients it was queued for
+     * @param bytes The bytes sent to all of them together
+     */
+    public void sent(Data data, int recipients, long bytes){
+        sent(data.id(), recipients, bytes);
+    }
+
+    /**
+     * Counts a message sent to one or more recipients
+     * @param id The message identifier
+     * @param recipients The number of recipients it was queued for
+     * @param bytes The bytes sent to all of them together
+     */
+    public void sent(String id, int recipients, long bytes){
+        if (recipients <= 0)
+            return;
+        messagesOut.add(recipients);
+        bytesOut.add(bytes);
+        MessageStats stats = stats(id);
+        stats.messagesOut.add(recipients);
+        stats.bytesOut.add(bytes);
+    }
+
+    /**
+     * Records how long a message's handler took
+     * @param data The handled message
+     * @param nanos The handler time in nanoseconds
+     */
+    public void handled(Data data, long nanos){
+        handled(data.id(), nanos);
+    }
+
+    /**
+     * Records how long a message's handler took
+     * @param id The message identifier
+     * @param nanos The handler time in nanoseconds
+     */
+    public void handled(String id, long nanos){
+        stats(id).handlerTimes.record(nanos);
+    }
+
+    /**
+     * Counts messages that couldn't be sent or queued
+     * @param count The number of failed sends
+     */
+    public void sendFailed(int count){
+        if (count > 0)
+            sendFailures.add(count);
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    /**
+     * Takes a snapshot of every message identifier seen so far
+     * @return The metrics per identifier, sorted by identifier
+     */
+    @Override
+    public List<MessageMetrics> getMessageMetrics() {
+        ArrayList<MessageMetrics> all = new ArrayList<>(messages.size());
+        for (String id : new TreeSet<>(messages.keySet())){
+            all.add(getMessageMetrics(id));
+        }
+        return all;
+    }
+
+    /**
+     * Takes a snapshot of one message identifier
+     * @param id The message identifier
+     * @return The metrics, or null if the identifier hasn't been seen
+     */
+    public MessageMetrics getMessageMetrics(String id){
+        MessageStats stats = messages.get(id);
+        if (stats == null)
+            return null;
+        LatencyHistogram h = stats.handlerTimes;
+        synchronized (h) {
+            return new MessageMetrics(id, stats.messagesIn.sum(), stats.bytesIn.sum(),
+                    stats.messagesOut.sum(), stats.bytesOut.sum(), h.getCount(), h.getAverage(),
+                    h.percentile(0.5), h.percentile(0.99), h.getMax());
+        }
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server
+     * @param type The ObjectName type, i.e. "Server"
+     * @param name The ObjectName name, i.e. the port
+     * @throws JMException If the MXBean can't be registered
+     */
+    public synchronized void register(String type, String name) throws JMException {
+        if (objectName != null)
+            return;
+        ObjectName on = new ObjectName("SimpleJavaNetcodeLib:type=" + type + ",name=" + ObjectName.quote(name));
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        if (mbs.isRegistered(on))
+            mbs.unregisterMBean(on);
+        mbs.registerMBean(this, on);
+        objectName = on;
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server, if registered
+     */
+    public synchronized void unregister(){
+        if (objectName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {  }
+        objectName = null;
+    }
+}
@@ -0,0 +1,23 @@
+
+package data;
+
+import java.util.List;
+
+/**
+ * The message counters shared by the Server and Client, as published over JMX
+ * @author jaron
+ */
+public interface MetricsMXBean {
+
+    public long getMessagesIn();
+
+    public long getBytesIn();
+
+    public long getMessagesOut();
+
+    public long getBytesOut();
+
+    public long getSendFailures();
+
+    public List<MessageMetrics> getMessageMetrics();
+}
@@ -0,0 +1,113 @@
+
+package data;
+
+import java.util.*;
+
+/**
+ * Maps response identifiers to small integer opcodes. Each side compiles a
+ * table from its registered responses and sends the identifiers to the other
+ * side when the client registers, so messages can carry a varint opcode
+ * instead of the identifier and be dispatched with an array lookup.
+ * Identifiers are matched case-insensitively, like <code>registerResponse</code>.
+ * Opcode 0 is reserved for identifiers that are not in the table.
+ * @author jaron
+ */
+public final class OpcodeTable {
+    
+    public static final int NONE = 0;
+    
+    // index = opcode, index 0 is unused
+    private final String[] identifiers;
+    private final HashMap<String, Integer> opcodes = new HashMap<>();
+    
+    /**
+     * Constructor for the OpcodeTable, opcodes are assigned in iteration order
+     * @param identifiers The identifiers to put in the table
+     */
+    public OpcodeTable(Collection<String> identifiers){
+        this(new String[0], identifiers);
+    }
+    
+    private OpcodeTable(String[] existing, Collection<String> added){
+        ArrayList<String> all = new ArrayList<>(Arrays.asList(existing));
+        for (int i = 0; i < existing.length; i++){
+            index(existing[i], i + 1);
+        }
+        for (String id : added){
+            if (!opcodes.containsKey(normalize(id))){
+                all.add(id);
+                index(id, all.size());
+            }
+        }
+        this.identifiers = all.toArray(new String[0]);
+    }
+    
+    private void index(String id, int opcode){
+        opcodes.put(normalize(id), opcode);
+        opcodes.putIfAbsent(id, opcode);
+    }
+    
+    /**
+     * Returns a table with the given identifiers appended, keeping the opcodes
+     * of every identifier already in this table
+     * @param added The identifiers to add
+     * @return The extended table, or this table if nothing was added
+     */
+    public OpcodeTable extend(Collection<String> added){
+        OpcodeTable extended = new OpcodeTable(identifiers, added);
+        return extended.size() == size() ? this : extended;
+    }
+    
+    /**
+     * Returns the opcode for an identifier
+     * @param identifier The response identifier
+     * @return The opcode, or <code>NONE</code> if it is not in the table
+     */
+    public int opcode(String identifier){
+        Integer opcode = opcodes.get(identifier);
+        if (opcode == null)
+            opcode = opcodes.get(normalize(identifier));
+        return opcode == null ? NONE : opcode;
+    }
+    
+    /**
+     * Returns the identifier for an opcode
+     * @param opcode The opcode
+     * @return The identifier, or null if the opcode is not in the table
+     */
+    public String identifier(int opcode){
+        if (opcode <= NONE || opcode > identifiers.length)
+            return null;
+        return identifiers[opcode - 1];
+    }
+    
+    /**
+     * Returns the number of identifiers in the table, which is also the highest opcode
+     * @return The number of identifiers
+     */
+    public int size(){
+        return identifiers.length;
+    }
+    
+    /**
+     * Returns the identifiers in opcode order, as sent to the other side
+     * @return The identifiers in opcode order
+     */
+    public ArrayList<String> identifiers(){
+        return new ArrayList<>(Arrays.asList(identifiers));
+    }
+    
+    private static String normalize(String identifier){
+        return identifier.toUpperCase(Locale.ROOT);
+    }
+    
+    @Override
+    public boolean equals(Object o){
+        return o instanceof OpcodeTable && Arrays.equals(identifiers, ((OpcodeTable) o).identifiers);
+    }
+    
+    @Override
+    public int hashCode(){
+        return Arrays.hashCode(identifiers);
+    }
+}
@@ -0,0 +1,29 @@
+
+package data;
+
+/**
+ * What a bounded handler executor does with a task once its queue is full
+ * @author jaron
+ */
+public enum OverflowPolicy {
+    
+    /**
+     * Block the submitting thread (i.e. the listener) until there is room
+     */
+    BLOCK,
+    
+    /**
+     * Run the handler on the submitting thread instead
+     */
+    CALLER_RUNS,
+    
+    /**
+     * Silently drop the message
+     */
+    DISCARD,
+    
+    /**
+     * Throw a RejectedExecutionException back to the submitter
+     */
+    ABORT
+}
@@ -0,0 +1,104 @@
+
+package data;
+
+import java.io.Serializable;
+
+/**
+ * A snapshot of a client's round trip time statistics, taken from its
+ * <code>LatencyHistogram</code>. All times are in microseconds.
+ * @author jaron
+ */
+public class PingStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long samples;
+    private final long last;
+    private final long p50;
+    private final long p99;
+    private final long max;
+    private final long average;
+    private final long jitter;
+
+    /**
+     * Constructor for the PingStats object
+     * @param samples The number of round trips measured
+     * @param last The most recent round trip time
+     * @param p50 The median round trip time
+     * @param p99 The 99th percentile round trip time
+     * @param max The largest round trip time
+     * @param average The moving average of the round trip time
+     * @param jitter The smoothed variation between round trips
+     */
+    public PingStats(long samples, long last, long p50, long p99, long max, long average, long jitter){
+        this.samples = samples;
+        this.last = last;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.max = max;
+        this.average = average;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Getter for the number of samples
+     * @return The number of round trips measured
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * Getter for the last round trip time
+     * @return The most recent round trip time in microseconds
+     */
+    public long getLast() {
+        return last;
+    }
+
+    /**
+     * Getter for the median
+     * @return The median round trip time in microseconds
+     */
+    public long getP50() {
+        return p50;
+    }
+
+    /**
+     * Getter for the 99th percentile
+     * @return The 99th percentile round trip time in microseconds
+     */
+    public long getP99() {
+        return p99;
+    }
+
+    /**
+     * Getter for the max
+     * @return The largest round trip time in microseconds
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Getter for the moving average
+     * @return The averaged round trip time in microseconds
+     */
+    public long getAverage() {
+        return average;
+    }
+
+    /**
+     * Getter for the jitter
+     * @return The jitter in microseconds
+     */
+    public long getJitter() {
+        return jitter;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("avg=%.1fms p50=%.1fms p99=%.1fms max=%.1fms jitter=%.1fms (%d samples)",
+                average / 1000.0, p50 / 1000.0, p99 / 1000.0, max / 1000.0, jitter / 1000.0, samples);
+    }
+}
@@ -0,0 +1,93 @@
+
+package data;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Drops unreliable messages that arrive after a newer message of the same
+ * kind. Sequence numbers are tracked per opcode, so an old position update
+ * is dropped once a newer one has been handled, without affecting other
+ * message types. Messages sent by identifier, which all share opcode
+ * <code>NONE</code>, are tracked by identifier instead. Sequence numbers
+ * may wrap around.
+ * @author jaron
+ */
+public class SequenceFilter {
+    
+    private int[] last = new int[16];
+    private boolean[] seen = new boolean[16];
+    private long dropped;
+    
+    // identifiers tracked for messages without an opcode, any more aren't filtered
+    private static final int MAX_IDENTIFIERS = 256;
+    private final HashMap<String, Integer> lastById = new HashMap<>();
+    
+    /**
+     * Checks a received message against the newest one seen of its kind
+     * @param opcode The message's opcode, <code>OpcodeTable.NONE</code> if sent by identifier
+     * @param sequence The sequence number it was sent with
+     * @return True if the message is newer and should be handled
+     */
+    public synchronized boolean accept(int opcode, int sequence){
+        if (opcode >= last.length){
+            int size = Math.max(opcode + 1, last.length * 2);
+            last = Arrays.copyOf(last, size);
+            seen = Arrays.copyOf(seen, size);
+        }
+        
+        if (seen[opcode] && sequence - last[opcode] <= 0){
+            dropped++;
+            return false;
+        }
+        seen[opcode] = true;
+        last[opcode] = sequence;
+        return true;
+    }
+    
+    /**
+     * Checks a received message against the newest one seen of its kind
+     * @param message The message
+     * @param sequence The sequence number it was sent with
+     * @return True if the message is newer and should be handled
+     */
+    public boolean accept(Data message, int sequence){
+        if (message.getOpcode() != OpcodeTable.NONE)
+            return accept(message.getOpcode(), sequence);
+        return accept(message.id(), sequence);
+    }
+    
+    /**
+     * Checks a message sent by identifier against the newest one seen with
+     * the same identifier
+     * @param identifier The message's identifier
+     * @param sequence The sequence number it was sent with
+     * @return True if the message is newer and should be handled
+     */
+    public synchronized boolean accept(String identifier, int sequence){
+        Integer previous = lastById.get(identifier);
+        if (previous != null && sequence - previous <= 0){
+            dropped++;
+            return false;
+        }
+        if (previous != null || lastById.size() < MAX_IDENTIFIERS)
+            lastById.put(identifier, sequence);
+        return true;
+    }
+    
+    /**
+     * Forgets every sequence number, e.g. after reconnecting
+     */
+    public synchronized void reset(){
+        Arrays.fill(seen, false);
+        lastById.clear();
+    }
+    
+    /**
+     * Getter for the number of stale messages dropped
+     * @return The number of dropped messages
+     */
+    public synchronized long getDroppedCount(){
+        return dropped;
+    }
+}
@@ -0,0 +1,42 @@
+
+package data;
+
+import java.util.concurrent.*;
+
+/**
+ * A single daemon thread shared by the Server and Client for short delayed
+ * tasks, such as flushing a batch of messages once its deadline passes.
+ * Tasks must be quick, anything slow belongs on an executor.
+ * @author jaron
+ */
+public final class SharedTimer {
+    
+    private SharedTimer(){  }
+    
+    // created on first use
+    private static class Holder {
+        static final ScheduledThreadPoolExecutor TIMER = create();
+        
+        private static ScheduledThreadPoolExecutor create(){
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory(){
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "SharedTimer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            // cancelled timeouts shouldn't pile up in the queue
+            timer.setRemoveOnCancelPolicy(true);
+            return timer;
+        }
+    }
+    
+    /**
+     * Returns the shared timer
+     * @return The scheduled executor
+     */
+    public static ScheduledExecutorService get(){
+        return Holder.TIMER;
+    }
+}
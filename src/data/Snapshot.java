@@ -0,0 +1,260 @@
+
+package data;
+
+import java.util.*;
+
+/**
+ * The state of every replicated entity at one point in time. Each entity
+ * has a non-negative id and its state is an array of fields, anything the
+ * codec can encode. Snapshots are sent as the difference from a snapshot
+ * the receiver already has, in a SNAPSHOT message:
+ * <pre>
+ *   [SNAPSHOT, sequence, baseSequence, time, removedCount, removed ids..., entries...]
+ * </pre>
+ * An entry is either <code>id, mask, changed fields...</code> with a bit
+ * set in the mask for each field that changed, or <code>-id - 1, count,
+ * all fields...</code> for an entity that is new or changed shape. A base
+ * sequence of 0 means the message holds the full state. Snapshots are
+ * immutable; unchanged entities share their state array with the snapshot
+ * before them.
+ * @author jaron
+ */
+public class Snapshot {
+
+    // snapshots kept on both ends for building and applying deltas
+    public static final int HISTORY = 64;
+
+    // fields past this can't be marked in a delta mask, such entities are sent whole
+    private static final int MAX_MASK_FIELDS = 63;
+
+    private static final Snapshot EMPTY = new Snapshot(0, 0, new int[0], new Object[0][]);
+
+    private final long sequence;
+    private final long time;
+    private final int[] ids;
+    private final Object[][] states;
+
+    /**
+     * Constructor for a Snapshot
+     * @param sequence The snapshot's sequence number, counting from 1
+     * @param time When the snapshot was taken, on the server's <code>System.nanoTime()</code> clock
+     * @param ids The entity ids in ascending order
+     * @param states The state of each entity, in the same order
+     */
+    public Snapshot(long sequence, long time, int[] ids, Object[][] states){
+        this.sequence = sequence;
+        this.time = time;
+        this.ids = ids;
+        this.states = states;
+    }
+
+    /**
+     * Getter for the sequence number
+     * @return The snapshot's sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Getter for the time the snapshot was taken
+     * @return The server's <code>System.nanoTime()</code> at capture
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the number of entities
+     * @return The number of entities in the snapshot
+     */
+    public int size(){
+        return ids.length;
+    }
+
+    /**
+     * Returns the id of the entity at an index
+     * @param index The index, from 0 to <code>size()</code>
+     * @return The entity id
+     */
+    public int getId(int index){
+        return ids[index];
+    }
+
+    /**
+     * Returns whether an entity is in the snapshot
+     * @param id The entity id
+     * @return Whether the entity exists
+     */
+    public boolean contains(int id){
+        return Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    /**
+     * Returns a copy of an entity's state
+     * @param id The entity id
+     * @return The entity's fields, or null if it's not in the snapshot
+     */
+    public Object[] get(int id){
+        Object[] state = state(id);
+        return state == null ? null : state.clone();
+    }
+
+    /**
+     * Returns an entity's shared state array, which must not be modified
+     * @param id The entity id
+     * @return The entity's fields, or null if it's not in the snapshot
+     */
+    public Object[] state(int id){
+        int index = Arrays.binarySearch(ids, id);
+        return index < 0 ? null : states[index];
+    }
+
+    /**
+     * Returns an entity's shared state array by index, which must not be modified
+     * @param index The index, from 0 to <code>size()</code>
+     * @return The entity's fields
+     */
+    public Object[] stateAt(int index){
+        return states[index];
+    }
+
+    /**
+     * Builds the SNAPSHOT message that turns <code>base</code> into this snapshot
+     * @param base A snapshot the receiver has, or null to send everything
+     * @return The message
+     */
+    public Data delta(Snapshot base){
+        if (base == null)
+            base = EMPTY;
+
+        Data data = new Data("SNAPSHOT", sequence, base.sequence, time, 0);
+        int removed = 0;
+        int i = 0, j = 0;
+        // removals go before the entries, their count is patched in afterwards
+        while (j < base.ids.length){
+            if (i < ids.length && ids[i] < base.ids[j]){
+                i++;
+            } else if (i < ids.length && ids[i] == base.ids[j]){
+                i++;
+                j++;
+            } else {
+                data.add(base.ids[j++]);
+                removed++;
+            }
+        }
+        data.set(4, removed);
+
+        i = 0;
+        j = 0;
+        while (i < ids.length){
+            while (j < base.ids.length && base.ids[j] < ids[i])
+                j++;
+            Object[] state = states[i];
+            Object[] previous = j < base.ids.length && base.ids[j] == ids[i] ? base.states[j] : null;
+            if (previous != state)
+                writeEntry(data, ids[i], previous, state);
+            i++;
+        }
+        return data;
+    }
+
+    private static void writeEntry(Data data, int id, Object[] previous, Object[] state){
+        if (previous == null || previous.length != state.length || state.length > MAX_MASK_FIELDS){
+            data.add(-id - 1);
+            data.add(state.length);
+            data.addAll(Arrays.asList(state));
+            return;
+        }
+
+        long mask = 0;
+        for (int f = 0; f < state.length; f++){
+            if (!Objects.deepEquals(previous[f], state[f]))
+                mask |= 1L << f;
+        }
+        if (mask == 0)
+            return;
+
+        data.add(id);
+        data.add(mask);
+        for (int f = 0; f < state.length; f++){
+            if ((mask & (1L << f)) != 0)
+                data.add(state[f]);
+        }
+    }
+
+    /**
+     * Returns the sequence number of the snapshot a SNAPSHOT message was built against
+     * @param delta The message
+     * @return The base sequence number, 0 if the message holds the full state
+     */
+    public static long baseSequence(Data delta){
+        return (long) delta.get(2);
+    }
+
+    /**
+     * Rebuilds a snapshot from a SNAPSHOT message and the snapshot it was built against
+     * @param base The snapshot with the message's base sequence, ignored for full state
+     * @param delta The message
+     * @return The new snapshot, or null if the base doesn't match
+     */
+    public static Snapshot apply(Snapshot base, Data delta){
+        long sequence = (long) delta.get(1);
+        long baseSequence = (long) delta.get(2);
+        long time = (long) delta.get(3);
+        if (baseSequence == 0)
+            base = EMPTY;
+        else if (base == null || base.sequence != baseSequence)
+            return null;
+
+        int removedCount = (int) delta.get(4);
+        int r = 5;
+        int removedEnd = r + removedCount;
+        int pos = removedEnd;
+
+        int capacity = base.ids.length + (delta.size() - pos);
+        int[] ids = new int[capacity];
+        Object[][] states = new Object[capacity][];
+        int n = 0;
+
+        int j = 0;
+        while (j < base.ids.length || pos < delta.size()){
+            int raw = pos < delta.size() ? (int) delta.get(pos) : Integer.MAX_VALUE;
+            int entryId = raw < 0 ? -raw - 1 : raw;
+            int baseId = j < base.ids.length ? base.ids[j] : Integer.MAX_VALUE;
+
+            if (baseId < entryId || pos >= delta.size()){
+                while (r < removedEnd && (int) delta.get(r) < baseId)
+                    r++;
+                if (r >= removedEnd || (int) delta.get(r) != baseId){
+                    ids[n] = baseId;
+                    states[n++] = base.states[j];
+                }
+                j++;
+                continue;
+            }
+
+            Object[] state;
+            if (raw < 0){
+                int count = (int) delta.get(pos + 1);
+                state = delta.subList(pos + 2, pos + 2 + count).toArray();
+                pos += 2 + count;
+            } else {
+                if (baseId != entryId)
+                    return null;
+                long mask = (long) delta.get(pos + 1);
+                pos += 2;
+                state = base.states[j].clone();
+                for (int f = 0; f < state.length; f++){
+                    if ((mask & (1L << f)) != 0)
+                        state[f] = delta.get(pos++);
+                }
+            }
+            if (baseId == entryId)
+                j++;
+            ids[n] = entryId;
+            states[n++] = state;
+        }
+        return new Snapshot(sequence, time, Arrays.copyOf(ids, n), Arrays.copyOf(states, n));
+    }
+}
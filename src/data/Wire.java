@@ -0,0 +1,273 @@
+
+package data;
+
+import java.io.*;
+
+/**
+ * Framing for messages sent between the Server and Client. Every message is
+ * written as a 4 byte length followed by a small header and the body produced
+ * by the Codec:
+ * <pre>
+ * int    length (of everything after this field)
+ * byte   flags
+ * varint opcode          (from the receiver's OpcodeTable)
+ * UTF    identifier      (only if the opcode is 0)
+ * UTF    sender ID       (if signed)
+ * int    correlation ID  (if part of a request)
+ * ...    body
+ * </pre>
+ * Messages built with a <code>MessageWriter</code> have the raw flag set, no
+ * sender or correlation ID, their identifier in <code>putString</code>
+ * encoding and a body of the primitives written to them.
+ * @author jaron
+ */
+public final class Wire {
+    
+    // anything bigger than this is treated as a broken or malicious peer
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    public static final int LENGTH_SIZE = 4;
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+    
+    private static final int FLAG_SIGNED = 1;
+    private static final int FLAG_REQUEST = 2;
+    private static final int FLAG_REPLY = 4;
+    static final int FLAG_RAW = 8;
+    
+    private static final ThreadLocal<FrameBuffer> buffers = new ThreadLocal<FrameBuffer>(){
+        @Override
+        protected FrameBuffer initialValue() {
+            return new FrameBuffer();
+        }
+    };
+    
+    private Wire(){  }
+    
+    /**
+     * Encodes a message into a complete frame, including the length prefix,
+     * sending the identifier as a string
+     * @param data The message to encode
+     * @param codec The codec used for the message body
+     * @return The encoded frame
+     * @throws IOException If the message can not be encoded
+     */
+    public static byte[] encode(Data data, Codec codec) throws IOException {
+        return encode(data, codec, null);
+    }
+    
+    /**
+     * Encodes a message into a complete frame, including the length prefix
+     * @param data The message to encode
+     * @param codec The codec used for the message body
+     * @param peerOpcodes The receiver's opcode table, or null if not known yet
+     * @return The encoded frame
+     * @throws IOException If the message can not be encoded
+     */
+    public static byte[] encode(Data data, Codec codec, OpcodeTable peerOpcodes) throws IOException {
+        return encode(data, data.getRequestID(), data.isReply(), codec, peerOpcodes);
+    }
+    
+    /**
+     * Encodes a message as a request with the given correlation ID, leaving
+     * the message itself untouched so it can be sent from several threads
+     * @param data The message to encode
+     * @param requestID The correlation ID the reply will carry
+     * @param codec The codec used for the message body
+     * @param peerOpcodes The receiver's opcode table, or null if not known yet
+     * @return The encoded frame
+     * @throws IOException If the message can not be encoded
+     */
+    public static byte[] encodeRequest(Data data, int requestID, Codec codec, OpcodeTable peerOpcodes) throws IOException {
+        return encode(data, requestID, false, codec, peerOpcodes);
+    }
+    
+    private static byte[] encode(Data data, int requestID, boolean reply, Codec codec, OpcodeTable peerOpcodes) throws IOException {
+        FrameBuffer buffer = buffers.get();
+        buffer.reset();
+        DataOutputStream out = buffer.out;
+        
+        out.writeInt(0);
+        int flags = 0;
+        if (data.getSenderID() != null)
+            flags |= FLAG_SIGNED;
+        if (requestID != 0)
+            flags |= reply ? FLAG_REPLY : FLAG_REQUEST;
+        out.writeByte(flags);
+        int opcode = peerOpcodes == null ? OpcodeTable.NONE : peerOpcodes.opcode(data.id());
+        writeVarInt(out, opcode);
+        if (opcode == OpcodeTable.NONE)
+            out.writeUTF(data.id());
+        if (data.getSenderID() != null)
+            out.writeUTF(data.getSenderID());
+        if (requestID != 0)
+            out.writeInt(requestID);
+        codec.writeBody(data, out);
+        out.flush();
+        
+        int length = buffer.size() - LENGTH_SIZE;
+        if (length > MAX_FRAME_SIZE)
+            throw new IOException("Message exceeds " + MAX_FRAME_SIZE + " bytes");
+        
+        byte[] frame = buffer.toByteArray();
+        if (buffer.capacity() > MAX_RETAINED_BUFFER)
+            buffers.remove();
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+    
+    /**
+     * Reads a single frame from a stream and decodes it
+     * @param in The stream to read from
+     * @param codec The codec used for the message body
+     * @param opcodes The local opcode table the sender encoded against
+     * @return The decoded message
+     * @throws IOException If the stream ends or the frame can not be decoded
+     */
+    public static Data read(DataInputStream in, Codec codec, OpcodeTable opcodes) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return decode(frame, 0, length, codec, opcodes);
+    }
+    
+    /**
+     * Decodes a frame body, i.e. everything after the length prefix
+     * @param buffer The buffer holding the frame
+     * @param offset The position of the frame body in the buffer
+     * @param length The length of the frame body
+     * @param codec The codec used for the message body
+     * @param opcodes The local opcode table the sender encoded against
+     * @return The decoded message
+     * @throws IOException If the frame can not be decoded
+     */
+    public static Data decode(byte[] buffer, int offset, int length, Codec codec, OpcodeTable opcodes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer, offset, length));
+        
+        int flags = in.readUnsignedByte();
+        if ((flags & FLAG_RAW) != 0)
+            throw new StreamCorruptedException("MessageWriter message can't be decoded as Data");
+        int opcode = readVarInt(in);
+        Data data;
+        if (opcode == OpcodeTable.NONE){
+            data = new Data(in.readUTF());
+        } else {
+            String id = opcodes == null ? null : opcodes.identifier(opcode);
+            if (id == null)
+                throw new StreamCorruptedException("Unknown opcode " + opcode);
+            data = new Data(id);
+            data.setOpcode(opcode);
+        }
+        if ((flags & FLAG_SIGNED) != 0)
+            data.sign(in.readUTF());
+        if ((flags & FLAG_REPLY) != 0)
+            data.markReply(in.readInt());
+        else if ((flags & FLAG_REQUEST) != 0)
+            data.setRequestID(in.readInt());
+        
+        codec.readBody(in, data);
+        data.setReceivedAt(System.nanoTime());
+        data.setWireSize(LENGTH_SIZE + length);
+        return data;
+    }
+    
+    /**
+     * Returns whether a frame was built with a <code>MessageWriter</code>,
+     * and has to be read with a <code>MessageReader</code>
+     * @param buffer The buffer holding the frame
+     * @param offset The position of the frame body in the buffer
+     * @return Whether the frame is a raw message
+     */
+    public static boolean isRaw(byte[] buffer, int offset){
+        return (buffer[offset] & FLAG_RAW) != 0;
+    }
+    
+    /**
+     * Validates a length prefix read off the wire
+     * @param length The length prefix
+     * @throws IOException If the length is negative or too large
+     */
+    public static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_SIZE)
+            throw new StreamCorruptedException("Invalid frame length " + length);
+    }
+    
+    /**
+     * Writes an int using 1-5 bytes, smaller values taking fewer bytes
+     * @param out The output to write to
+     * @param value The value, treated as unsigned
+     * @throws IOException
+     */
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0){
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+    
+    /**
+     * Reads an int written by <code>writeVarInt</code>
+     * @param in The input to read from
+     * @return The value
+     * @throws IOException
+     */
+    public static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7){
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+    
+    /**
+     * Writes a long using 1-10 bytes, smaller values taking fewer bytes
+     * @param out The output to write to
+     * @param value The value, treated as unsigned
+     * @throws IOException
+     */
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0){
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+    
+    /**
+     * Reads a long written by <code>writeVarLong</code>
+     * @param in The input to read from
+     * @return The value
+     * @throws IOException
+     */
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7){
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+    
+    /**
+     * Reusable per-thread buffer the frames are encoded into
+     */
+    private static class FrameBuffer extends ByteArrayOutputStream {
+        final DataOutputStream out = new DataOutputStream(this);
+        
+        FrameBuffer(){
+            super(256);
+        }
+        
+        int capacity(){
+            return buf.length;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+
+package server;
+
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Concurrent registry of the clients connected to a Server. Clients are
+ * indexed by their normalized (case-insensitive) ID and by socket for O(1)
+ * lookups, and iteration works on an immutable snapshot so broadcasting never
+ * races with clients registering or logging out.
+ * <p>
+ * The registry also keeps an inverted tag index: every client gets a small
+ * slot number, every tag is interned to a small ID, and each tag maps to a
+ * BitSet of the slots tagged with it. Tag queries are answered by OR-ing or
+ * AND-ing those sets, so their cost follows the number of recipients rather
+ * than the number of clients. A tag's ID is freed once its last client
+ * drops it and handed to the next new tag, so clients picking their own
+ * tags can't grow the index beyond the tags currently in use.
+ * @author jaron
+ */
+public class ClientRegistry implements Iterable<RemoteClient> {
+    
+    private static final RemoteClient[] EMPTY = new RemoteClient[0];
+    
+    private final ConcurrentHashMap<String, RemoteClient> byId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Socket, RemoteClient> bySocket = new ConcurrentHashMap<>();
+    
+    // rebuilt on every change, registering and logging out are rare compared to sends
+    private volatile RemoteClient[] snapshot = EMPTY;
+    
+    // guards the slot table and the tag index
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private RemoteClient[] slots = new RemoteClient[16];
+    private final BitSet usedSlots = new BitSet();
+    private final HashMap<String, Integer> tagIds = new HashMap<>();
+    private final ArrayList<BitSet> tagMembers = new ArrayList<>();
+    private final ArrayList<String> tagNames = new ArrayList<>();
+    private final BitSet freeTagIds = new BitSet();
+    
+    /**
+     * Normalizes a client ID so lookups ignore case
+     * @param clientID The client ID
+     * @return The normalized ID
+     */
+    public static String normalize(String clientID){
+        return clientID.toLowerCase(Locale.ROOT);
+    }
+    
+    /**
+     * Adds a client, replacing any client already registered with the same ID.
+     * Tags already set on the client's IClientData are indexed.
+     * @param client The client to add
+     * @return The client that was replaced, or null
+     */
+    public synchronized RemoteClient add(RemoteClient client){
+        RemoteClient previous = byId.put(normalize(client.getId()), client);
+        if (previous != null && previous.getSocket() != null)
+            bySocket.remove(previous.getSocket(), previous);
+        if (client.getSocket() != null)
+            bySocket.put(client.getSocket(), client);
+        
+        lock.writeLock().lock();
+        try {
+            if (previous != null)
+                releaseSlot(previous);
+            assignSlot(client);
+            if (client.getClientData() != null)
+                addTagBits(client, client.getClientData().getClientTags());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        rebuildSnapshot();
+        return previous;
+    }
+    
+    /**
+     * Removes a client if it is still the one registered under its ID
+     * @param client The client to remove
+     * @return Whether the client was removed
+     */
+    public synchronized boolean remove(RemoteClient client){
+        if (client.getId() == null || !byId.remove(normalize(client.getId()), client))
+            return false;
+        if (client.getSocket() != null)
+            bySocket.remove(client.getSocket(), client);
+        
+        lock.writeLock().lock();
+        try {
+            releaseSlot(client);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        rebuildSnapshot();
+        return true;
+    }
+    
+    /**
+     * Returns the client with the given ID
+     * @param clientID The client ID, in any case
+     * @return The client, or null if no client is registered with that ID
+     */
+    public RemoteClient get(String clientID){
+        return clientID == null ? null : byId.get(normalize(clientID));
+    }
+    
+    /**
+     * Returns the client registered on the given socket
+     * @param socket The client socket
+     * @return The client, or null if no client is registered on that socket
+     */
+    public RemoteClient get(Socket socket){
+        return socket == null ? null : bySocket.get(socket);
+    }
+    
+    /**
+     * Returns the currently registered clients. The array is shared and must
+     * not be modified.
+     * @return A snapshot of the registered clients
+     */
+    public RemoteClient[] snapshot(){
+        return snapshot;
+    }
+    
+    /**
+     * Returns the number of registered clients
+     * @return The number of registered clients
+     */
+    public int size(){
+        return snapshot.length;
+    }
+    
+    @Override
+    public Iterator<RemoteClient> iterator(){
+        return Collections.unmodifiableList(Arrays.asList(snapshot)).iterator();
+    }
+    
+    // Tag index
+    
+    /**
+     * Replaces the tags of a registered client, both on its IClientData and
+     * in the index. The client's tag list is replaced rather than modified,
+     * so threads reading the old list aren't affected.
+     * @param client The client
+     * @param tags The client's new tags
+     * @return Whether the client is registered
+     */
+    public boolean setTags(RemoteClient client, Collection<String> tags){
+        lock.writeLock().lock();
+        try {
+            if (!isRegistered(client))
+                return false;
+            updateTagList(client, new ArrayList<>(tags));
+            clearTagBits(client);
+            addTagBits(client, tags);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Adds tags to a registered client, both on its IClientData and in the index
+     * @param client The client
+     * @param tags The tags to add
+     * @return Whether the client is registered
+     */
+    public boolean addTags(RemoteClient client, Collection<String> tags){
+        lock.writeLock().lock();
+        try {
+            if (!isRegistered(client))
+                return false;
+            ArrayList<String> list = copyTagList(client);
+            for (String tag : tags){
+                if (!list.contains(tag))
+                    list.add(tag);
+            }
+            updateTagList(client, list);
+            addTagBits(client, tags);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Removes tags from a registered client, both on its IClientData and in the index
+     * @param client The client
+     * @param tags The tags to remove
+     * @return Whether the client is registered
+     */
+    public boolean removeTags(RemoteClient client, Collection<String> tags){
+        lock.writeLock().lock();
+        try {
+            if (!isRegistered(client))
+                return false;
+            ArrayList<String> list = copyTagList(client);
+            list.removeAll(tags);
+            updateTagList(client, list);
+            for (String tag : tags){
+                Integer tagID = tagIds.get(tag);
+                if (tagID != null && client.tagIDs.get(tagID)){
+                    client.tagIDs.clear(tagID);
+                    leaveTag(tagID, client.slot);
+                }
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    private static ArrayList<String> copyTagList(RemoteClient client){
+        IClientData data = client.getClientData();
+        ArrayList<String> tags = data == null ? null : data.getClientTags();
+        return tags == null ? new ArrayList<>() : new ArrayList<>(tags);
+    }
+    
+    private static void updateTagList(RemoteClient client, ArrayList<String> tags){
+        if (client.getClientData() != null)
+            client.getClientData().setClientTags(tags);
+    }
+    
+    /**
+     * Returns every client tagged with at least one of the given tags
+     * @param tags The tags to look for
+     * @return The matching clients
+     */
+    public RemoteClient[] withAnyTag(Collection<String> tags){
+        lock.readLock().lock();
+        try {
+            BitSet matches = null;
+            for (String tag : tags){
+                Integer tagID = tagIds.get(tag);
+                if (tagID == null)
+                    continue;
+                if (matches == null)
+                    matches = (BitSet) tagMembers.get(tagID).clone();
+                else
+                    matches.or(tagMembers.get(tagID));
+            }
+            return resolve(matches);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns every client tagged with all of the given tags
+     * @param tags The tags to look for
+     * @return The matching clients
+     */
+    public RemoteClient[] withAllTags(Collection<String> tags){
+        lock.readLock().lock();
+        try {
+            BitSet matches = null;
+            for (String tag : tags){
+                Integer tagID = tagIds.get(tag);
+                if (tagID == null)
+                    return EMPTY;
+                if (matches == null)
+                    matches = (BitSet) tagMembers.get(tagID).clone();
+                else
+                    matches.and(tagMembers.get(tagID));
+            }
+            return resolve(matches);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns the number of clients tagged with the given tag
+     * @param tag The tag
+     * @return The number of clients with the tag
+     */
+    public int countTagged(String tag){
+        lock.readLock().lock();
+        try {
+            Integer tagID = tagIds.get(tag);
+            return tagID == null ? 0 : tagMembers.get(tagID).cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    private RemoteClient[] resolve(BitSet matches){
+        if (matches == null || matches.isEmpty())
+            return EMPTY;
+        
+        RemoteClient[] clients = new RemoteClient[matches.cardinality()];
+        int n = 0;
+        for (int slot = matches.nextSetBit(0); slot >= 0; slot = matches.nextSetBit(slot + 1)){
+            clients[n++] = slots[slot];
+        }
+        return clients;
+    }
+    
+    private boolean isRegistered(RemoteClient client){
+        return client.slot >= 0 && client.slot < slots.length && slots[client.slot] == client;
+    }
+    
+    private void assignSlot(RemoteClient client){
+        int slot = usedSlots.nextClearBit(0);
+        if (slot >= slots.length)
+            slots = Arrays.copyOf(slots, slots.length * 2);
+        usedSlots.set(slot);
+        slots[slot] = client;
+        client.slot = slot;
+    }
+    
+    private void releaseSlot(RemoteClient client){
+        if (!isRegistered(client))
+            return;
+        clearTagBits(client);
+        slots[client.slot] = null;
+        usedSlots.clear(client.slot);
+        client.slot = -1;
+    }
+    
+    private void addTagBits(RemoteClient client, Collection<String> tags){
+        if (tags == null)
+            return;
+        for (String tag : tags){
+            int tagID = internTag(tag);
+            tagMembers.get(tagID).set(client.slot);
+            client.tagIDs.set(tagID);
+        }
+    }
+    
+    private void clearTagBits(RemoteClient client){
+        BitSet ids = client.tagIDs;
+        for (int tagID = ids.nextSetBit(0); tagID >= 0; tagID = ids.nextSetBit(tagID + 1)){
+            leaveTag(tagID, client.slot);
+        }
+        ids.clear();
+    }
+    
+    /**
+     * Removes a slot from a tag, freeing the tag's ID if it was the last one
+     */
+    private void leaveTag(int tagID, int slot){
+        BitSet members = tagMembers.get(tagID);
+        members.clear(slot);
+        if (!members.isEmpty())
+            return;
+        tagIds.remove(tagNames.get(tagID));
+        tagNames.set(tagID, null);
+        tagMembers.set(tagID, null);
+        freeTagIds.set(tagID);
+    }
+    
+    private int internTag(String tag){
+        Integer tagID = tagIds.get(tag);
+        if (tagID != null)
+            return tagID;
+        
+        // the lowest free ID keeps every client's tag BitSet small
+        tagID = freeTagIds.nextSetBit(0);
+        if (tagID >= 0){
+            freeTagIds.clear(tagID);
+            tagNames.set(tagID, tag);
+            tagMembers.set(tagID, new BitSet());
+        } else {
+            tagID = tagMembers.size();
+            tagNames.add(tag);
+            tagMembers.add(new BitSet());
+        }
+        tagIds.put(tag, tagID);
+        return tagID;
+    }
+    
+    private void rebuildSnapshot(){
+        snapshot = byId.values().toArray(EMPTY);
+    }
+}
@@ -0,0 +1,28 @@
+
+package server;
+
+import data.OpcodeTable;
+import java.net.Socket;
+
+/**
+ * Server side state for a single client connection, shared by the blocking
+ * and NIO transports. Created when a connection is accepted and dropped once
+ * it closes.
+ * @author jaron
+ */
+class Connection {
+    
+    final Socket socket;
+    final OutboundQueue outbound;
+    
+    // opcodes the client registered, used when encoding messages to it
+    volatile OpcodeTable peerOpcodes;
+    
+    // set by the NIO engine, null for the blocking transport
+    volatile NioConnection nio;
+    
+    Connection(Socket socket, OutboundQueue outbound){
+        this.socket = socket;
+        this.outbound = outbound;
+    }
+}
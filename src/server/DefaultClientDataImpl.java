@@ -1,6 +1,7 @@
 
 package server;
 
+import data.PingStats;
 import java.util.ArrayList;
 
 /**
@@ -11,6 +12,7 @@ public class DefaultClientDataImpl implements IClientData {
 
     private String clientID;
     private long ping;
+    private PingStats pingStats;
     private ArrayList<String> clientTags = new ArrayList<>();
     
     @Override
@@ -33,6 +35,16 @@ public class DefaultClientDataImpl implements IClientData {
         this.ping = ping;
     }
 
+    @Override
+    public PingStats getPingStats() {
+        return pingStats;
+    }
+
+    @Override
+    public void setPingStats(PingStats pingStats) {
+        this.pingStats = pingStats;
+    }
+
     @Override
     public ArrayList<String> getClientTags() {
         return clientTags;
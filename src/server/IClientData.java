@@ -1,6 +1,7 @@
 
 package server;
 
+import data.PingStats;
 import java.io.Serializable;
 import java.util.*;
 
@@ -34,6 +35,21 @@ public interface IClientData extends Serializable {
      */
     public void setPing(long ping);
     
+    /**
+     * Getter for the round trip time statistics. Implementations that don't
+     * store them return null.
+     * @return The ping statistics
+     */
+    public default PingStats getPingStats() {
+        return null;
+    }
+    
+    /**
+     * Setter for the round trip time statistics, called after every PONG
+     * @param pingStats The new ping statistics
+     */
+    public default void setPingStats(PingStats pingStats) {  }
+    
     /**
      * Getter for the ArrayList of tags
      * @return The ArrayList of tags
@@ -0,0 +1,109 @@
+
+package server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * State kept by the NIO engine for a single accepted channel: the partially
+ * read inbound bytes and the queue of encoded messages waiting to be written.
+ * @author jaron
+ */
+class NioConnection {
+
+    private static final int INITIAL_READ_BUFFER = 8 * 1024;
+    private static final int MAX_BATCH = 64;
+
+    final SocketChannel channel;
+    final NioEngine.EventLoop loop;
+    final Connection connection;
+    SelectionKey key;
+
+    ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+
+    // set while OP_WRITE is requested, so senders don't queue a task per message
+    final AtomicBoolean writePending = new AtomicBoolean();
+    // set while a batch deadline is scheduled on the shared timer
+    final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    // reused for gathering writes, only touched by the event loop
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+
+    NioConnection(SocketChannel channel, NioEngine.EventLoop loop, Connection connection){
+        this.channel = channel;
+        this.loop = loop;
+        this.connection = connection;
+    }
+
+    /**
+     * Returns the blocking-style socket adaptor handed to responses
+     * @return The socket adaptor for the channel
+     */
+    Socket socket(){
+        return channel.socket();
+    }
+
+    /**
+     * Makes sure the read buffer has room for at least <code>needed</code>
+     * more bytes, growing it if required.
+     * @param needed The number of bytes that need to fit
+     */
+    void ensureReadCapacity(int needed){
+        if (readBuffer.remaining() >= needed)
+            return;
+
+        int capacity = readBuffer.capacity();
+        while (capacity - readBuffer.position() < needed){
+            capacity *= 2;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        readBuffer.flip();
+        grown.put(readBuffer);
+        readBuffer = grown;
+    }
+
+    /**
+     * Writes as much of the outbound queue as the channel will currently
+     * accept, handing the channel up to 64 messages per gathering write.
+     * @return True if the queue was fully drained
+     * @throws IOException
+     */
+    boolean flush() throws IOException {
+        OutboundQueue outbound = connection.outbound;
+        try {
+            while (true){
+                int n = outbound.peek(batch);
+                if (n == 0)
+                    return true;
+                
+                channel.write(batch, 0, n);
+                int written = 0;
+                while (written < n && !batch[written].hasRemaining()){
+                    written++;
+                }
+                outbound.remove(written);
+                if (written < n)
+                    return false;
+            }
+        } finally {
+            Arrays.fill(batch, null);
+        }
+    }
+
+    /**
+     * Closes the channel, discarding anything left in the outbound queue.
+     */
+    void close(){
+        connection.outbound.close();
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {  }
+    }
+}
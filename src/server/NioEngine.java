@@ -0,0 +1,280 @@
+
+package server;
+
+import data.*;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking transport for the Server, built on a ServerSocketChannel and
+ * one or more Selector based event loops. The first event loop accepts new
+ * connections, which are then handed out round-robin to all of the loops for
+ * read and write readiness. Decoded messages are passed back to the Server
+ * to be dispatched like the blocking listener does.
+ * @author jaron
+ */
+class NioEngine {
+
+    private final Server server;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final ConcurrentHashMap<Socket, NioConnection> connections = new ConcurrentHashMap<>();
+
+    private volatile boolean stopped;
+
+    /**
+     * Constructor for the NioEngine
+     * @param server The server to dispatch messages to
+     * @param serverChannel The bound server channel to accept connections on
+     * @param threads The number of event loop threads
+     * @throws IOException
+     */
+    NioEngine(Server server, ServerSocketChannel serverChannel, int threads) throws IOException {
+        this.server = server;
+        this.serverChannel = serverChannel;
+        this.loops = new EventLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++){
+            loops[i] = new EventLoop(i);
+        }
+
+        serverChannel.configureBlocking(false);
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Starts the event loop threads.
+     */
+    void start(){
+        for (EventLoop loop : loops){
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Stops the event loops and closes every open connection.
+     */
+    void stop(){
+        stopped = true;
+        for (EventLoop loop : loops){
+            loop.selector.wakeup();
+        }
+        for (NioConnection c : connections.values()){
+            c.close();
+        }
+        connections.clear();
+    }
+
+    /**
+     * Asks the connection's event loop to write out its outbound queue.
+     * @param c The connection with queued messages
+     */
+    void requestWrite(NioConnection c){
+        if (c.writePending.compareAndSet(false, true))
+            c.loop.requestWrite(c);
+    }
+
+    /**
+     * Returns whether the calling thread is one of the event loops
+     * @return Whether this is an event loop thread
+     */
+    boolean isEventLoopThread(){
+        Thread current = Thread.currentThread();
+        for (EventLoop loop : loops){
+            if (loop.thread == current)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Closes a connection from outside the event loop, e.g. a slow consumer.
+     * @param c The connection to close
+     */
+    void close(NioConnection c){
+        if (connections.remove(c.socket()) != null)
+            server.connectionClosed(c.socket());
+        c.close();
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            while ((channel = serverChannel.accept()) != null){
+                channel.configureBlocking(false);
+                EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                Connection connection = server.connectionOpened(channel.socket());
+                NioConnection c = new NioConnection(channel, loop, connection);
+                connection.nio = c;
+                connections.put(c.socket(), c);
+                loop.register(c);
+            }
+        } catch (IOException e) {
+            if (!stopped)
+                Server.logError("Error accepting connection: " + e.getMessage());
+        }
+    }
+
+    private void read(NioConnection c) {
+        try {
+            c.ensureReadCapacity(1);
+            int read = c.channel.read(c.readBuffer);
+            if (read < 0){
+                close(c);
+                return;
+            }
+
+            decode(c);
+        } catch (IOException e) {
+            Server.logError("Error reading from " + c.socket().getRemoteSocketAddress() + ": " + e.getMessage());
+            close(c);
+        } catch (RuntimeException e) {
+            // a bad frame or a handler run on this thread only costs its own connection
+            Server.logError("Error handling message from " + c.socket().getRemoteSocketAddress() + ": " + e);
+            close(c);
+        }
+    }
+
+    /**
+     * Decodes every complete frame currently sitting in the read buffer,
+     * growing the buffer if a frame is bigger than it.
+     */
+    private void decode(NioConnection c) throws IOException {
+        ByteBuffer buffer = c.readBuffer;
+        int start = 0;
+        while (buffer.position() - start >= Wire.LENGTH_SIZE){
+            int length = buffer.getInt(start);
+            Wire.checkLength(length);
+            int frameSize = Wire.LENGTH_SIZE + length;
+            if (buffer.position() - start < frameSize){
+                break;
+            }
+
+            int body = start + Wire.LENGTH_SIZE;
+            start += frameSize;
+            if (Wire.isRaw(buffer.array(), body))
+                server.dispatch(MessageReader.wrap(buffer.array(), body, length, server.opcodes), c.socket());
+            else
+                server.dispatch(Wire.decode(buffer.array(), body, length, server.codec, server.opcodes), c.socket());
+        }
+
+        if (start > 0){
+            buffer.flip();
+            buffer.position(start);
+            buffer.compact();
+        }
+
+        if (buffer.position() >= Wire.LENGTH_SIZE){
+            c.ensureReadCapacity(Wire.LENGTH_SIZE + buffer.getInt(0) - buffer.position());
+        }
+    }
+
+    private void write(NioConnection c) {
+        try {
+            if (c.flush()){
+                c.key.interestOps(SelectionKey.OP_READ);
+                c.writePending.set(false);
+                // a sender may have queued something after the queue was drained
+                if (!c.connection.outbound.isEmpty())
+                    requestWrite(c);
+            }
+        } catch (IOException | RuntimeException e) {
+            Server.logError("Error writing to " + c.socket().getRemoteSocketAddress() + ": " + e.getMessage());
+            close(c);
+        }
+    }
+
+    /**
+     * A single selector thread. Everything touching the selector or its keys
+     * runs on this thread; other threads hand work over through the task queue.
+     */
+    class EventLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "NioEngine-" + index);
+        }
+
+        void register(NioConnection c){
+            execute(new Runnable(){
+                @Override
+                public void run() {
+                    try {
+                        c.key = c.channel.register(selector, SelectionKey.OP_READ, c);
+                    } catch (ClosedChannelException e) {
+                        close(c);
+                    }
+                }
+            });
+        }
+
+        void requestWrite(NioConnection c){
+            execute(new Runnable(){
+                @Override
+                public void run() {
+                    if (c.key != null && c.key.isValid()){
+                        c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+            });
+        }
+
+        private void execute(Runnable task){
+            tasks.add(task);
+            if (Thread.currentThread() != thread)
+                selector.wakeup();
+        }
+
+        @Override
+        public void run(){
+            while (!stopped){
+                try {
+                    // tasks queued while handling the last batch of keys run
+                    // before blocking again, other threads wake the selector
+                    Runnable task;
+                    while ((task = tasks.poll()) != null){
+                        task.run();
+                    }
+
+                    selector.select();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()){
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid())
+                            continue;
+
+                        if (key.isAcceptable()){
+                            accept();
+                            continue;
+                        }
+
+                        NioConnection c = (NioConnection) key.attachment();
+                        if (key.isReadable()){
+                            read(c);
+                        }
+                        if (key.isValid() && key.isWritable()){
+                            write(c);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (!stopped)
+                        Server.logError("Event loop error: " + e.getMessage());
+                }
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {  }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Queue of encoded messages waiting to be written to a single client. Sending
+ * a message only enqueues it; the NIO event loop or the connection's writer
+ * thread drains the queue. Exposes the queue depth and related counters for
+ * monitoring slow clients.
+ * @author jaron
+ */
+public class OutboundQueue {
+    
+    /**
+     * Result of offering a message to the queue
+     */
+    enum Result { QUEUED, DROPPED, FULL, CLOSED }
+    
+    private final LinkedBlockingQueue<ByteBuffer> queue;
+    private final int limit;
+    private final SlowConsumerPolicy policy;
+    
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicInteger highWaterMark = new AtomicInteger();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private volatile boolean closed;
+    
+    // the writer thread while it waits in poll(), woken without taking a queue slot
+    private volatile Thread waiter;
+    
+    /**
+     * Constructor for the OutboundQueue
+     * @param limit The maximum number of messages waiting to be written
+     * @param policy What to do once <code>limit</code> is reached
+     */
+    OutboundQueue(int limit, SlowConsumerPolicy policy){
+        this.queue = new LinkedBlockingQueue<>(limit);
+        this.limit = limit;
+        this.policy = policy;
+    }
+    
+    /**
+     * Adds a message to the queue, applying the slow consumer policy if full
+     * @param message The encoded message
+     * @param mayBlock Whether the calling thread may wait for room. Threads
+     * that drain queues themselves must not, a full queue then disconnects
+     * the client even under the BLOCK policy.
+     * @return Whether the message was queued, dropped, or the client should be disconnected
+     */
+    Result offer(ByteBuffer message, boolean mayBlock){
+        if (closed)
+            return Result.CLOSED;
+        
+        boolean queued = queue.offer(message);
+        if (!queued && policy == SlowConsumerPolicy.BLOCK && mayBlock){
+            try {
+                // woken up periodically so a closed connection doesn't block forever
+                while (!queued && !closed){
+                    queued = queue.offer(message, 100, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        if (!queued){
+            dropped.increment();
+            if (closed)
+                return Result.CLOSED;
+            if (policy == SlowConsumerPolicy.DISCONNECT || (policy == SlowConsumerPolicy.BLOCK && !mayBlock))
+                return Result.FULL;
+            return Result.DROPPED;
+        }
+        
+        queuedBytes.addAndGet(message.remaining());
+        highWaterMark.accumulateAndGet(queue.size(), Math::max);
+        wakeUp();
+        return Result.QUEUED;
+    }
+    
+    /**
+     * Returns the next message to write without removing it
+     * @return The next message, or null if the queue is empty
+     */
+    ByteBuffer peek(){
+        return queue.peek();
+    }
+    
+    /**
+     * Fills the array with the messages at the head of the queue, without
+     * removing them, for a gathering write
+     * @param batch The array to fill
+     * @return The number of messages put in the array
+     */
+    int peek(ByteBuffer[] batch){
+        int n = 0;
+        Iterator<ByteBuffer> it = queue.iterator();
+        while (n < batch.length && it.hasNext()){
+            batch[n++] = it.next();
+        }
+        return n;
+    }
+    
+    /**
+     * Removes the message returned by <code>peek()</code> once it has been written
+     */
+    void remove(){
+        sent(queue.poll());
+    }
+    
+    /**
+     * Removes written messages from the head of the queue
+     * @param count The number of messages to remove
+     */
+    void remove(int count){
+        for (int i = 0; i < count; i++){
+            sent(queue.poll());
+        }
+    }
+    
+    /**
+     * Removes and returns the next message to write, waiting for one if the
+     * queue is empty. Only one thread may wait at a time.
+     * @param timeout The maximum time to wait in nanoseconds, 0 to not wait
+     * @return The next message, or null if none arrived in time or a flush
+     * was requested
+     * @throws InterruptedException
+     */
+    ByteBuffer poll(long timeout) throws InterruptedException {
+        ByteBuffer message = queue.poll();
+        if (message == null && timeout > 0){
+            long deadline = System.nanoTime() + timeout;
+            waiter = Thread.currentThread();
+            try {
+                // checked again after publishing the waiter so a wake up can't be missed
+                while ((message = queue.poll()) == null && !flushRequested.get() && !closed){
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        break;
+                    LockSupport.parkNanos(this, remaining);
+                    if (Thread.interrupted())
+                        throw new InterruptedException();
+                }
+            } finally {
+                waiter = null;
+            }
+        }
+        sent(message);
+        return message;
+    }
+    
+    private void wakeUp(){
+        Thread thread = waiter;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+    
+    private void sent(ByteBuffer message){
+        if (message != null){
+            queuedBytes.addAndGet(-message.limit());
+            sent.increment();
+        }
+    }
+    
+    /**
+     * Asks the writer to flush whatever it has buffered, waking a writer
+     * thread waiting in <code>poll()</code>
+     */
+    void requestFlush(){
+        flushRequested.set(true);
+        wakeUp();
+    }
+    
+    /**
+     * Returns and clears the flush request
+     * @return Whether a flush was requested since the last call
+     */
+    boolean takeFlushRequest(){
+        return flushRequested.getAndSet(false);
+    }
+    
+    /**
+     * Returns whether there is nothing waiting to be written
+     * @return Whether the queue is empty
+     */
+    boolean isEmpty(){
+        return queue.isEmpty();
+    }
+    
+    /**
+     * Returns whether the queue has been closed
+     * @return Whether the queue is closed
+     */
+    boolean isClosed(){
+        return closed;
+    }
+    
+    /**
+     * Closes the queue, discarding anything not yet written
+     */
+    void close(){
+        closed = true;
+        queue.clear();
+        queuedBytes.set(0);
+        wakeUp();
+    }
+    
+    /**
+     * Returns the number of messages waiting to be written
+     * @return The queue depth
+     */
+    public int getDepth(){
+        return queue.size();
+    }
+    
+    /**
+     * Returns the number of bytes waiting to be written
+     * @return The queued bytes
+     */
+    public long getQueuedBytes(){
+        return queuedBytes.get();
+    }
+    
+    /**
+     * Returns the highest queue depth seen
+     * @return The highest queue depth
+     */
+    public int getHighWaterMark(){
+        return highWaterMark.get();
+    }
+    
+    /**
+     * Returns the maximum number of messages allowed in the queue
+     * @return The queue limit
+     */
+    public int getLimit(){
+        return limit;
+    }
+    
+    /**
+     * Returns the number of messages written to the client
+     * @return The number of sent messages
+     */
+    public long getSentCount(){
+        return sent.sum();
+    }
+    
+    /**
+     * Returns the number of messages dropped because the queue was full
+     * @return The number of dropped messages
+     */
+    public long getDroppedCount(){
+        return dropped.sum();
+    }
+}
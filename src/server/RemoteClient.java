@@ -1,7 +1,12 @@
 
 package server;
 
+import data.ClockSync;
+import data.DatagramSession;
+import data.LatencyHistogram;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.BitSet;
 
 /**
  *
@@ -12,6 +17,31 @@ public class RemoteClient {
     private Socket socket;
     private IClientData clientData;
     
+    // maintained by the ClientRegistry's tag index
+    int slot = -1;
+    final BitSet tagIDs = new BitSet();
+    
+    // set by the Server when the client registers
+    volatile OutboundQueue outbound;
+    
+    // last roster version the client acknowledged in a PONG
+    volatile long rosterVersion;
+    // ping last sent to the other clients with the roster
+    long rosterPing;
+    
+    // highest ping sequence answered, older or repeated PONGs are ignored
+    long lastPongSequence;
+    private final LatencyHistogram roundTripTimes = new LatencyHistogram();
+    private final ClockSync clock = new ClockSync();
+    
+    // the optional UDP channel, the address is learned from the client's datagrams
+    volatile long udpToken;
+    volatile SocketAddress udpAddress;
+    volatile DatagramSession udpSession;
+    
+    // newest snapshot the client acknowledged, deltas are built against it
+    volatile long snapshotAck;
+    
     /**
      * Constructor for the RemoteClient object
      * @param id The client id
@@ -40,6 +70,57 @@ public class RemoteClient {
         return socket;
     }
     
+    /**
+     * Getter for the round trip times measured by the server's pings
+     * @return The round trip time histogram
+     */
+    public LatencyHistogram getRoundTripTimes() {
+        return roundTripTimes;
+    }
+    
+    /**
+     * Getter for the estimate of this client's clock, built from pings
+     * @return The clock estimate, with the server as initiator
+     */
+    public ClockSync getClock() {
+        return clock;
+    }
+    
+    /**
+     * Getter for the current offset of the client's clock from the server's
+     * @return Client <code>System.nanoTime()</code> minus the server's, in nanoseconds
+     */
+    public long getClockOffsetNanos() {
+        return clock.offset(System.nanoTime());
+    }
+    
+    /**
+     * Converts a timestamp taken on the client into server time, e.g. to
+     * place a player's input on the server's timeline for lag compensation
+     * @param clientNanos A <code>System.nanoTime()</code> value from the client
+     * @return The same moment on the server's clock
+     */
+    public long toServerTime(long clientNanos) {
+        return clock.toInitiatorTime(clientNanos);
+    }
+    
+    /**
+     * Getter for the state of the client's UDP channel, i.e. retransmit and
+     * round trip statistics
+     * @return The UDP session, or null if the client has no UDP channel
+     */
+    public DatagramSession getUdpSession() {
+        return udpSession;
+    }
+    
+    /**
+     * Getter for the queue of messages waiting to be written to this client
+     * @return The outbound queue, or null if the client is not registered
+     */
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+    
     /**
      * Getter for the ClientData implementation
      * @return
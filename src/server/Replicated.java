@@ -0,0 +1,18 @@
+
+package server;
+
+/**
+ * Interface for game objects whose state is sent to clients by a
+ * <code>SnapshotReplicator</code>
+ * @author jaron
+ */
+public interface Replicated {
+
+    /**
+     * Returns the object's current state, one element per field. Fields can
+     * be anything the codec can encode. The array is kept as part of the
+     * snapshot, so return a new one every time.
+     * @return The object's fields
+     */
+    public Object[] capture();
+}
@@ -0,0 +1,128 @@
+
+package server;
+
+import java.util.*;
+
+/**
+ * Versioned copy of the connected clients' data that gets sent to clients
+ * with every PING. Every change bumps the version, so instead of the whole
+ * list each client is only sent what changed since the version it last
+ * acknowledged in its PONG. Clients that are too far behind, or have never
+ * acknowledged anything, get a full snapshot.
+ * @author jaron
+ */
+class Roster {
+
+    // removals kept around for building deltas, older ones force a snapshot
+    static final int MAX_REMOVALS = 1024;
+
+    private long version;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private final ArrayDeque<Entry> removals = new ArrayDeque<>();
+
+    // deltas can't be built from versions before this one
+    private long oldestDelta;
+
+    private static class Entry {
+        final String id;
+        final IClientData data;
+        long changed;
+
+        Entry(String id, IClientData data, long changed){
+            this.id = id;
+            this.data = data;
+            this.changed = changed;
+        }
+    }
+
+    /**
+     * The changes between a client's acknowledged version and the current one
+     */
+    static class Update {
+        final long version;
+        final long baseVersion;
+        final boolean full;
+        final ArrayList<IClientData> changed;
+        final ArrayList<String> removed;
+
+        Update(long version, long baseVersion, boolean full, ArrayList<IClientData> changed, ArrayList<String> removed){
+            this.version = version;
+            this.baseVersion = baseVersion;
+            this.full = full;
+            this.changed = changed;
+            this.removed = removed;
+        }
+
+        boolean isEmpty(){
+            return !full && changed.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    /**
+     * Adds or replaces a client's entry
+     * @param id The client id
+     * @param data The client's data
+     */
+    synchronized void put(String id, IClientData data){
+        entries.put(ClientRegistry.normalize(id), new Entry(id, data, ++version));
+    }
+
+    /**
+     * Marks a client's entry as changed, so it is sent again
+     * @param id The client id
+     */
+    synchronized void changed(String id){
+        Entry e = entries.get(ClientRegistry.normalize(id));
+        if (e != null)
+            e.changed = ++version;
+    }
+
+    /**
+     * Removes a client's entry if it still holds the given data
+     * @param id The client id
+     * @param data The client's data
+     */
+    synchronized void remove(String id, IClientData data){
+        String key = ClientRegistry.normalize(id);
+        Entry e = entries.get(key);
+        if (e == null || e.data != data)
+            return;
+
+        entries.remove(key);
+        removals.add(new Entry(id, null, ++version));
+        if (removals.size() > MAX_REMOVALS)
+            oldestDelta = removals.poll().changed;
+    }
+
+    /**
+     * Getter for the current version
+     * @return The roster version
+     */
+    synchronized long version(){
+        return version;
+    }
+
+    /**
+     * Builds the update for a client that has acknowledged the given version
+     * @param baseVersion The version the client last acknowledged, 0 for none
+     * @return The changes since that version, or a full snapshot
+     */
+    synchronized Update since(long baseVersion){
+        ArrayList<IClientData> changed = new ArrayList<>();
+        ArrayList<String> removed = new ArrayList<>();
+
+        boolean full = baseVersion <= 0 || baseVersion < oldestDelta || baseVersion > version;
+        for (Entry e : entries.values()){
+            if (full || e.changed > baseVersion)
+                changed.add(e.data);
+        }
+        if (!full){
+            for (Entry e : removals){
+                if (e.changed > baseVersion)
+                    removed.add(e.id);
+            }
+        }
+        return new Update(version, full ? 0 : baseVersion, full, changed, removed);
+    }
+}
@@ -4,7 +4,13 @@ package server;
 import data.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
 
 /**
  * 
@@ -13,18 +19,59 @@ import java.util.*;
 public abstract class Server {
     
     protected HashMap<String, Response> responses = new HashMap<>();
+    protected HashMap<String, MessageHandler> messageHandlers = new HashMap<>();
+    
+    // compiled from responses and handlers once registerResponses() has run
+    protected OpcodeTable opcodes;
+    private volatile Response[] dispatchTable = new Response[0];
+    private volatile MessageHandler[] handlerTable = new MessageHandler[0];
+    
+    private final ConcurrentHashMap<Socket, Connection> connections = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<OpcodeTable, OpcodeTable> peerOpcodeTables = new ConcurrentHashMap<>();
     
     protected ServerSocket server;
     protected int port;
 
-    protected ArrayList<RemoteClient> connectedClients;
-    protected ArrayList<RemoteClient> clientCleanupQueue;
+    protected final ClientRegistry connectedClients = new ClientRegistry();
+    private final Roster roster = new Roster();
     
     protected Thread listener;
     protected boolean keepConnectionAlive;
     protected boolean logResponses;
     protected boolean stopped;
     protected int pingInterval = 15 * 1000;
+    protected long rosterPingTolerance = DEFAULT_ROSTER_PING_TOLERANCE;
+    
+    protected boolean useNio;
+    protected int eventLoopThreads = DEFAULT_EVENT_LOOP_THREADS;
+    private NioEngine nioEngine;
+    
+    protected int udpPort = -1;
+    private UdpEndpoint udp;
+    
+    protected Executor executor = HandlerExecutors.threadPerTask();
+    protected Codec codec = new BinaryCodec();
+    
+    protected int outboundQueueLimit = DEFAULT_OUTBOUND_QUEUE_LIMIT;
+    protected SlowConsumerPolicy slowConsumerPolicy = DEFAULT_SLOW_CONSUMER_POLICY;
+    protected FlushPolicy flushPolicy = FlushPolicy.immediate();
+    
+    protected int tickRate = DEFAULT_TICK_RATE;
+    private TickLoop tickLoop;
+    
+    protected int requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+    protected int maxPendingRequests = DEFAULT_MAX_PENDING_REQUESTS;
+    
+    // requests sent to clients that are waiting for a reply, by correlation ID
+    private final ConcurrentHashMap<Integer, ClientRequest> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingRequestCount = new AtomicInteger();
+    private final AtomicInteger nextRequestID = new AtomicInteger();
+    
+    protected final ServerMetrics metrics = new ServerMetrics(this);
+    
+    // shared by every Server in the JVM, like the static log methods
+    private static volatile Logger logger = AsyncLogger.getDefault();
+    protected boolean jmxEnabled;
     
     /**
      * Setter for the time between pings when the
@@ -35,8 +82,143 @@ public abstract class Server {
         this.pingInterval = seconds * 1000;
     }
     
+    /**
+     * Setter for when queued messages are flushed to clients. Defaults to
+     * flushing every message, see <code>FlushPolicy.batched()</code>. Call
+     * this from within <code>registerResponses()</code>.
+     * @param flushPolicy The flush policy
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+    
+    /**
+     * Enables the unreliable UDP channel on the given port, usually the same
+     * number as the TCP port. Clients that ask for it at registration are
+     * told the port and a token to send with their datagrams. Call this from
+     * within <code>registerResponses()</code>.
+     * @param port The UDP port, 0 for any free port or -1 to disable UDP
+     */
+    public void setUdpPort(int port) {
+        this.udpPort = port;
+    }
+    
+    /**
+     * Setter for how much a client's ping has to change before the new value
+     * is sent to the other clients with the roster. Small jitter would
+     * otherwise resend every client's entry with every ping.
+     * @param millis The tolerance in milliseconds, 0 to send every change
+     */
+    public void setRosterPingTolerance(long millis) {
+        this.rosterPingTolerance = millis;
+    }
+    
+    /**
+     * Setter for the number of event loop threads used when the server runs
+     * in NIO mode. Only takes effect if called before the server is started,
+     * i.e. from within <code>registerResponses()</code>.
+     * @param threads The number of selector threads
+     */
+    public void setEventLoopThreads(int threads) {
+        this.eventLoopThreads = threads;
+    }
+    
+    /**
+     * Enables tick mode. Instead of running each handler as its message
+     * arrives, received messages are queued and handled in one batch per
+     * tick on a single simulation thread, followed by <code>onTick()</code>
+     * and a flush of every client's queued messages. Handlers then never run
+     * concurrently with each other, and the executor is not used. Call this
+     * from within <code>registerResponses()</code>.
+     * @param ticksPerSecond The tick rate, i.e. 60, or 0 to handle messages as they arrive
+     */
+    public void setTickRate(int ticksPerSecond) {
+        this.tickRate = ticksPerSecond;
+    }
+    
+    /**
+     * Publishes the server's metrics as an MXBean while it runs, under
+     * <code>SimpleJavaNetcodeLib:type=Server,name="port"</code>. Call this
+     * from within <code>registerResponses()</code>.
+     * @param jmxEnabled Whether to register the MXBean
+     */
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+    
+    /**
+     * Setter for the executor that runs response handlers. Defaults to a new
+     * thread per message, see <code>HandlerExecutors</code> for pooled and
+     * virtual thread alternatives.
+     * @param executor The executor to run handlers on
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+    
+    /**
+     * Setter for the codec used to encode messages on the wire. Clients must
+     * use the same codec. Call this from within <code>registerResponses()</code>.
+     * @param codec The codec to use
+     */
+    public void setCodec(Codec codec) {
+        this.codec = codec;
+    }
+    
+    /**
+     * Setter for the maximum number of messages that can be waiting to be
+     * written to a single client. Only affects connections opened afterwards.
+     * @param limit The per-client queue limit
+     */
+    public void setOutboundQueueLimit(int limit) {
+        this.outboundQueueLimit = limit;
+    }
+    
+    /**
+     * Setter for what happens when a client's outbound queue is full, see
+     * <code>SlowConsumerPolicy</code>. Defaults to disconnecting the client.
+     * BLOCK only blocks application threads, sends from the NIO event loops
+     * or the tick loop disconnect the client instead.
+     * @param policy The slow consumer policy
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy policy) {
+        this.slowConsumerPolicy = policy;
+    }
+    
+    /**
+     * Setter for how long <code>request()</code> waits for a client's reply
+     * when no timeout is given
+     * @param millis The timeout in milliseconds
+     */
+    public void setRequestTimeout(int millis) {
+        this.requestTimeout = millis;
+    }
+    
+    /**
+     * Setter for the maximum number of requests to clients that can be
+     * waiting for a reply at once. Further requests fail straight away, so
+     * clients that never answer can't make the server run out of memory.
+     * @param max The maximum number of pending requests
+     */
+    public void setMaxPendingRequests(int max) {
+        this.maxPendingRequests = max;
+    }
+    
     public static final boolean DEFAULT_KEEP_ALIVE = true;
     public static final boolean DEFAULT_LOG_RESPONSES = true;
+    public static final boolean DEFAULT_USE_NIO = false;
+    public static final int DEFAULT_EVENT_LOOP_THREADS = 1;
+    public static final int DEFAULT_OUTBOUND_QUEUE_LIMIT = 4096;
+    public static final long DEFAULT_ROSTER_PING_TOLERANCE = 5;
+    public static final SlowConsumerPolicy DEFAULT_SLOW_CONSUMER_POLICY = SlowConsumerPolicy.DISCONNECT;
+    public static final int DEFAULT_REQUEST_TIMEOUT = 5000;
+    public static final int DEFAULT_MAX_PENDING_REQUESTS = 16 * 1024;
+    public static final int DEFAULT_TICK_RATE = 0;
+    
+    // clients registering a bigger opcode table than this are disconnected
+    public static final int MAX_PEER_OPCODES = 4096;
+    // distinct client opcode tables shared between connections, any others are kept per connection
+    private static final int MAX_SHARED_OPCODE_TABLES = 64;
     
     
 
@@ -48,13 +230,13 @@ public abstract class Server {
      * @param keepConnectionAlive Flag for sending periodic pings to connected clients
      * @param logResponses Flag for logging client repsonses
      * @param cd The implementation for data kept on the Server
+     * @param useNio Flag for using the non-blocking selector based transport
      */  
-    public Server(int port, boolean keepConnectionAlive, boolean logResponses, Class cd){
-        this.connectedClients = new ArrayList<>();
-        this.clientCleanupQueue = new ArrayList<>();
+    public Server(int port, boolean keepConnectionAlive, boolean logResponses, Class cd, boolean useNio){
         this.port = port;
         this.keepConnectionAlive = keepConnectionAlive;
         this.logResponses = logResponses;
+        this.useNio = useNio;
         
         boolean correctImpl = false;
         for (Class c : cd.getInterfaces()){
@@ -72,6 +254,7 @@ public abstract class Server {
         registerDefaultResponses(cd);
         log("[Server] Registering additional responses...");
         registerResponses();
+        compileResponses();
         start();
         
         if (keepConnectionAlive){
@@ -80,6 +263,28 @@ public abstract class Server {
         }
     }
     
+    /**
+     * Constructor for a Server object using the blocking transport.
+     * @param port The port to run the server on
+     * @param keepConnectionAlive Flag for sending periodic pings to connected clients
+     * @param logResponses Flag for logging client repsonses
+     * @param cd The implementation for data kept on the Server
+     */  
+    public Server(int port, boolean keepConnectionAlive, boolean logResponses, Class cd){
+        this(port, keepConnectionAlive, logResponses, cd, DEFAULT_USE_NIO);
+    }
+    
+    /**
+     * Constructor for a Server object, choosing between the blocking and 
+     * NIO transports
+     * @param port The port to run the server on
+     * @param cd The implementation for data kept on the Server
+     * @param useNio Flag for using the non-blocking selector based transport
+     */
+    public Server(int port, Class cd, boolean useNio){
+        this(port, DEFAULT_KEEP_ALIVE, DEFAULT_LOG_RESPONSES, cd, useNio);
+    }
+    
     /**
      * Constructor for a Server object, omitting the 
      * <code>keepConnectionAlive</code> flag
@@ -134,19 +339,54 @@ public abstract class Server {
         responses.put("REGISTER_CLIENT", new Response(){
             @Override
             public void run(Data data, Socket socket) {
+                if (data.size() > 2) {
+                    Connection connection = connections.get(socket);
+                    List<String> identifiers = data.getList(2, String.class);
+                    if (identifiers == null){
+                        logError("[Server] Client " + data.getSenderID() + " sent a malformed opcode table, disconnecting");
+                        if (connection != null)
+                            closeConnection(connection);
+                        return;
+                    }
+                    if (identifiers.size() > MAX_PEER_OPCODES){
+                        logError("[Server] Client " + data.getSenderID() + " registered " 
+                                + identifiers.size() + " opcodes, disconnecting");
+                        if (connection != null)
+                            closeConnection(connection);
+                        return;
+                    }
+                    if (connection != null)
+                        connection.peerOpcodes = internOpcodes(new OpcodeTable(identifiers));
+                    sendReply(socket, "OPCODES", opcodes.identifiers());
+                }
+                
+                RemoteClient client;
                 try {
-                    connectedClients.add(new RemoteClient((String) data.getSenderID(), socket, (IClientData) cd.newInstance()));
+                    client = new RemoteClient(data.getSenderID(), socket, (IClientData) cd.newInstance());
                 } catch (InstantiationException | IllegalAccessException ex) {
                     logError(ex.getMessage());
                     return;
                 } 
-                // This code is kinda awful but I can't think of a better
-                // solution rn so I'll leave it as is
-                for (RemoteClient c : connectedClients){
-                    if (c.getId().equalsIgnoreCase((String) data.getSenderID())){
-                        c.getClientData().setClientID((String) data.getSenderID());
-                    }
+                client.getClientData().setClientID(data.getSenderID());
+                Connection connection = connections.get(socket);
+                if (connection != null)
+                    client.outbound = connection.outbound;
+                
+                RemoteClient previous = connectedClients.add(client);
+                roster.put(client.getId(), client.getClientData());
+                if (previous != null) {
+                    log("[Server] Client " + client.getId() + " registered again, replacing the old connection");
+                    if (udp != null)
+                        udp.unregister(previous);
+                    failPendingRequests(previous);
+                    // the old socket no longer maps to a client, so nothing else would close it
+                    if (previous.getSocket() != socket)
+                        closeConnection(previous);
+                    onClientRemoved(previous);
                 }
+                
+                if (udp != null && data.size() > 3 && Boolean.TRUE.equals(data.get(3)))
+                    sendReply(socket, "UDP", udp.port(), udp.register(client));
                 onClientRegistered(data, socket);
             }
         });
@@ -155,15 +395,15 @@ public abstract class Server {
             @Override
             public void run(Data data, Socket socket) {
                 data.remove(0);
-                for (RemoteClient c : connectedClients){
-                    if (c.getId().equalsIgnoreCase(data.getSenderID())){
-                        c.getClientData().getClientTags().clear();
-                        ArrayList<String> temp = new ArrayList<>();
-                        for (Object s : data){
-                            temp.add((String) s);
-                        }
-                        log("[Server] Setting client tags " + temp.toString() + " for client: " + c.getId());
-                        c.getClientData().setClientTags(temp);
+                RemoteClient c = connectedClients.get(data.getSenderID());
+                if (c != null){
+                    ArrayList<String> temp = new ArrayList<>();
+                    for (Object s : data){
+                        temp.add((String) s);
+                    }
+                    log("[Server] Setting client tags " + temp.toString() + " for client: " + c.getId());
+                    if (connectedClients.setTags(c, temp)){
+                        roster.changed(c.getId());
                         onTagsSet(c);
                     }
                 }
@@ -174,14 +414,15 @@ public abstract class Server {
             @Override
             public void run(Data data, Socket socket) {
                 data.remove(0);
-                for (RemoteClient c : connectedClients){
-                    if (c.getId().equalsIgnoreCase(data.getSenderID())){
-                        ArrayList<String> temp = new ArrayList<>();
-                        for (Object s : data){
-                            temp.add((String) s);
-                        }
-                        log("[Server] Adding client tags " + temp.toString() + " for client: " + c.getId());
-                        c.getClientData().setClientTags(temp);
+                RemoteClient c = connectedClients.get(data.getSenderID());
+                if (c != null){
+                    ArrayList<String> temp = new ArrayList<>();
+                    for (Object s : data){
+                        temp.add((String) s);
+                    }
+                    log("[Server] Adding client tags " + temp.toString() + " for client: " + c.getId());
+                    if (connectedClients.addTags(c, temp)){
+                        roster.changed(c.getId());
                         onTagsAdded(c);
                     }
                 }
@@ -192,14 +433,15 @@ public abstract class Server {
             @Override
             public void run(Data data, Socket socket) {
                 data.remove(0);
-                for (RemoteClient c : connectedClients){
-                    if (c.getId().equalsIgnoreCase(data.getSenderID())){
-                        ArrayList<String> temp = new ArrayList<>();
-                        for (Object s : data){
-                            temp.remove((String) s);
-                        }
-                        log("[Server] Removing client tags " + temp.toString() + " for client: " + c.getId());
-                        c.getClientData().setClientTags(temp);
+                RemoteClient c = connectedClients.get(data.getSenderID());
+                if (c != null){
+                    ArrayList<String> temp = new ArrayList<>();
+                    for (Object s : data){
+                        temp.add((String) s);
+                    }
+                    log("[Server] Removing client tags " + temp.toString() + " for client: " + c.getId());
+                    if (connectedClients.removeTags(c, temp)){
+                        roster.changed(c.getId());
                         onTagsRemoved(c);
                     }
                 }
@@ -209,14 +451,28 @@ public abstract class Server {
         responses.put("LOGOUT", new Response(){
             @Override
             public void run(Data data, Socket socket) {
-                for (RemoteClient c : connectedClients){
-                    if (c.getId().equalsIgnoreCase((String) data.getSenderID())){
-                        log("[Server] Logging out client " + c.getId());
-                        clientCleanupQueue.add(c);
-                        onClientLogout();
-                    }
+                // the client closes its connection right after logging out, so
+                // it may already have been removed by the time this runs
+                RemoteClient c = connectedClients.get(data.getSenderID());
+                if (c == null || c.getSocket() == socket){
+                    log("[Server] Logging out client " + data.getSenderID());
+                    onClientLogout();
+                    if (c != null)
+                        removeClient(c);
+                }
+            }
+        });
+        
+        responses.put("SNAPSHOT_ACK", new Response(){
+            @Override
+            public void run(Data data, Socket socket) {
+                RemoteClient c = connectedClients.get(data.getSenderID());
+                if (c != null && c.getSocket() == socket){
+                    long sequence = (long) data.get(1);
+                    // acks sent over UDP can arrive out of order
+                    if (sequence > c.snapshotAck)
+                        c.snapshotAck = sequence;
                 }
-                cleanupClients();
             }
         });
         
@@ -224,11 +480,12 @@ public abstract class Server {
             responses.put("PONG", new Response(){
                 @Override
                 public void run(Data data, Socket socket) {
-                    long ping = Math.abs(lastPingTime - (long) data.get(1)) / 1000000;
-                    for (RemoteClient c : connectedClients){
-                        if (c.getId().equalsIgnoreCase(data.getSenderID())){
-                            c.getClientData().setPing(ping);
-                        }
+                    RemoteClient c = connectedClients.get(data.getSenderID());
+                    if (c != null){
+                        if (data.size() > 2)
+                            c.rosterVersion = (long) data.get(2);
+                        if (data.size() > 3)
+                            recordPong(c, data);
                     }
                 }
             });
@@ -241,6 +498,33 @@ public abstract class Server {
      * @param response The action that occurs upon receiving the response
      */
     public void registerResponse(String identifier, Response response){
+        checkIdentifier(identifier);
+        responses.put(identifier, response);
+        
+        // registered after startup, clients that already have the table
+        // will send this one by identifier
+        if (opcodes != null)
+            compileResponses();
+    }
+    
+    /**
+     * Registers a handler for messages built with a <code>MessageWriter</code>.
+     * Unlike responses, handlers run straight on the thread that read the
+     * message, an event loop or connection reader, even in tick mode, so
+     * they must not block. Use within the <code>registerResponses()</code>
+     * method.
+     * @param identifier The string used to identify the message, i.e. "MOVE"
+     * @param handler The handler that reads the message
+     */
+    public void registerHandler(String identifier, MessageHandler handler){
+        checkIdentifier(identifier);
+        messageHandlers.put(identifier, handler);
+        
+        if (opcodes != null)
+            compileResponses();
+    }
+    
+    private void checkIdentifier(String identifier){
         for (String s : responses.keySet()){
             if (identifier.equalsIgnoreCase(s)){
                 if (identifier.equalsIgnoreCase("PONG") && !keepConnectionAlive)
@@ -248,9 +532,51 @@ public abstract class Server {
                 throw new IllegalArgumentException("Identifier can not be " 
                         + s + ". Already regsitered.");
             }
-        } 
-        
-        responses.put(identifier, response);
+        }
+        for (String s : messageHandlers.keySet()){
+            if (identifier.equalsIgnoreCase(s))
+                throw new IllegalArgumentException("Identifier can not be " 
+                        + s + ". Already regsitered.");
+        }
+    }
+    
+    /**
+     * Compiles the registered responses and handlers into the opcode table
+     * sent to clients and the arrays used to dispatch incoming messages. Opcodes of responses
+     * that were already compiled stay the same.
+     */
+    protected synchronized void compileResponses(){
+        ArrayList<String> identifiers = new ArrayList<>(responses.keySet());
+        identifiers.addAll(messageHandlers.keySet());
+        OpcodeTable table = opcodes == null 
+                ? new OpcodeTable(identifiers) : opcodes.extend(identifiers);
+        Response[] handlers = new Response[table.size() + 1];
+        for (Map.Entry<String, Response> e : responses.entrySet()){
+            handlers[table.opcode(e.getKey())] = e.getValue();
+        }
+        MessageHandler[] rawHandlers = new MessageHandler[table.size() + 1];
+        for (Map.Entry<String, MessageHandler> e : messageHandlers.entrySet()){
+            rawHandlers[table.opcode(e.getKey())] = e.getValue();
+        }
+        opcodes = table;
+        dispatchTable = handlers;
+        handlerTable = rawHandlers;
+    }
+    
+    /**
+     * Returns a shared instance of a client's opcode table, since clients
+     * running the same code all register the same one. Once
+     * <code>MAX_SHARED_OPCODE_TABLES</code> are shared new tables aren't
+     * kept, so clients sending a different table every time can't grow the map.
+     */
+    private OpcodeTable internOpcodes(OpcodeTable table){
+        OpcodeTable existing = peerOpcodeTables.get(table);
+        if (existing != null)
+            return existing;
+        if (peerOpcodeTables.size() >= MAX_SHARED_OPCODE_TABLES)
+            return table;
+        existing = peerOpcodeTables.putIfAbsent(table, table);
+        return existing == null ? table : existing;
     }
     
     /**
@@ -264,29 +590,11 @@ public abstract class Server {
                     while (!Thread.interrupted() && !stopped && server != null){
                         try {
                             Socket clientSocket = server.accept();
-                           
-                            ObjectInputStream in = new ObjectInputStream(
-                                new BufferedInputStream(clientSocket.getInputStream()));
-                            Object data = in.readObject();
-                           
-                            if (data instanceof Data){
-                                Data message = (Data) data;
-                               
-                                for (String s : responses.keySet()){
-                                    if (message.id().equalsIgnoreCase(s)) {
-                                        // avoiding the log being spammed with ping requests/responses
-                                        if (!message.id().equalsIgnoreCase("PONG") && logResponses)
-                                            log("[Server] Responding to client " 
-                                                    + message.getSenderID() + " request " + message.id());
-                                        startRequestHandler(s, message, clientSocket);
-                                        break;
-                                    }
-                                }
-                            }
+                            startConnectionReader(clientSocket);
                         } catch (SocketException e) {
                             logError("Server stopped: " + e.getMessage());
                             onServerStopped();
-                        } catch (IOException | ClassNotFoundException e) {
+                        } catch (IOException e) {
                             logError("Server stopped: " + e.getMessage());
                             onServerStopped();
                         } 
@@ -298,28 +606,248 @@ public abstract class Server {
     }
     
     /**
-     * Starts the thread to handle the client request
-     * @param requestID The response identifier
-     * @param data The data sent with the request
-     * @param socket The client socket that sent the request
+     * Starts the thread that reads messages from a single client connection
+     * until the client closes it. Clients keep one connection open for all of
+     * their messages, so this is the blocking transport's per-connection loop.
+     * @param clientSocket The accepted client socket
      */
-    protected void startRequestHandler(String requestID, Data data, Socket socket){
+    protected void startConnectionReader(Socket clientSocket){
         new Thread(new Runnable(){
             @Override
             public void run(){
-                responses.get(requestID).run(data, socket);
-                
-                if (!data.id().equals("REGISTER_CLIENT")) {
-                    try {
-                        socket.close();
-                    } catch (IOException e) {
-                        logError("Error closing socket: " + e.getMessage());
+                startConnectionWriter(connectionOpened(clientSocket));
+                try {
+                    DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(clientSocket.getInputStream()));
+                    FrameReader frames = new FrameReader();
+                    while (!stopped && !clientSocket.isClosed()){
+                        int length = frames.read(in);
+                        if (Wire.isRaw(frames.array(), 0))
+                            dispatch(MessageReader.wrap(frames.array(), 0, length, opcodes), clientSocket);
+                        else
+                            dispatch(Wire.decode(frames.array(), 0, length, codec, opcodes), clientSocket);
                     }
+                } catch (EOFException e) {
+                    // client closed the connection
+                } catch (IOException e) {
+                    if (!stopped && !clientSocket.isClosed())
+                        logError("Error reading from client: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    logError("Error handling message from client: " + e);
                 }
+                
+                connectionClosed(clientSocket);
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {  }
+            }
+        }).start();
+    }
+    
+    /**
+     * Starts the thread that writes a connection's outbound queue to its
+     * socket for the blocking transport. Whatever has queued up while the
+     * last write was in progress goes out with a single flush.
+     * @param connection The connection to write to
+     */
+    protected void startConnectionWriter(Connection connection){
+        new Thread(new Runnable(){
+            @Override
+            public void run(){
+                OutboundQueue outbound = connection.outbound;
+                FlushPolicy policy = flushPolicy;
+                long maxDelay = policy.getMaxDelayMicros() * 1000;
+                byte[] chunk = null;
+                
+                // bytes written since the last flush, and when the first of them was
+                long unflushed = 0;
+                long unflushedSince = 0;
+                try {
+                    OutputStream out = new BufferedOutputStream(connection.socket.getOutputStream(), 
+                            Math.max(8192, policy.getMaxBytes()));
+                    while (!stopped && !outbound.isClosed()){
+                        long wait = unflushed > 0 ? unflushedSince + maxDelay - System.nanoTime() : 1000000000L;
+                        ByteBuffer message = wait > 0 ? outbound.poll(wait) : outbound.poll(0);
+                        
+                        while (message != null){
+                            if (unflushed == 0)
+                                unflushedSince = System.nanoTime();
+                            unflushed += message.remaining();
+                            
+                            if (message.hasArray()){
+                                out.write(message.array(), message.arrayOffset() + message.position(), message.remaining());
+                                message = outbound.poll(0);
+                                continue;
+                            }
+                            // shared broadcast frames are read-only, copy them out in chunks
+                            if (chunk == null)
+                                chunk = new byte[8192];
+                            while (message.hasRemaining()){
+                                int n = Math.min(chunk.length, message.remaining());
+                                message.get(chunk, 0, n);
+                                out.write(chunk, 0, n);
+                            }
+                            message = outbound.poll(0);
+                        }
+                        
+                        boolean requested = outbound.takeFlushRequest();
+                        if (unflushed > 0 && (policy.isImmediate() || requested
+                                || unflushed >= policy.getMaxBytes() 
+                                || System.nanoTime() - unflushedSince >= maxDelay)){
+                            out.flush();
+                            unflushed = 0;
+                        }
+                    }
+                } catch (IOException e) {
+                    if (!stopped && !connection.socket.isClosed())
+                        logError("Error writing to client: " + e.getMessage());
+                } catch (InterruptedException e) {  }
+                
+                // the reader notices the closed socket and cleans up
+                outbound.close();
+                try {
+                    connection.socket.close();
+                } catch (IOException e) {  }
             }
         }).start();
     }
     
+    /**
+     * Called by the transports when a connection is accepted
+     * @param socket The accepted socket
+     * @return The state kept for the connection
+     */
+    Connection connectionOpened(Socket socket){
+        try {
+            socket.setTcpNoDelay(flushPolicy.isTcpNoDelay());
+        } catch (SocketException e) {
+            logError("Error setting TCP_NODELAY: " + e.getMessage());
+        }
+        Connection connection = new Connection(socket, new OutboundQueue(outboundQueueLimit, slowConsumerPolicy));
+        connections.put(socket, connection);
+        metrics.accepted();
+        return connection;
+    }
+    
+    /**
+     * Returns the open connections, for metrics
+     * @return A live view of the connections
+     */
+    Collection<Connection> openConnections(){
+        return connections.values();
+    }
+    
+    /**
+     * Called by the transports once a connection is closed
+     * @param socket The closed socket
+     */
+    void connectionClosed(Socket socket){
+        Connection connection = connections.remove(socket);
+        if (connection != null)
+            connection.outbound.close();
+        
+        RemoteClient client = connectedClients.get(socket);
+        if (client != null)
+            removeClient(client);
+    }
+    
+    /**
+     * Looks up the response for a received message and starts its handler.
+     * Used by both the blocking listener and the NIO event loops.
+     * @param message The message received from the client
+     * @param socket The client socket that sent the message
+     */
+    protected void dispatch(Data message, Socket socket){
+        if (message.isReply() && completeRequest(message, socket)){
+            metrics.received(message);
+            return;
+        }
+        
+        int opcode = message.getOpcode();
+        if (opcode == OpcodeTable.NONE)
+            opcode = opcodes.opcode(message.id());
+        
+        Response[] handlers = dispatchTable;
+        if (opcode == OpcodeTable.NONE || opcode >= handlers.length || handlers[opcode] == null)
+            return;
+        metrics.received(message);
+        
+        // avoiding the log being spammed with ping requests/responses
+        if (logResponses && logger.isEnabled(LogLevel.INFO) && !message.id().equalsIgnoreCase("PONG"))
+            log("[Server] Responding to client " 
+                    + message.getSenderID() + " request " + message.id());
+        startRequestHandler(handlers[opcode], message, socket);
+    }
+    
+    /**
+     * Looks up the handler for a message built with a <code>MessageWriter</code>
+     * and runs it on the calling thread
+     * @param message The message received from the client
+     * @param socket The client socket that sent the message
+     */
+    protected void dispatch(MessageReader message, Socket socket){
+        int opcode = message.getOpcode();
+        if (opcode == OpcodeTable.NONE)
+            opcode = opcodes.opcode(message.id());
+        
+        MessageHandler[] handlers = handlerTable;
+        if (opcode == OpcodeTable.NONE || opcode >= handlers.length || handlers[opcode] == null)
+            return;
+        metrics.received(message.id(), message.getWireSize());
+        
+        long start = System.nanoTime();
+        try {
+            handlers[opcode].handle(message, socket);
+        } catch (RuntimeException e) {
+            logError("[Server] Error handling " + message.id() + ": " + e);
+        }
+        metrics.handled(message.id(), System.nanoTime() - start);
+    }
+    
+    /**
+     * Hands the client request to the handler executor
+     * @param response The response registered for the request
+     * @param data The data sent with the request
+     * @param socket The client socket that sent the request
+     */
+    protected void startRequestHandler(Response response, Data data, Socket socket){
+        if (tickLoop != null){
+            if (!tickLoop.submit(response, data, socket))
+                logError("[Server] Dropped request " + data.id() + " from " 
+                        + data.getSenderID() + ": too many requests waiting for the next tick");
+            return;
+        }
+        
+        try {
+            executor.execute(new Runnable(){
+                @Override
+                public void run(){
+                    runHandler(response, data, socket);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logError("[Server] Dropped request " + data.id() + " from " 
+                    + data.getSenderID() + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Runs a handler on the current thread
+     * @param response The response registered for the request
+     * @param data The data sent with the request
+     * @param socket The client socket that sent the request
+     */
+    void runHandler(Response response, Data data, Socket socket){
+        currentRequest.set(new PendingReply(data, socket));
+        long start = System.nanoTime();
+        try {
+            response.run(data, socket);
+        } finally {
+            metrics.handled(data, System.nanoTime() - start);
+            currentRequest.remove();
+        }
+    }
+    
     /**
      * Sets flags, opens the server socket and starts the main listener loop
      */
@@ -327,7 +855,39 @@ public abstract class Server {
         stopped = false;
         server = null;
         
+        if (tickRate > 0) {
+            // every tick ends with a flush, the deadline only matters for sends from other threads
+            if (flushPolicy.isImmediate())
+                flushPolicy = FlushPolicy.batched(FlushPolicy.DEFAULT_MAX_BYTES, 1000000L / tickRate);
+            tickLoop = new TickLoop(this, tickRate);
+            tickLoop.start();
+            log("[Server] Running handlers at " + tickRate + " ticks per second");
+        }
+        
+        if (jmxEnabled) {
+            try {
+                metrics.register("Server", String.valueOf(port));
+            } catch (javax.management.JMException e) {
+                logError("Error registering metrics MXBean: " + e.getMessage());
+            }
+        }
+        
         log("[Server] Attempting to open socket...");
+        if (udpPort >= 0) {
+            try {
+                udp = new UdpEndpoint(this, udpPort);
+                udp.start();
+                log("[Server] Listening for datagrams on port " + udp.port());
+            } catch (IOException e) {
+                logError("Error opening DatagramChannel: " + e.getMessage());
+            }
+        }
+        
+        if (useNio) {
+            startNio();
+            return;
+        }
+        
         try {
             server = new ServerSocket(port);
         } catch (IOException e) {
@@ -338,16 +898,54 @@ public abstract class Server {
         startListener();
     }
     
+    /**
+     * Opens a ServerSocketChannel and starts the NIO event loops in place of
+     * the blocking listener thread.
+     */
+    protected void startNio(){
+        try {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.bind(new InetSocketAddress(port));
+            server = channel.socket();
+            
+            log("[Server] Starting Server with " + eventLoopThreads + " event loop thread(s)...");
+            nioEngine = new NioEngine(this, channel, eventLoopThreads);
+            nioEngine.start();
+        } catch (IOException e) {
+            logError("Error opening ServerSocketChannel: " + e.getMessage());
+            server = null;
+        }
+    }
+    
     /**
      * Stops the server and closes sockets.
      */
     public void stop() {
         stopped = true;
         
-        if (listener.isAlive()){
+        if (listener != null && listener.isAlive()){
             listener.interrupt();
         }
         
+        if (nioEngine != null){
+            nioEngine.stop();
+        }
+        
+        if (udp != null){
+            udp.stop();
+        }
+        
+        if (tickLoop != null){
+            tickLoop.stop();
+        }
+        
+        metrics.unregister();
+        failPendingRequests(null);
+        
+        for (Connection connection : connections.values()){
+            connection.outbound.close();
+        }
+        
         if (server != null){
             try {
                 server.close();
@@ -360,6 +958,43 @@ public abstract class Server {
     
     protected long lastPingTime;
     
+    // send times of the last few pings by sequence, to check echoed PONGs
+    private static final int PING_HISTORY = 16;
+    private final AtomicLongArray pingTimes = new AtomicLongArray(PING_HISTORY);
+    private volatile long pingSequence;
+    
+    // reused by the ping thread for grouping clients by roster version
+    private long[] pingGroupVersions = new long[4];
+    private final ArrayList<ArrayList<RemoteClient>> pingGroups = new ArrayList<>();
+    
+    /**
+     * The request being handled on the current thread, used to correlate replies
+     */
+    private static class PendingReply {
+        final Data data;
+        final Socket socket;
+        
+        PendingReply(Data data, Socket socket){
+            this.data = data;
+            this.socket = socket;
+        }
+    }
+    
+    private final ThreadLocal<PendingReply> currentRequest = new ThreadLocal<>();
+    
+    /**
+     * A request sent to a client by <code>request()</code>, waiting for its reply
+     */
+    private static class ClientRequest {
+        final RemoteClient client;
+        final CompletableFuture<Data> future;
+        
+        ClientRequest(RemoteClient client, CompletableFuture<Data> future){
+            this.client = client;
+            this.future = future;
+        }
+    }
+    
     /**
      * Starts the thread that periodically pings connected clients.
      */
@@ -372,41 +1007,399 @@ public abstract class Server {
                         Thread.sleep(pingInterval);
                     } catch (InterruptedException ex) {  }
                     lastPingTime = System.nanoTime();
-                    if (connectedClients.size() > 1){
-                        ArrayList<IClientData> currentClients = new ArrayList<>();
-                        for (RemoteClient c : connectedClients){
-                            currentClients.add(c.getClientData());
-                        }
-                        broadcastMessage(new Data("PING", lastPingTime, currentClients));
-                        onPing();
-                    } else {
-                        broadcastMessage(new Data("PING", lastPingTime));
-                        onPing();
-                    }
+                    sendPing();
+                    onPing();
                 }
             }
         }).start();
     }
     
     /**
-     * Sends a message to a specified client
-     * @param client The client to send the message to
+     * Pings every client along with the roster changes since the version it
+     * last acknowledged. Clients are grouped by that version, which is the
+     * same for nearly all of them, so each update is only encoded once.
+     */
+    private void sendPing(){
+        int groups = 0;
+        for (RemoteClient c : connectedClients.snapshot()){
+            long version = c.rosterVersion;
+            int group = 0;
+            while (group < groups && pingGroupVersions[group] != version){
+                group++;
+            }
+            if (group == groups){
+                if (groups == pingGroupVersions.length)
+                    pingGroupVersions = Arrays.copyOf(pingGroupVersions, groups * 2);
+                if (groups == pingGroups.size())
+                    pingGroups.add(new ArrayList<>());
+                pingGroupVersions[group] = version;
+                groups++;
+            }
+            pingGroups.get(group).add(c);
+        }
+        
+        long sequence = pingSequence + 1;
+        pingTimes.set((int) (sequence % PING_HISTORY), lastPingTime);
+        pingSequence = sequence;
+        
+        for (int i = 0; i < groups; i++){
+            ArrayList<RemoteClient> group = pingGroups.get(i);
+            Roster.Update update = roster.since(pingGroupVersions[i]);
+            Data ping = new Data("PING", lastPingTime, sequence, update.version, update.baseVersion, 
+                    update.full, update.changed, update.removed);
+            sendToAll(group, ping);
+            group.clear();
+        }
+    }
+    
+    /**
+     * Records the round trip time of an answered ping. The client echoes the
+     * ping's sequence and send time, so only the server's clock is involved.
+     * Clients also send when they received the ping and answered it, which
+     * feeds the client's clock estimate and is taken off the round trip, so
+     * the time the client took to get to the ping isn't counted as network
+     * delay, like the NTP delay. The server's receive time is sent
+     * back so the client can estimate the server's clock the same way.
+     * @param client The client that answered
+     * @param pong The PONG message
+     */
+    private void recordPong(RemoteClient client, Data pong){
+        long sentAt = (long) pong.get(1);
+        long sequence = (long) pong.get(3);
+        long now = pong.getReceivedAt() != 0 ? pong.getReceivedAt() : System.nanoTime();
+        if (sequence > pingSequence || sequence <= pingSequence - PING_HISTORY
+                || pingTimes.get((int) (sequence % PING_HISTORY)) != sentAt)
+            return;
+        synchronized (client) {
+            if (sequence <= client.lastPongSequence)
+                return;
+            client.lastPongSequence = sequence;
+        }
+        
+        long roundTrip = now - sentAt;
+        if (pong.size() > 5) {
+            long clientReceived = (long) pong.get(4);
+            long clientAnswered = (long) pong.get(5);
+            client.getClock().addSample(sentAt, clientReceived, clientAnswered, now);
+            sendMessage(client, new Data("CLOCK", sequence, sentAt, now));
+            long held = clientAnswered - clientReceived;
+            if (held >= 0 && held <= roundTrip)
+                roundTrip -= held;
+        }
+        
+        LatencyHistogram rtt = client.getRoundTripTimes();
+        rtt.record(roundTrip);
+        long ping = (rtt.getAverage() + 500) / 1000;
+        client.getClientData().setPing(ping);
+        client.getClientData().setPingStats(rtt.stats());
+        if (Math.abs(ping - client.rosterPing) > rosterPingTolerance){
+            client.rosterPing = ping;
+            roster.changed(client.getId());
+        }
+    }
+    
+    /**
+     * Marks a client's data as changed, so the new values are sent to the
+     * other clients with the next ping. Changes made by the server itself,
+     * like tags, are picked up automatically; call this after changing
+     * fields of your own IClientData implementation.
+     * @param client The client whose data changed
+     */
+    public void clientDataChanged(RemoteClient client){
+        roster.changed(client.getId());
+    }
+    
+    /**
+     * Sends a message to a specified client
+     * @param client The client to send the message to
+     * @param data The data that is sent to the client
+     */
+    public void sendMessage(RemoteClient client, Data data) {
+        send(client, data);
+    }
+    
+    /**
+     * Queues a message on the client's connection, to be written by its
+     * writer thread or event loop. Never waits on the network, so a slow
+     * client can't hold up messages to anyone else.
+     * @param client The client to send the message to
+     * @param data The data that is sent to the client
+     * @return Whether the message was queued
+     */
+    private boolean send(RemoteClient client, Data data) {
+        return send(client, data, 0);
+    }
+    
+    /**
+     * Queues a message on the client's connection
+     * @param client The client to send the message to
+     * @param data The data that is sent to the client
+     * @param requestID The correlation ID to send it as a request with, 0 to
+     * use the message's own
+     * @return Whether the message was queued
+     */
+    private boolean send(RemoteClient client, Data data, int requestID) {
+        Connection connection = connectionOf(client);
+        if (connection == null)
+            return false;
+        
+        byte[] frame;
+        try {
+            frame = requestID == 0 ? Wire.encode(data, codec, connection.peerOpcodes) 
+                    : Wire.encodeRequest(data, requestID, codec, connection.peerOpcodes);
+        } catch (IOException e) {
+            logError("Error encoding message: " + e.getMessage());
+            metrics.sendFailed(1);
+            return false;
+        }
+        if (!enqueue(client, connection, ByteBuffer.wrap(frame), flushPolicy.shouldFlush(data))){
+            metrics.sendFailed(1);
+            return false;
+        }
+        metrics.sent(data, 1, frame.length);
+        return true;
+    }
+    
+    private Connection connectionOf(RemoteClient client){
+        Connection connection = connections.get(client.getSocket());
+        if (connection == null) {
+            logError("Error sending message: Remote Client is not connected");
+            metrics.sendFailed(1);
+            removeClient(client);
+        }
+        return connection;
+    }
+    
+    /**
+     * Returns whether the sending thread may wait for room in a full queue.
+     * Event loops and the tick loop drain the queues themselves, so waiting
+     * there would never end.
+     */
+    private boolean mayBlock(){
+        if (slowConsumerPolicy != SlowConsumerPolicy.BLOCK)
+            return true;
+        return !(nioEngine != null && nioEngine.isEventLoopThread()) 
+                && !(tickLoop != null && tickLoop.isLoopThread());
+    }
+    
+    private boolean enqueue(RemoteClient client, Connection connection, ByteBuffer frame, boolean flush){
+        switch (connection.outbound.offer(frame, mayBlock())){
+            case QUEUED:
+                if (connection.nio != null){
+                    if (flush || connection.outbound.getQueuedBytes() >= flushPolicy.getMaxBytes())
+                        nioEngine.requestWrite(connection.nio);
+                    else
+                        scheduleFlush(connection.nio);
+                } else if (flush && !flushPolicy.isImmediate()){
+                    // immediate mode writer threads flush after every message anyway
+                    connection.outbound.requestFlush();
+                }
+                return true;
+            case FULL:
+                logError("[Server] Client " + client.getId() + " is not keeping up, disconnecting");
+                metrics.evicted();
+                closeConnection(connection);
+                return false;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Sends a message to a client with the given delivery mode, see
+     * <code>Delivery</code>. Reliable modes fall back to TCP for clients
+     * without a UDP channel, unreliable messages are not sent to them.
+     * @param client The client to send the message to
      * @param data The data that is sent to the client
+     * @param delivery How to deliver the message
+     * @return Whether the message was sent or queued
      */
-    public synchronized void sendMessage(RemoteClient client, Data data) {
+    public boolean sendMessage(RemoteClient client, Data data, Delivery delivery) {
+        if (!delivery.isUdp() || (delivery.isReliable() && (udp == null || client.udpAddress == null)))
+            return send(client, data);
+        
+        Connection connection = connections.get(client.getSocket());
+        if (udp == null || connection == null)
+            return false;
+        
         try {
-            if (!client.getSocket().isConnected())
-                throw new ConnectException("Remote Client is not connected");
+            byte[] frame = Wire.encode(data, codec, connection.peerOpcodes);
+            if (!udp.send(client, frame, delivery)){
+                metrics.sendFailed(1);
+                return false;
+            }
+            metrics.sent(data, 1, frame.length);
+            return true;
+        } catch (IOException e) {
+            logError("Error encoding message: " + e.getMessage());
+            metrics.sendFailed(1);
+            return false;
+        }
+    }
+    
+    /**
+     * Sends a message over the UDP channel. It may be lost, duplicated or
+     * arrive out of order; the client drops it if a newer message with the
+     * same identifier already arrived. Meant for frequent state updates where
+     * only the latest one matters.
+     * @param client The client to send the message to
+     * @param data The data that is sent to the client
+     * @return False if the client has no UDP channel or the message couldn't be sent
+     */
+    public boolean sendUnreliable(RemoteClient client, Data data) {
+        return sendMessage(client, data, Delivery.UNRELIABLE);
+    }
+    
+    /**
+     * Sends a message to every client with a UDP channel, see
+     * <code>sendUnreliable()</code>. Encoded once per client opcode table.
+     * @param data The data to send
+     * @return The amount of clients the message was sent to
+     */
+    public int broadcastUnreliable(Data data) {
+        return broadcastMessage(data, Delivery.UNRELIABLE);
+    }
+    
+    /**
+     * Sends a message to all connected clients with the given delivery mode,
+     * see <code>sendMessage(RemoteClient, Data, Delivery)</code>. Encoded
+     * once per client opcode table.
+     * @param data The data to send
+     * @param delivery How to deliver the message
+     * @return The amount of clients the message was sent to
+     */
+    public int broadcastMessage(Data data, Delivery delivery) {
+        if (!delivery.isUdp())
+            return broadcastMessage(data);
+        return sendToAll(Arrays.asList(connectedClients.snapshot()), data, delivery, delivery.isReliable());
+    }
+    
+    /**
+     * Sends a message to the given clients with a UDP delivery mode, encoded
+     * once per client opcode table
+     * @param recipients The clients to send to
+     * @param data The data to send
+     * @param delivery How to deliver the message
+     * @param tcpFallback Whether clients without a UDP channel get it over TCP instead,
+     *                    as do all clients if the message is too large for a datagram
+     * @return The amount of clients the message was sent to
+     */
+    int sendToAll(List<RemoteClient> recipients, Data data, Delivery delivery, boolean tcpFallback){
+        if (!delivery.isUdp())
+            return sendToAll(recipients, data);
+        
+        IdentityHashMap<OpcodeTable, byte[]> frames = new IdentityHashMap<>(4);
+        ArrayList<RemoteClient> fallback = null;
+        int sent = 0;
+        long bytes = 0;
+        for (RemoteClient client : recipients){
+            Connection connection = connections.get(client.getSocket());
+            if (connection == null)
+                continue;
             
-            ObjectOutputStream out = new ObjectOutputStream(
-                new BufferedOutputStream(client.getSocket().getOutputStream()));
-            out.writeObject(data);
-            out.flush();
+            byte[] frame = null;
+            if (udp != null && client.udpAddress != null){
+                frame = frames.get(connection.peerOpcodes);
+                if (frame == null){
+                    try {
+                        frame = Wire.encode(data, codec, connection.peerOpcodes);
+                    } catch (IOException e) {
+                        logError("Error encoding message: " + e.getMessage());
+                        metrics.sent(data, sent, bytes);
+                        return sent;
+                    }
+                    frames.put(connection.peerOpcodes, frame);
+                }
+            }
             
-        } catch (IOException e) {
-            logError("Error sending message: " + e.getMessage());
-            clientCleanupQueue.add(client);
+            if (frame == null || frame.length > Datagrams.MAX_DATAGRAM_SIZE - Datagrams.HEADER_SIZE){
+                if (tcpFallback){
+                    if (fallback == null)
+                        fallback = new ArrayList<>();
+                    fallback.add(client);
+                }
+                continue;
+            }
+            if (udp.send(client, frame, delivery)){
+                sent++;
+                bytes += frame.length;
+            } else {
+                metrics.sendFailed(1);
+            }
+        }
+        metrics.sent(data, sent, bytes);
+        
+        if (fallback != null)
+            sent += sendToAll(fallback, data);
+        return sent;
+    }
+    
+    /**
+     * Writes a batch out once the flush policy's deadline passes
+     */
+    private void scheduleFlush(NioConnection c){
+        if (c.flushScheduled.compareAndSet(false, true)){
+            SharedTimer.get().schedule(new Runnable(){
+                @Override
+                public void run(){
+                    c.flushScheduled.set(false);
+                    nioEngine.requestWrite(c);
+                }
+            }, flushPolicy.getMaxDelayMicros(), TimeUnit.MICROSECONDS);
+        }
+    }
+    
+    /**
+     * Flushes everything queued for every client, without waiting for the
+     * flush policy's size or deadline
+     */
+    public void flush(){
+        for (Connection connection : connections.values()){
+            flush(connection);
+        }
+    }
+    
+    /**
+     * Flushes everything queued for a client, without waiting for the flush
+     * policy's size or deadline
+     * @param client The client to flush
+     */
+    public void flush(RemoteClient client){
+        Connection connection = connections.get(client.getSocket());
+        if (connection != null)
+            flush(connection);
+    }
+    
+    private void flush(Connection connection){
+        if (connection.nio != null)
+            nioEngine.requestWrite(connection.nio);
+        else if (!flushPolicy.isImmediate())
+            connection.outbound.requestFlush();
+    }
+    
+    /**
+     * Closes a client's connection from the sending side, the reader then
+     * removes the client
+     * @param client The client to disconnect
+     */
+    void closeConnection(RemoteClient client){
+        Connection connection = connections.get(client.getSocket());
+        if (connection != null)
+            closeConnection(connection);
+    }
+    
+    /**
+     * Closes a connection from the sending side, e.g. for a slow consumer
+     */
+    private void closeConnection(Connection connection){
+        connection.outbound.close();
+        if (connection.nio != null) {
+            nioEngine.close(connection.nio);
+            return;
         }
+        try {
+            connection.socket.close();
+        } catch (IOException e) {  }
     }
     
     /**
@@ -415,17 +1408,26 @@ public abstract class Server {
      * @param replyID The response identifier to send
      * @param datapackageContent The content to send in the response
      */
-    public synchronized void sendReply(Socket toSocket, String replyID, Object... datapackageContent) {
-        sendMessage(new RemoteClient(null, toSocket, null), new Data(replyID, datapackageContent));
+    public void sendReply(Socket toSocket, String replyID, Object... datapackageContent) {
+        sendReply(toSocket, new Data(replyID, datapackageContent));
     }
     
     /**
-     * Helper function for sending replies when receiving requests
+     * Helper function for sending replies when receiving requests. When called
+     * from within a response handler the reply is tagged with the request's
+     * correlation ID, so it reaches the client call waiting on it.
      * @param toSocket The client socket to reply to
      * @param dataToBeSent The data to send back
      */
-    public synchronized void sendReply(Socket toSocket, Data dataToBeSent) {
-        sendMessage(new RemoteClient(null, toSocket, null), dataToBeSent);
+    public void sendReply(Socket toSocket, Data dataToBeSent) {
+        PendingReply request = currentRequest.get();
+        if (request != null && request.socket == toSocket && !dataToBeSent.isReply()
+                && request.data.getRequestID() != 0) {
+            dataToBeSent.markReply(request.data.getRequestID());
+        }
+        
+        RemoteClient client = connectedClients.get(toSocket);
+        sendMessage(client != null ? client : new RemoteClient(null, toSocket, null), dataToBeSent);
     }
     
     /**
@@ -433,108 +1435,380 @@ public abstract class Server {
      * @param data The data to send
      * @return The amount of clients who received the message
      */
-    public synchronized int broadcastMessage(Data data){
-        int received = 0;
-        for (RemoteClient client : connectedClients){
-            sendMessage(client, data);
-            received++;
+    public int broadcastMessage(Data data){
+        return sendToAll(connectedClients.snapshot(), data);
+    }
+    
+    /**
+     * Sends a request to a client and returns its reply once it arrives. The
+     * client answers with <code>Client.sendReply()</code>. The future fails
+     * with a <code>TimeoutException</code> if no reply comes in time, with
+     * an <code>IOException</code> if the message can't be sent or the client
+     * disconnects first, and with a <code>RejectedExecutionException</code>
+     * if <code>maxPendingRequests</code> are already waiting. Cancelling it
+     * stops waiting and frees its slot. The message is encoded before this
+     * returns, so it can be reused straight away.
+     * @param client The client to ask
+     * @param data The request
+     * @param timeout The time in milliseconds to wait for the reply
+     * @return The future reply
+     */
+    public CompletableFuture<Data> request(RemoteClient client, Data data, int timeout){
+        CompletableFuture<Data> future = new CompletableFuture<>();
+        if (pendingRequestCount.incrementAndGet() > maxPendingRequests){
+            pendingRequestCount.decrementAndGet();
+            future.completeExceptionally(new RejectedExecutionException(
+                    "Too many requests waiting for a reply"));
+            return future;
+        }
+        
+        int requestID;
+        do {
+            requestID = nextRequestID.incrementAndGet();
+        } while (requestID == 0);
+        final int id = requestID;
+        ClientRequest request = new ClientRequest(client, future);
+        pendingRequests.put(id, request);
+        
+        ScheduledFuture<?> deadline = SharedTimer.get().schedule(new Runnable(){
+            @Override
+            public void run(){
+                future.completeExceptionally(new TimeoutException("No response from " 
+                        + client.getId() + " to " + data.id() + " within " + timeout + "ms"));
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        future.whenComplete(new BiConsumer<Data, Throwable>(){
+            @Override
+            public void accept(Data reply, Throwable error){
+                if (pendingRequests.remove(id, request))
+                    pendingRequestCount.decrementAndGet();
+                deadline.cancel(false);
+            }
+        });
+        
+        // the ID only goes into the frame, the same message may be in use elsewhere
+        if (!send(client, data, id))
+            future.completeExceptionally(new ConnectException("Could not send " 
+                    + data.id() + " to " + client.getId()));
+        return future;
+    }
+    
+    /**
+     * Sends a request to a client using the default request timeout, see
+     * <code>request(RemoteClient, Data, int)</code>
+     * @param client The client to ask
+     * @param data The request
+     * @return The future reply
+     */
+    public CompletableFuture<Data> request(RemoteClient client, Data data){
+        return request(client, data, requestTimeout);
+    }
+    
+    /**
+     * Sends a request to several clients and gathers their replies. The
+     * future completes once <code>quorum</code> clients have replied, or
+     * when every client has either replied, failed or timed out, whichever
+     * comes first. It never fails, check the number of replies against the
+     * quorum to tell whether it was reached. Requests still waiting once it
+     * completes are cancelled.
+     * @param clients The clients to ask
+     * @param data The request
+     * @param quorum The number of replies to wait for, 0 for all of them
+     * @param timeout The time in milliseconds to wait for replies
+     * @return The future replies by client ID, in the order they arrived
+     */
+    public CompletableFuture<Map<String, Data>> request(RemoteClient[] clients, Data data, int quorum, int timeout){
+        CompletableFuture<Map<String, Data>> gathered = new CompletableFuture<>();
+        int needed = quorum <= 0 ? clients.length : Math.min(quorum, clients.length);
+        LinkedHashMap<String, Data> replies = new LinkedHashMap<>();
+        if (needed == 0){
+            gathered.complete(replies);
+            return gathered;
         }
         
-        if(clientCleanupQueue.size() > 0) {
-            received -= clientCleanupQueue.size();
-            cleanupClients();
+        ArrayList<CompletableFuture<Data>> requests = new ArrayList<>(clients.length);
+        int[] finished = new int[1];
+        for (RemoteClient client : clients){
+            CompletableFuture<Data> future = request(client, data, timeout);
+            requests.add(future);
+            future.whenComplete(new BiConsumer<Data, Throwable>(){
+                @Override
+                public void accept(Data reply, Throwable error){
+                    synchronized (replies){
+                        if (gathered.isDone())
+                            return;
+                        if (reply != null)
+                            replies.put(client.getId(), reply);
+                        if (replies.size() >= needed || ++finished[0] == clients.length)
+                            gathered.complete(new LinkedHashMap<>(replies));
+                    }
+                }
+            });
         }
         
-        return received;
+        gathered.whenComplete(new BiConsumer<Map<String, Data>, Throwable>(){
+            @Override
+            public void accept(Map<String, Data> result, Throwable error){
+                for (CompletableFuture<Data> future : requests)
+                    future.cancel(false);
+            }
+        });
+        return gathered;
+    }
+    
+    /**
+     * Sends a request to every connected client and gathers their replies,
+     * see <code>request(RemoteClient[], Data, int, int)</code>
+     * @param data The request
+     * @param quorum The number of replies to wait for, 0 for all of them
+     * @param timeout The time in milliseconds to wait for replies
+     * @return The future replies by client ID
+     */
+    public CompletableFuture<Map<String, Data>> requestAll(Data data, int quorum, int timeout){
+        return request(connectedClients.snapshot(), data, quorum, timeout);
+    }
+    
+    /**
+     * Sends a request to every client that has at least one of the given
+     * tags and gathers their replies, see
+     * <code>request(RemoteClient[], Data, int, int)</code>
+     * @param data The request
+     * @param quorum The number of replies to wait for, 0 for all of them
+     * @param timeout The time in milliseconds to wait for replies
+     * @param tag The tag to send the request to
+     * @param tags Varargs for multiple tags
+     * @return The future replies by client ID
+     */
+    public CompletableFuture<Map<String, Data>> requestTagged(Data data, int quorum, int timeout, String tag, String... tags){
+        return request(connectedClients.withAnyTag(tagList(tag, tags)), data, quorum, timeout);
+    }
+    
+    /**
+     * Completes the request a reply answers, if it's still waiting and the
+     * reply came from the client it was sent to
+     * @return Whether the reply belonged to a request
+     */
+    private boolean completeRequest(Data reply, Socket socket){
+        ClientRequest request = pendingRequests.get(reply.getRequestID());
+        if (request == null || request.client.getSocket() != socket)
+            return false;
+        request.future.complete(reply);
+        return true;
+    }
+    
+    /**
+     * Fails the requests waiting on a client that went away
+     * @param client The client, or null for every pending request
+     */
+    private void failPendingRequests(RemoteClient client){
+        for (ClientRequest request : pendingRequests.values()){
+            if (client == null || request.client == client)
+                request.future.completeExceptionally(new ConnectException(client == null 
+                        ? "Server stopped" : "Client " + client.getId() + " disconnected"));
+        }
+    }
+    
+    /**
+     * Returns the number of requests to clients waiting for a reply
+     * @return The number of pending requests
+     */
+    public int getPendingRequestCount() {
+        return pendingRequestCount.get();
+    }
+    
+    /**
+     * Sends a message built with a <code>MessageWriter</code> to a client
+     * @param client The client to send the message to
+     * @param message The message
+     * @return Whether the message was queued
+     */
+    public boolean sendMessage(RemoteClient client, MessageWriter message) {
+        return sendToAll(Collections.singletonList(client), message) == 1;
+    }
+    
+    /**
+     * Sends a message built with a <code>MessageWriter</code> to all connected clients
+     * @param message The message
+     * @return The amount of clients who received the message
+     */
+    public int broadcastMessage(MessageWriter message){
+        return sendToAll(Arrays.asList(connectedClients.snapshot()), message);
+    }
+    
+    /**
+     * Sends a message built with a <code>MessageWriter</code> to every client
+     * that has at least one of the given tags
+     * @param message The message
+     * @param tag The tag to send the message to
+     * @param tags Varargs for multiple tags
+     * @return The amount of clients who received the message
+     */
+    public int sendMessageToTaggedClients(MessageWriter message, String tag, String... tags){
+        return sendToAll(Arrays.asList(connectedClients.withAnyTag(tagList(tag, tags))), message);
+    }
+    
+    /**
+     * Sends a message to every client that has at least one of the given tags.
+     * @param data The message to be sent
+     * @param tag The tag to send the message to
+     * @param tags Varargs for multiple tags
+     * @return The amount of clients who received the message
+     */
+    public int sendMessageToTaggedClients(Data data, String tag, String... tags){
+        return sendToAll(connectedClients.withAnyTag(tagList(tag, tags)), data);
     }
     
     /**
-     * Sends a message to one/multiple clients based on how many have the given
-     * tags.
+     * Sends a message to every client that has all of the given tags.
      * @param data The message to be sent
      * @param tag The tag to send the message to
      * @param tags Varargs for multiple tags
-     * @return
+     * @return The amount of clients who received the message
      */
-    public synchronized int sendMessageToTaggedClients(Data data, String tag, String... tags){
+    public int sendMessageToClientsWithAllTags(Data data, String tag, String... tags){
+        return sendToAll(connectedClients.withAllTags(tagList(tag, tags)), data);
+    }
+    
+    /**
+     * Sends the same message to several clients. The message is encoded once
+     * per distinct client opcode table (normally just once, since clients
+     * running the same code share a table) and every recipient gets a
+     * read-only view of that one frame.
+     */
+    private int sendToAll(RemoteClient[] recipients, Data data){
+        return sendToAll(Arrays.asList(recipients), data);
+    }
+    
+    int sendToAll(List<RemoteClient> recipients, Data data){
+        IdentityHashMap<OpcodeTable, ByteBuffer> frames = new IdentityHashMap<>(4);
+        boolean flush = flushPolicy.shouldFlush(data);
         int received = 0;
-        ArrayList<RemoteClient> messageQueue = new ArrayList<>();
-        ArrayList<String> tagsToAdd = new ArrayList<>();
-        
-        tagsToAdd.add(tag);
-        if (tags != null)
-            for (String s : tags) {
-                tagsToAdd.add(s);
-            }
-        
-        // likely a far more efficient way to do this
-        // luckily I'm not looking for efficiency so this will do
-        for (RemoteClient client : connectedClients){
-            if (!messageQueue.contains(client)) {
-                for (String s : tagsToAdd){
-                    if (client.getClientData().getClientTags().contains(s)){
-                        messageQueue.add(client);
-                    }
+        long bytes = 0;
+        for (RemoteClient client : recipients){
+            Connection connection = connectionOf(client);
+            if (connection == null)
+                continue;
+            
+            ByteBuffer frame = frames.get(connection.peerOpcodes);
+            if (frame == null){
+                try {
+                    frame = ByteBuffer.wrap(Wire.encode(data, codec, connection.peerOpcodes)).asReadOnlyBuffer();
+                } catch (IOException e) {
+                    logError("Error encoding message: " + e.getMessage());
+                    break;
                 }
+                frames.put(connection.peerOpcodes, frame);
+            }
+            
+            if (enqueue(client, connection, frame.duplicate(), flush)){
+                received++;
+                bytes += frame.remaining();
+            } else {
+                metrics.sendFailed(1);
             }
         }
-        
-        for (RemoteClient client : messageQueue){
-            sendMessage(client, data);
-            received++;
-        }
-        
-        if(clientCleanupQueue.size() > 0) {
-            received -= clientCleanupQueue.size();
-            cleanupClients();
+        metrics.sent(data, received, bytes);
+        return received;
+    }
+    
+    /**
+     * Queues a MessageWriter message for several clients. The queues keep
+     * every frame until it's written, so it's copied out of the writer once
+     * per distinct client opcode table.
+     */
+    private int sendToAll(List<RemoteClient> recipients, MessageWriter message){
+        IdentityHashMap<OpcodeTable, ByteBuffer> frames = new IdentityHashMap<>(4);
+        boolean flush = flushPolicy.shouldFlush(message.id());
+        int received = 0;
+        long bytes = 0;
+        for (RemoteClient client : recipients){
+            Connection connection = connectionOf(client);
+            if (connection == null)
+                continue;
+            
+            ByteBuffer frame = frames.get(connection.peerOpcodes);
+            if (frame == null){
+                int start = message.frame(connection.peerOpcodes);
+                frame = ByteBuffer.wrap(Arrays.copyOfRange(message.array(), start, message.end())).asReadOnlyBuffer();
+                frames.put(connection.peerOpcodes, frame);
+            }
+            
+            if (enqueue(client, connection, frame.duplicate(), flush)){
+                received++;
+                bytes += frame.remaining();
+            } else {
+                metrics.sendFailed(1);
+            }
         }
-        
+        metrics.sent(message.id(), received, bytes);
         return received;
     }
     
+    private static List<String> tagList(String tag, String... tags){
+        ArrayList<String> all = new ArrayList<>(1 + (tags == null ? 0 : tags.length));
+        all.add(tag);
+        if (tags != null)
+            all.addAll(Arrays.asList(tags));
+        return all;
+    }
+    
+    /**
+     * Removes a client from the registry, calling <code>onClientRemoved</code>
+     * if it was still registered
+     * @param client The client to remove
+     */
+    protected void removeClient(RemoteClient client){
+        if (connectedClients.remove(client)) {
+            roster.remove(client.getId(), client.getClientData());
+            if (udp != null)
+                udp.unregister(client);
+            failPendingRequests(client);
+            onClientRemoved(client);
+        }
+    }
+    
     /**
-     * Cleanup clients that are marked for deletion from the connected clients
-     * list. Don't call this while connectedClients list is being iterated on.
+     * Removes every registered client whose socket has been closed. Clients
+     * are removed as soon as a send to them fails or their connection closes,
+     * so this is only needed if sockets are closed from outside the server.
      */
-    public synchronized void cleanupClients(){
-        log("[Server] Cleaning up clients...");
-        if (connectedClients.size() > 0 && clientCleanupQueue != null)
-            for (RemoteClient client : clientCleanupQueue){
-                connectedClients.remove(client);
-                onClientRemoved(client);
+    public void cleanupClients(){
+        logger.log(LogLevel.DEBUG, "[Server] Cleaning up clients...");
+        for (RemoteClient client : connectedClients.snapshot()){
+            if (client.getSocket() == null || client.getSocket().isClosed()){
+                metrics.evicted();
+                removeClient(client);
             }
-        clientCleanupQueue.clear();
+        }
     }
     
     /**
      * Returns the number of currently connected clients
      * @return The number of currently connected clients
      */
-    public synchronized int numConnectedClients() {
-        int num = 0;
-        if (connectedClients != null) {
-            num = connectedClients.size();
-        }
-        
-        return num;
+    public int numConnectedClients() {
+        return connectedClients.size();
     }
     
     /**
-     * Helper function to easily set a client's tags
+     * Helper function to easily set a client's tags. Tags should always be
+     * changed through the server, setting them directly on the IClientData
+     * bypasses the tag index used by <code>sendMessageToTaggedClients</code>.
      * @param clientID The client to set tags for
      * @param tag The tag to set
      * @param tags Varargs for multiple tags
      */
-    public synchronized void setClientTags(String clientID, String tag, String... tags){
-        for (RemoteClient client : connectedClients){
-            if (client.getId().equalsIgnoreCase(clientID)) {
-                ArrayList<String> temp = new ArrayList<>();
-                temp.add(tag);
-                if (tags != null)
-                    for (String t : tags){
-                        temp.add(t);
-                    }
-                client.getClientData().setClientTags(temp);
+    public void setClientTags(String clientID, String tag, String... tags){
+        RemoteClient client = connectedClients.get(clientID);
+        if (client != null) {
+            ArrayList<String> temp = new ArrayList<>();
+            temp.add(tag);
+            if (tags != null)
+                for (String t : tags){
+                    temp.add(t);
+                }
+            if (connectedClients.setTags(client, temp)){
+                roster.changed(client.getId());
                 onTagsSet(client);
             }
         }
@@ -546,36 +1820,103 @@ public abstract class Server {
      * @return Whether the client is connected
      */
     public boolean isClientConnected(String clientID) {
-        if (connectedClients != null && connectedClients.size() > 0){
-            for (RemoteClient client : connectedClients){
-                if (client.getId().equals(clientID) && client.getSocket() != null 
-                        && client.getSocket().isConnected()){
-                    return true;
-                }
-            }
-        }
-        return false;
+        RemoteClient client = connectedClients.get(clientID);
+        return client != null && client.getSocket() != null 
+                && client.getSocket().isConnected() && !client.getSocket().isClosed();
+    }
+    
+    /**
+     * Getter for the server's metrics. The getters read the current values,
+     * so a monitoring agent can keep the object and poll it.
+     * @return The metrics
+     */
+    public ServerMetrics getMetrics(){
+        return metrics;
+    }
+    
+    /**
+     * Getter for the current tick in tick mode
+     * @return The number of the tick being run or the next one, 0 if not in tick mode
+     */
+    public long getTick(){
+        return tickLoop != null ? tickLoop.getTick() : 0;
+    }
+    
+    /**
+     * Getter for the number of ticks that took longer than the tick interval
+     * @return The number of overruns, 0 if not in tick mode
+     */
+    public long getTickOverrunCount(){
+        return tickLoop != null ? tickLoop.getOverrunCount() : 0;
+    }
+    
+    /**
+     * Getter for the time taken by each tick in tick mode, in the same form
+     * as round trip times
+     * @return The histogram of tick times, or null if not in tick mode
+     */
+    public LatencyHistogram getTickTimes(){
+        return tickLoop != null ? tickLoop.getTickTimes() : null;
+    }
+    
+    /**
+     * Setter for where the Server logs to. Defaults to
+     * <code>AsyncLogger.getDefault()</code>, which writes to the console on
+     * a background thread.
+     * @param logger The logger for every Server in this JVM
+     */
+    public static void setLogger(Logger logger){
+        Server.logger = logger;
+    }
+    
+    /**
+     * Getter for where the Server logs to
+     * @return The logger
+     */
+    public static Logger getLogger(){
+        return logger;
     }
     
     /**
-     * It's just System.out.println();
+     * Logs an INFO line, see <code>setLogger()</code>
      * @param message
      */
     public static void log(String message){
-        System.out.println(message);
+        logger.log(LogLevel.INFO, message);
     }
 
     /**
-     * It's just System.err.println();
+     * Logs an ERROR line, see <code>setLogger()</code>
      * @param message
      */
     public static void logError(String message){
-        System.err.println(message);
+        logger.log(LogLevel.ERROR, message);
     }
     
     
     //Override methods
 
+    /**
+     * Called once per tick in tick mode, after the tick's messages have been
+     * handled and before queued messages are flushed. Runs on the same thread
+     * as the handlers, override this method to step the simulation.
+     * @param tick The tick number, counting from 0
+     */
+    public void onTick(long tick){
+        
+    }
+    
+    /**
+     * Called in tick mode when a tick took longer than the tick interval,
+     * override this method to add functionality. Logs the overrun by default.
+     * @param tick The tick number
+     * @param nanos How long the tick took in nanoseconds
+     */
+    public void onTickOverrun(long tick, long nanos){
+        logError(String.format("[Server] Tick %d took %.2fms, over the %.2fms budget", 
+                tick, nanos / 1e6, tickLoop.getInterval() / 1e6));
+    }
+    
     /**
      * Called when a client registers, override this method to add functionality.
      * @param data The data the client registered with
@@ -0,0 +1,112 @@
+
+package server;
+
+import data.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The Server's metrics: the message counters from <code>Metrics</code> plus
+ * connection counts and how backed up the outbound queues are. Queue depths
+ * are added up over the open connections whenever they are read. Connection
+ * counts are running totals, a monitoring agent gets the accept rate by
+ * comparing two readings.
+ * @author jaron
+ */
+public class ServerMetrics extends Metrics implements ServerMetricsMXBean {
+
+    private final Server server;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    ServerMetrics(Server server){
+        this.server = server;
+    }
+
+    void accepted(){
+        accepted.increment();
+    }
+
+    void evicted(){
+        evicted.increment();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return server.openConnections().size();
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return server.numConnectedClients();
+    }
+
+    /**
+     * Getter for the number of clients removed by the server, i.e. slow
+     * consumers and clients found closed by <code>cleanupClients()</code>
+     * @return The number of evicted clients
+     */
+    @Override
+    public long getEvictedClients() {
+        return evicted.sum();
+    }
+
+    /**
+     * Getter for the number of messages waiting in all outbound queues
+     * @return The total queue depth
+     */
+    @Override
+    public long getOutboundQueueDepth() {
+        long depth = 0;
+        for (Connection connection : server.openConnections()){
+            depth += connection.outbound.getDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * Getter for the deepest outbound queue
+     * @return The largest queue depth of any connection
+     */
+    @Override
+    public long getMaxOutboundQueueDepth() {
+        long max = 0;
+        for (Connection connection : server.openConnections()){
+            max = Math.max(max, connection.outbound.getDepth());
+        }
+        return max;
+    }
+
+    /**
+     * Getter for the messages dropped by the <code>DROP</code> slow consumer
+     * policy, over the open connections
+     * @return The number of dropped messages
+     */
+    @Override
+    public long getDroppedMessages() {
+        long dropped = 0;
+        for (Connection connection : server.openConnections()){
+            dropped += connection.outbound.getDroppedCount();
+        }
+        return dropped;
+    }
+
+    @Override
+    public int getPendingRequests() {
+        return server.getPendingRequestCount();
+    }
+
+    /**
+     * Getter for the log lines dropped because the logger couldn't keep up
+     * @return The dropped line count, 0 unless logging through an AsyncLogger
+     */
+    @Override
+    public long getDroppedLogLines() {
+        Logger logger = Server.getLogger();
+        return logger instanceof AsyncLogger ? ((AsyncLogger) logger).getDroppedCount() : 0;
+    }
+}
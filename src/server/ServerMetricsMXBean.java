@@ -0,0 +1,29 @@
+
+package server;
+
+import data.MetricsMXBean;
+
+/**
+ * The Server's metrics as published over JMX
+ * @author jaron
+ */
+public interface ServerMetricsMXBean extends MetricsMXBean {
+
+    public long getAcceptedConnections();
+
+    public int getActiveConnections();
+
+    public int getConnectedClients();
+
+    public long getEvictedClients();
+
+    public long getOutboundQueueDepth();
+
+    public long getMaxOutboundQueueDepth();
+
+    public long getDroppedMessages();
+
+    public int getPendingRequests();
+
+    public long getDroppedLogLines();
+}
@@ -0,0 +1,28 @@
+
+package server;
+
+/**
+ * What the Server does when a client's outbound queue is full, i.e. the client
+ * is not reading messages as fast as they are being sent to it
+ * @author jaron
+ */
+public enum SlowConsumerPolicy {
+    
+    /**
+     * Drop the message for that client and carry on
+     */
+    DROP,
+    
+    /**
+     * Close the client's connection, removing it from the server
+     */
+    DISCONNECT,
+    
+    /**
+     * Block the sending thread until the client's queue has room again. Only
+     * applies to application threads: a handler running on an NIO event loop
+     * or the tick loop would stop the queue it waits on from draining, so
+     * sends from those threads disconnect the client instead.
+     */
+    BLOCK
+}
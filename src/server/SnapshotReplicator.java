@@ -0,0 +1,148 @@
+
+package server;
+
+import data.*;
+import java.util.*;
+
+/**
+ * Sends the state of registered <code>Replicated</code> objects to every
+ * client as a series of snapshots. Each <code>update()</code> captures a new
+ * snapshot and sends each client only what changed since the last snapshot
+ * it acknowledged, so the bandwidth used depends on how much changes rather
+ * than on how much there is. Clients that haven't acknowledged anything yet,
+ * or are too far behind, get the full state. Clients acknowledged the same
+ * snapshot get the same message, encoded once.
+ * <p>
+ * Snapshots go out over the UDP channel by default, unreliably, since a
+ * lost one is replaced by the next; clients without UDP get them over TCP.
+ * Call <code>update()</code> once per tick, i.e. from <code>onTick()</code>.
+ * @author jaron
+ */
+public class SnapshotReplicator {
+
+    private final Server server;
+    private final TreeMap<Integer, Replicated> entities = new TreeMap<>();
+    private final Snapshot[] history = new Snapshot[Snapshot.HISTORY];
+    private Snapshot latest;
+    private long sequence;
+    private Delivery delivery = Delivery.UNRELIABLE;
+
+    /**
+     * Constructor for a SnapshotReplicator
+     * @param server The server to send snapshots through
+     */
+    public SnapshotReplicator(Server server){
+        this.server = server;
+    }
+
+    /**
+     * Setter for how snapshots are delivered to clients with a UDP channel
+     * @param delivery The delivery mode, defaults to <code>Delivery.UNRELIABLE</code>
+     */
+    public synchronized void setDelivery(Delivery delivery) {
+        this.delivery = delivery;
+    }
+
+    /**
+     * Adds an object to the snapshots, starting with the next one
+     * @param id The object's id, unique among replicated objects
+     * @param entity The object
+     */
+    public synchronized void register(int id, Replicated entity){
+        if (id < 0 || id == Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Entity id must be between 0 and " + (Integer.MAX_VALUE - 1));
+        entities.put(id, entity);
+    }
+
+    /**
+     * Removes an object from the snapshots, starting with the next one
+     * @param id The object's id
+     */
+    public synchronized void unregister(int id){
+        entities.remove(id);
+    }
+
+    /**
+     * Captures a snapshot of every registered object. Objects whose state
+     * didn't change share their state with the previous snapshot.
+     * @return The new snapshot
+     */
+    public synchronized Snapshot capture(){
+        int[] ids = new int[entities.size()];
+        Object[][] states = new Object[ids.length][];
+        int n = 0, j = 0;
+        for (Map.Entry<Integer, Replicated> e : entities.entrySet()){
+            int id = e.getKey();
+            Object[] state = e.getValue().capture();
+            if (latest != null){
+                while (j < latest.size() && latest.getId(j) < id)
+                    j++;
+                if (j < latest.size() && latest.getId(j) == id && Arrays.deepEquals(latest.stateAt(j), state))
+                    state = latest.stateAt(j);
+            }
+            ids[n] = id;
+            states[n++] = state;
+        }
+
+        latest = new Snapshot(++sequence, System.nanoTime(), ids, states);
+        history[(int) (sequence % Snapshot.HISTORY)] = latest;
+        return latest;
+    }
+
+    /**
+     * Sends the latest snapshot to every client, as a delta from the last
+     * snapshot each one acknowledged
+     * @return The amount of clients it was sent to
+     */
+    public synchronized int send(){
+        if (latest == null)
+            return 0;
+
+        LinkedHashMap<Long, ArrayList<RemoteClient>> groups = new LinkedHashMap<>();
+        for (RemoteClient client : server.connectedClients.snapshot()){
+            Snapshot base = get(client.snapshotAck);
+            long key = base == null ? 0 : base.getSequence();
+            ArrayList<RemoteClient> group = groups.get(key);
+            if (group == null)
+                groups.put(key, group = new ArrayList<>());
+            group.add(client);
+        }
+
+        int sent = 0;
+        for (Map.Entry<Long, ArrayList<RemoteClient>> e : groups.entrySet()){
+            Data delta = latest.delta(get(e.getKey()));
+            sent += server.sendToAll(e.getValue(), delta, delivery, true);
+        }
+        return sent;
+    }
+
+    /**
+     * Captures a snapshot and sends it to every client
+     * @return The new snapshot
+     */
+    public synchronized Snapshot update(){
+        capture();
+        send();
+        return latest;
+    }
+
+    /**
+     * Getter for the most recent snapshot
+     * @return The latest snapshot, or null before the first capture
+     */
+    public synchronized Snapshot getLatest() {
+        return latest;
+    }
+
+    /**
+     * Looks up a recent snapshot
+     * @param sequence The snapshot's sequence number
+     * @return The snapshot, or null if it's too old or doesn't exist
+     */
+    public synchronized Snapshot get(long sequence){
+        if (sequence <= 0)
+            return null;
+        Snapshot s = history[(int) (sequence % Snapshot.HISTORY)];
+        return s != null && s.getSequence() == sequence ? s : null;
+    }
+}
@@ -0,0 +1,180 @@
+
+package server;
+
+import data.*;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The simulation thread used when the server runs in tick mode. Received
+ * messages are queued instead of handled straight away, and once per tick
+ * everything that arrived before the tick started is handled in arrival
+ * order, followed by <code>onTick()</code> and a flush of every client's
+ * outbound queue. All handlers run on this one thread, so game state they
+ * touch needs no locking. Ticks that take longer than the tick interval
+ * are reported as overruns; if the loop falls more than a tick behind the
+ * missed ticks are skipped rather than run back to back.
+ * @author jaron
+ */
+class TickLoop implements Runnable {
+
+    // messages waiting for the next tick, any more are dropped
+    static final int MAX_QUEUED = 64 * 1024;
+
+    private final Server server;
+    private final long interval;
+    private final Thread thread;
+
+    private final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final LatencyHistogram tickTimes = new LatencyHistogram();
+    private volatile long tick;
+    private volatile long overruns;
+
+    private volatile boolean stopped;
+
+    /**
+     * A received message waiting for its tick
+     */
+    private static class Request {
+        final Response response;
+        final Data data;
+        final Socket socket;
+
+        Request(Response response, Data data, Socket socket){
+            this.response = response;
+            this.data = data;
+            this.socket = socket;
+        }
+    }
+
+    /**
+     * Constructor for the TickLoop
+     * @param server The server whose handlers are run
+     * @param ticksPerSecond The tick rate
+     */
+    TickLoop(Server server, int ticksPerSecond){
+        this.server = server;
+        this.interval = 1_000_000_000L / ticksPerSecond;
+        this.thread = new Thread(this, "TickLoop");
+    }
+
+    void start(){
+        thread.start();
+    }
+
+    void stop(){
+        stopped = true;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Returns whether the calling thread is the tick loop
+     * @return Whether this is the tick thread
+     */
+    boolean isLoopThread(){
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Queues a message to be handled on the next tick
+     * @param response The response registered for the message
+     * @param data The message
+     * @param socket The client socket that sent it
+     * @return False if too many messages are already waiting
+     */
+    boolean submit(Response response, Data data, Socket socket){
+        if (queued.incrementAndGet() > MAX_QUEUED){
+            queued.decrementAndGet();
+            return false;
+        }
+        queue.add(new Request(response, data, socket));
+        return true;
+    }
+
+    @Override
+    public void run(){
+        long next = System.nanoTime();
+        while (!stopped){
+            long now;
+            while ((now = System.nanoTime()) < next && !stopped)
+                LockSupport.parkNanos(next - now);
+            if (stopped)
+                break;
+
+            runTick();
+
+            long elapsed = System.nanoTime() - now;
+            tickTimes.record(elapsed);
+            if (elapsed > interval){
+                overruns++;
+                server.onTickOverrun(tick, elapsed);
+            }
+            tick++;
+
+            next += interval;
+            long behind = System.nanoTime() - next;
+            if (behind > interval)
+                next += (behind / interval) * interval;
+        }
+    }
+
+    private void runTick(){
+        // only what arrived before the tick started, later messages wait for the next one
+        int n = queued.get();
+        for (int i = 0; i < n; i++){
+            Request r = queue.poll();
+            if (r == null)
+                break;
+            queued.decrementAndGet();
+            try {
+                server.runHandler(r.response, r.data, r.socket);
+            } catch (RuntimeException e) {
+                Server.logError("[Server] Error handling " + r.data.id() + " from "
+                        + r.data.getSenderID() + ": " + e);
+            }
+        }
+
+        try {
+            server.onTick(tick);
+        } catch (RuntimeException e) {
+            Server.logError("[Server] Error in tick " + tick + ": " + e);
+        }
+        server.flush();
+    }
+
+    /**
+     * Getter for the number of the tick being run, or the next one
+     * @return The tick number, counting from 0
+     */
+    long getTick(){
+        return tick;
+    }
+
+    /**
+     * Getter for the number of ticks that took longer than the tick interval
+     * @return The number of overruns
+     */
+    long getOverrunCount(){
+        return overruns;
+    }
+
+    /**
+     * Getter for the time taken by each tick
+     * @return The histogram of tick times
+     */
+    LatencyHistogram getTickTimes(){
+        return tickTimes;
+    }
+
+    /**
+     * Getter for the tick interval
+     * @return The interval in nanoseconds
+     */
+    long getInterval(){
+        return interval;
+    }
+}
@@ -0,0 +1,180 @@
+
+package server;
+
+import data.*;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.security.SecureRandom;
+import java.util.concurrent.*;
+
+/**
+ * The server side of the optional UDP channel. Registered clients are given
+ * a random token over TCP, which every datagram they send starts with; the
+ * address a token's datagrams come from is where datagrams to that client
+ * are sent. Each client gets a DatagramSession for sequencing, acks and
+ * retransmits, driven by a timer every few milliseconds. Received messages
+ * are dispatched like TCP ones, with the client's TCP socket.
+ * @author jaron
+ */
+class UdpEndpoint implements Runnable {
+
+    private final Server server;
+    private final DatagramChannel channel;
+    private final Thread thread;
+    private final ConcurrentHashMap<Long, RemoteClient> clients = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private ScheduledFuture<?> ticker;
+
+    private volatile boolean stopped;
+
+    // how often retransmits and delayed acks are checked, in milliseconds
+    static final long TICK_INTERVAL = 5;
+
+    /**
+     * Constructor for the UdpEndpoint
+     * @param server The server to dispatch messages to
+     * @param port The port to bind to
+     * @throws IOException If the port can't be bound
+     */
+    UdpEndpoint(Server server, int port) throws IOException {
+        this.server = server;
+        this.channel = DatagramChannel.open();
+        this.channel.bind(new InetSocketAddress(port));
+        this.thread = new Thread(this, "UdpEndpoint");
+    }
+
+    void start(){
+        thread.start();
+        ticker = SharedTimer.get().scheduleAtFixedRate(new Runnable(){
+            @Override
+            public void run(){
+                tick();
+            }
+        }, TICK_INTERVAL, TICK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    void stop(){
+        stopped = true;
+        if (ticker != null)
+            ticker.cancel(false);
+        try {
+            channel.close();
+        } catch (IOException e) {  }
+    }
+
+    /**
+     * Returns the port datagrams are received on
+     * @return The local port
+     */
+    int port(){
+        return channel.socket().getLocalPort();
+    }
+
+    /**
+     * Hands out a new token for a client
+     * @param client The registered client
+     * @return The token the client has to send with its datagrams
+     */
+    long register(RemoteClient client){
+        long token;
+        do {
+            token = random.nextLong();
+        } while (token == 0 || clients.putIfAbsent(token, client) != null);
+        client.udpToken = token;
+        client.udpSession = new DatagramSession(0, new DatagramSession.Sink(){
+            @Override
+            public void send(ByteBuffer datagram) throws IOException {
+                // nothing can be sent until the client's hello arrives,
+                // reliable messages are resent once it has
+                SocketAddress address = client.udpAddress;
+                if (address != null)
+                    channel.send(datagram, address);
+            }
+        });
+        return token;
+    }
+
+    /**
+     * Forgets a client's token once it is removed
+     * @param client The removed client
+     */
+    void unregister(RemoteClient client){
+        if (client.udpToken != 0)
+            clients.remove(client.udpToken, client);
+    }
+
+    /**
+     * Sends an encoded message to a client
+     * @param client The client to send to
+     * @param frame The message as encoded by <code>Wire</code>
+     * @param delivery One of the UDP delivery modes
+     * @return False if the client has no UDP channel yet, or it is backed up
+     */
+    boolean send(RemoteClient client, byte[] frame, Delivery delivery){
+        DatagramSession session = client.udpSession;
+        if (session == null || client.udpAddress == null)
+            return false;
+
+        try {
+            return session.send(frame, delivery);
+        } catch (IOException e) {
+            Server.logError("Error sending datagram to " + client.getId() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void tick(){
+        for (RemoteClient client : clients.values()){
+            DatagramSession session = client.udpSession;
+            try {
+                if (session != null && client.udpAddress != null)
+                    session.tick();
+            } catch (IOException e) {
+                if (session.isClosed()){
+                    // as with a TCP timeout, the client is treated as gone
+                    Server.logError("[Server] Client " + client.getId() + " stopped acknowledging datagrams, disconnecting");
+                    server.closeConnection(client);
+                } else {
+                    Server.logError("Error sending datagram to " + client.getId() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run(){
+        ByteBuffer buffer = ByteBuffer.allocate(Datagrams.MAX_DATAGRAM_SIZE);
+        while (!stopped){
+            try {
+                buffer.clear();
+                SocketAddress from = channel.receive(buffer);
+                buffer.flip();
+                if (buffer.remaining() < Datagrams.HEADER_SIZE)
+                    continue;
+
+                RemoteClient client = clients.get(Datagrams.token(buffer));
+                if (client == null || client.udpSession == null)
+                    continue;
+                client.udpAddress = from;
+
+                client.udpSession.receive(buffer, server.codec, server.opcodes, new DatagramSession.Receiver(){
+                    @Override
+                    public void receive(Data message) {
+                        message.sign(client.getId());
+                        server.dispatch(message, client.getSocket());
+                    }
+                });
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (!stopped)
+                    Server.logError("Error reading datagram: " + e.getMessage());
+            } catch (RuntimeException e) {
+                // one malformed datagram mustn't stop receiving for every client
+                Server.logError("Error handling datagram: " + e);
+            }
+        }
+    }
+}
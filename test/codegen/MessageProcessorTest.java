@@ -0,0 +1,217 @@
+
+package codegen;
+
+import data.*;
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import javax.tools.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jaron
+ */
+public class MessageProcessorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String MOVE = String.join("\n",
+            "package sample;",
+            "",
+            "import data.Message;",
+            "",
+            "@Message(\"MOVE\")",
+            "public class Move {",
+            "    public enum State { IDLE, RUN }",
+            "",
+            "    @Message",
+            "    public static class Target {",
+            "        public int id;",
+            "        public String name;",
+            "    }",
+            "",
+            "    public boolean visible;",
+            "    public byte b;",
+            "    public short s;",
+            "    public char key;",
+            "    public int entity;",
+            "    public long time;",
+            "    public float x;",
+            "    public double d;",
+            "    public String label;",
+            "    public byte[] payload;",
+            "    public State state;",
+            "    public Target target;",
+            "}");
+
+    private final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+    private File classes;
+
+    /**
+     * Compiles the sources with the processor against the library's classes
+     * @return Whether compilation succeeded
+     */
+    private boolean compile(String... sources) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Assume.assumeNotNull(compiler);
+        File src = folder.newFolder("src");
+        File generated = folder.newFolder("generated");
+        classes = folder.newFolder("classes");
+
+        List<File> files = new ArrayList<>();
+        for (String source : sources){
+            String name = source.substring(source.indexOf("public class ") + 13).split("\\s")[0];
+            File file = new File(src, name + ".java");
+            Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+            files.add(file);
+        }
+
+        String library = new File(Message.class.getProtectionDomain().getCodeSource().getLocation().getPath()).getPath();
+        List<String> options = Arrays.asList("-classpath", library, "-d", classes.getPath(),
+                "-s", generated.getPath(), "-processor", MessageProcessor.class.getName());
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8)){
+            return compiler.getTask(null, fileManager, diagnostics, options, null, 
+                    fileManager.getJavaFileObjectsFromFiles(files)).call();
+        }
+    }
+
+    private String errors(){
+        StringBuilder errors = new StringBuilder();
+        for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()){
+            if (d.getKind() == Diagnostic.Kind.ERROR)
+                errors.append(d.getMessage(Locale.ROOT)).append('\n');
+        }
+        return errors.toString();
+    }
+
+    private static MessageReader frame(MessageWriter writer) throws IOException {
+        int start = writer.frame(null);
+        byte[] frame = Arrays.copyOfRange(writer.array(), start, writer.end());
+        return MessageReader.wrap(frame, Wire.LENGTH_SIZE, frame.length - Wire.LENGTH_SIZE, null);
+    }
+
+    @Test
+    public void generatedCodecRoundTripsEveryFieldKind() throws Exception {
+        assertTrue(errors(), compile(MOVE));
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{ classes.toURI().toURL() }, getClass().getClassLoader())){
+            Class<?> moveClass = loader.loadClass("sample.Move");
+            Class<?> targetClass = loader.loadClass("sample.Move$Target");
+            Class<?> stateClass = loader.loadClass("sample.Move$State");
+            Class<?> codecClass = loader.loadClass("sample.MoveCodec");
+            assertNotNull(loader.loadClass("sample.Move_TargetCodec"));
+            assertEquals("MOVE", codecClass.getField("ID").get(null));
+
+            Object target = targetClass.getConstructor().newInstance();
+            targetClass.getField("id").set(target, 9);
+            targetClass.getField("name").set(target, "crate");
+
+            Object move = moveClass.getConstructor().newInstance();
+            moveClass.getField("visible").set(move, true);
+            moveClass.getField("b").set(move, (byte) -2);
+            moveClass.getField("s").set(move, (short) 300);
+            moveClass.getField("key").set(move, 'w');
+            moveClass.getField("entity").set(move, 42);
+            moveClass.getField("time").set(move, Long.MIN_VALUE);
+            moveClass.getField("x").set(move, 1.5f);
+            moveClass.getField("d").set(move, -0.25);
+            moveClass.getField("label").set(move, "h\u00e9llo");
+            moveClass.getField("payload").set(move, new byte[]{ 1, 2, 3 });
+            moveClass.getField("state").set(move, stateClass.getEnumConstants()[1]);
+            moveClass.getField("target").set(move, target);
+
+            MessageCodec<?> codec = (MessageCodec<?>) codecClass.getField("INSTANCE").get(null);
+            assertEquals("MOVE", codec.id());
+            MessageWriter writer = (MessageWriter) codecClass.getMethod("write", moveClass).invoke(codec, move);
+            Object read = codec.read(frame(writer));
+
+            for (String name : Arrays.asList("visible", "b", "s", "key", "entity", "time", "x", "d", "label", "state")){
+                assertEquals(name, moveClass.getField(name).get(move), moveClass.getField(name).get(read));
+            }
+            assertArrayEquals(new byte[]{ 1, 2, 3 }, (byte[]) moveClass.getField("payload").get(read));
+            Object readTarget = moveClass.getField("target").get(read);
+            assertEquals(9, targetClass.getField("id").get(readTarget));
+            assertEquals("crate", targetClass.getField("name").get(readTarget));
+
+            // null references come back as null
+            Object empty = moveClass.getConstructor().newInstance();
+            writer = (MessageWriter) codecClass.getMethod("write", moveClass).invoke(codec, empty);
+            read = codec.read(frame(writer));
+            for (String name : Arrays.asList("label", "payload", "state", "target")){
+                assertNull(name, moveClass.getField(name).get(read));
+            }
+        }
+    }
+
+    @Test
+    public void generatedHandlerGetsTheDecodedMessage() throws Exception {
+        assertTrue(errors(), compile(MOVE));
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{ classes.toURI().toURL() }, getClass().getClassLoader())){
+            Class<?> moveClass = loader.loadClass("sample.Move");
+            Class<?> codecClass = loader.loadClass("sample.MoveCodec");
+            Class<?> handlerClass = loader.loadClass("sample.MoveHandler");
+
+            final List<Object> handled = new ArrayList<>();
+            Object handler = Proxy.newProxyInstance(loader, new Class<?>[]{ handlerClass }, new InvocationHandler(){
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    handled.add(args[0]);
+                    return null;
+                }
+            });
+            MessageHandler adapter = (MessageHandler) codecClass.getMethod("handler", handlerClass).invoke(null, handler);
+
+            Object move = moveClass.getConstructor().newInstance();
+            moveClass.getField("entity").set(move, 7);
+            Object codec = codecClass.getField("INSTANCE").get(null);
+            MessageWriter writer = (MessageWriter) codecClass.getMethod("write", moveClass).invoke(codec, move);
+            adapter.handle(frame(writer), null);
+
+            assertEquals(1, handled.size());
+            assertEquals(7, moveClass.getField("entity").get(handled.get(0)));
+        }
+    }
+
+    @Test
+    public void rejectsPrivateAndFinalFields() throws IOException {
+        assertFalse(compile(String.join("\n",
+                "package sample;",
+                "@data.Message",
+                "public class Bad {",
+                "    private int hidden;",
+                "    public final int fixed = 1;",
+                "}")));
+        String errors = errors();
+        assertTrue(errors, errors.contains("can not be private or final"));
+    }
+
+    @Test
+    public void rejectsUnsupportedFieldTypes() throws IOException {
+        assertFalse(compile(String.join("\n",
+                "package sample;",
+                "@data.Message",
+                "public class Bad {",
+                "    public java.util.List<String> names;",
+                "}")));
+        assertTrue(errors(), errors().contains("Unsupported @Message field type"));
+    }
+
+    @Test
+    public void rejectsClassesWithoutANoArgConstructor() throws IOException {
+        assertFalse(compile(String.join("\n",
+                "package sample;",
+                "@data.Message",
+                "public class Bad {",
+                "    public int id;",
+                "    public Bad(int id){ this.id = id; }",
+                "}")));
+        assertTrue(errors(), errors().contains("constructor without parameters"));
+    }
+}
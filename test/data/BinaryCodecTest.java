@@ -0,0 +1,115 @@
+
+package data;
+
+import java.io.*;
+import java.util.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jaron
+ */
+public class BinaryCodecTest {
+
+    private final BinaryCodec codec = new BinaryCodec();
+
+    private byte[] encode(Object o) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        codec.writeObject(o, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private Object decode(byte[] bytes) throws IOException {
+        return codec.readObject(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private Object roundTrip(Object o) throws IOException {
+        return decode(encode(o));
+    }
+
+    @Test
+    public void roundTripsEveryTag() throws IOException {
+        Object[] values = { null, true, false, (byte) -3, (short) 1234, 'x', 0, -1,
+                Integer.MIN_VALUE, Integer.MAX_VALUE, 0L, -5L, Long.MIN_VALUE, Long.MAX_VALUE,
+                2.5f, -3.25, "", "h\u00e9llo \u2603" };
+        for (Object value : values){
+            assertEquals(value, roundTrip(value));
+        }
+        assertArrayEquals(new byte[]{ 1, 2, 3 }, (byte[]) roundTrip(new byte[]{ 1, 2, 3 }));
+        assertEquals(new Date(42), roundTrip(new Date(42)));
+    }
+
+    @Test
+    public void roundTripsNestedCollections() throws IOException {
+        Map<Object, Object> map = new HashMap<>();
+        map.put("k", Arrays.asList(1, "two", null));
+        map.put(3L, Collections.singletonMap("inner", true));
+        List<Object> list = Arrays.<Object>asList(map, Collections.emptyList(), new ArrayList<>(Arrays.asList(1L)));
+        assertEquals(list, roundTrip(list));
+    }
+
+    @Test
+    public void smallIntegersTakeFewBytes() throws IOException {
+        assertEquals(2, encode(-1).length);
+        assertEquals(2, encode(63L).length);
+    }
+
+    @Test
+    public void roundTripsMessageBody() throws IOException {
+        Data data = new Data("ID", 1, "two", Arrays.asList(3L));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        codec.writeBody(data, new DataOutputStream(bytes));
+
+        Data read = new Data("ID");
+        codec.readBody(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), read);
+        assertEquals(data, read);
+    }
+
+    @Test(expected = NotSerializableException.class)
+    public void rejectsUnserializableObjects() throws IOException {
+        encode(new Object());
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsUnknownTags() throws IOException {
+        decode(new byte[]{ 99 });
+    }
+
+    @Test(expected = EOFException.class)
+    public void rejectsTruncatedValues() throws IOException {
+        byte[] bytes = encode(123456789L);
+        decode(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsLengthsPastTheEndOfTheMessage() throws IOException {
+        // a string claiming 100 bytes with only 2 behind it
+        decode(new byte[]{ BinaryCodec.TAG_STRING, 100, 'a', 'b' });
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsElementCountsPastTheEndOfTheMessage() throws IOException {
+        // a list claiming 2^28 elements, which would otherwise be allocated up front
+        decode(new byte[]{ BinaryCodec.TAG_LIST, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01 });
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsNegativeLengths() throws IOException {
+        decode(new byte[]{ BinaryCodec.TAG_BYTES, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f });
+    }
+
+    @Test
+    public void limitsNesting() throws IOException {
+        Object nested = "leaf";
+        for (int i = 0; i < BinaryCodec.MAX_DEPTH; i++){
+            nested = Collections.singletonList(nested);
+        }
+        assertNotNull(roundTrip(nested));
+
+        try {
+            roundTrip(Collections.singletonList(nested));
+            fail("Expected nesting past MAX_DEPTH to be rejected");
+        } catch (StreamCorruptedException expected) {  }
+    }
+}
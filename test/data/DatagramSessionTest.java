@@ -0,0 +1,193 @@
+
+package data;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jaron
+ */
+public class DatagramSessionTest {
+
+    private final Codec codec = new BinaryCodec();
+
+    // datagrams sent by each side, delivered by hand so tests can drop and reorder them
+    private final ArrayList<ByteBuffer> fromA = new ArrayList<>();
+    private final ArrayList<ByteBuffer> fromB = new ArrayList<>();
+    private final ArrayList<Data> receivedByA = new ArrayList<>();
+    private final ArrayList<Data> receivedByB = new ArrayList<>();
+
+    private final DatagramSession a = new DatagramSession(42, new DatagramSession.Sink(){
+        @Override
+        public void send(ByteBuffer datagram) {
+            fromA.add(datagram);
+        }
+    });
+    private final DatagramSession b = new DatagramSession(0, new DatagramSession.Sink(){
+        @Override
+        public void send(ByteBuffer datagram) {
+            fromB.add(datagram);
+        }
+    });
+
+    private void send(DatagramSession session, Data data, Delivery delivery) throws IOException {
+        assertTrue(session.send(Wire.encode(data, codec), delivery));
+    }
+
+    private void deliverToB(int index) throws IOException {
+        b.receive(fromA.get(index).duplicate(), codec, null, new DatagramSession.Receiver(){
+            @Override
+            public void receive(Data message) {
+                receivedByB.add(message);
+            }
+        });
+    }
+
+    private void deliverAllToA() throws IOException {
+        for (ByteBuffer datagram : fromB){
+            a.receive(datagram.duplicate(), codec, null, new DatagramSession.Receiver(){
+                @Override
+                public void receive(Data message) {
+                    receivedByA.add(message);
+                }
+            });
+        }
+        fromB.clear();
+    }
+
+    @Test
+    public void acknowledgesReliableMessages() throws IOException {
+        send(a, new Data("MOVE", 1), Delivery.RELIABLE);
+        assertEquals(1, a.getInFlight());
+        deliverToB(0);
+        assertEquals(Arrays.asList(new Data("MOVE", 1)), receivedByB);
+
+        // the ack rides on whatever b sends next
+        send(b, new Data("STATE"), Delivery.UNRELIABLE);
+        deliverAllToA();
+        assertEquals(0, a.getInFlight());
+        assertTrue(a.getRoundTripTime() >= 0);
+        assertEquals(1, receivedByA.size());
+    }
+
+    @Test
+    public void sendsABareAckWhenNothingElseGoesBack() throws IOException, InterruptedException {
+        send(a, new Data("MOVE"), Delivery.RELIABLE);
+        deliverToB(0);
+        Thread.sleep(20);
+        b.tick();
+        assertEquals(1, fromB.size());
+        deliverAllToA();
+        assertEquals(0, a.getInFlight());
+        assertTrue(receivedByA.isEmpty());
+    }
+
+    @Test
+    public void retransmitsLostMessages() throws IOException, InterruptedException {
+        send(a, new Data("MOVE"), Delivery.RELIABLE);
+        a.tick();
+        assertEquals(1, fromA.size());
+
+        // the first transmission is lost, the retransmit timeout starts at 200ms
+        Thread.sleep(250);
+        a.tick();
+        assertEquals(2, fromA.size());
+        assertEquals(1, a.getRetransmitCount());
+        deliverToB(1);
+        assertEquals(1, receivedByB.size());
+
+        // a late copy of the first transmission is a duplicate
+        deliverToB(0);
+        assertEquals(1, receivedByB.size());
+    }
+
+    @Test
+    public void deliversDuplicatesOnce() throws IOException {
+        send(a, new Data("MOVE"), Delivery.RELIABLE);
+        deliverToB(0);
+        deliverToB(0);
+        assertEquals(1, receivedByB.size());
+    }
+
+    @Test
+    public void holdsBackOrderedMessagesUntilTheGapIsFilled() throws IOException {
+        for (int i = 0; i < 3; i++){
+            send(a, new Data("MOVE", i), Delivery.ordered(1));
+        }
+        deliverToB(2);
+        deliverToB(1);
+        assertTrue(receivedByB.isEmpty());
+
+        deliverToB(0);
+        assertEquals(Arrays.asList(new Data("MOVE", 0), new Data("MOVE", 1), new Data("MOVE", 2)), receivedByB);
+    }
+
+    @Test
+    public void orderedChannelsAreIndependent() throws IOException {
+        send(a, new Data("MOVE", 0), Delivery.ordered(1));
+        send(a, new Data("CHAT", 0), Delivery.ordered(2));
+        deliverToB(1);
+        assertEquals(Arrays.asList(new Data("CHAT", 0)), receivedByB);
+    }
+
+    @Test
+    public void deliversUnorderedReliableMessagesStraightAway() throws IOException {
+        for (int i = 0; i < 3; i++){
+            send(a, new Data("MOVE", i), Delivery.RELIABLE);
+        }
+        deliverToB(2);
+        deliverToB(0);
+        deliverToB(2);
+        deliverToB(1);
+        assertEquals(Arrays.asList(new Data("MOVE", 2), new Data("MOVE", 0), new Data("MOVE", 1)), receivedByB);
+    }
+
+    @Test
+    public void dropsStaleUnreliableMessages() throws IOException {
+        send(a, new Data("POSITION", 1), Delivery.UNRELIABLE);
+        send(a, new Data("POSITION", 2), Delivery.UNRELIABLE);
+        send(a, new Data("OTHER"), Delivery.UNRELIABLE);
+        deliverToB(1);
+        deliverToB(0);
+        deliverToB(2);
+        assertEquals(Arrays.asList(new Data("POSITION", 2), new Data("OTHER")), receivedByB);
+        assertEquals(1, b.getDroppedCount());
+    }
+
+    @Test
+    public void limitsMessagesInFlight() throws IOException {
+        byte[] frame = Wire.encode(new Data("MOVE"), codec);
+        for (int i = 0; i < DatagramSession.MAX_IN_FLIGHT; i++){
+            assertTrue(a.send(frame, Delivery.RELIABLE));
+        }
+        assertFalse(a.send(frame, Delivery.RELIABLE));
+        assertTrue(a.send(frame, Delivery.UNRELIABLE));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedDatagrams() throws IOException {
+        send(a, new Data("MOVE"), Delivery.RELIABLE);
+        ByteBuffer datagram = fromA.get(0);
+        datagram.limit(Datagrams.HEADER_SIZE - 1);
+        deliverToB(0);
+    }
+
+    @Test
+    public void closedSessionsNeitherSendNorReceive() throws IOException {
+        send(a, new Data("MOVE"), Delivery.RELIABLE);
+        b.close();
+        assertTrue(b.isClosed());
+        deliverToB(0);
+        assertTrue(receivedByB.isEmpty());
+
+        try {
+            b.send(Wire.encode(new Data("MOVE"), codec), Delivery.RELIABLE);
+            fail("Expected a closed session to refuse sends");
+        } catch (ConnectException expected) {  }
+    }
+}
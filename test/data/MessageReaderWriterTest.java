@@ -0,0 +1,123 @@
+
+package data;
+
+import java.io.*;
+import java.util.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jaron
+ */
+public class MessageReaderWriterTest {
+
+    private final OpcodeTable opcodes = new OpcodeTable(Arrays.asList("PING", "MOVE"));
+
+    // copies the writer's frame out, as it would arrive
+    private static byte[] frame(MessageWriter writer, OpcodeTable peerOpcodes){
+        int start = writer.frame(peerOpcodes);
+        return Arrays.copyOfRange(writer.array(), start, writer.end());
+    }
+
+    private static MessageReader read(byte[] frame, OpcodeTable opcodes) throws IOException {
+        return MessageReader.wrap(frame, Wire.LENGTH_SIZE, frame.length - Wire.LENGTH_SIZE, opcodes);
+    }
+
+    @Test
+    public void roundTripsEveryValue() throws IOException {
+        byte[] bytes = { 1, 2, 3, 4 };
+        MessageWriter writer = MessageWriter.get("MOVE")
+                .putByte(-7).putBoolean(true).putShort(-300).putInt(Integer.MIN_VALUE)
+                .putLong(Long.MAX_VALUE).putFloat(1.5f).putDouble(-2.25)
+                .putVarInt(300).putVarLong(-1L).putString("h\u00e9llo \u2603").putString("")
+                .putBytes(bytes).putBytes(bytes, 1, 2);
+        byte[] frame = frame(writer, opcodes);
+
+        MessageReader reader = read(frame, opcodes);
+        assertEquals("MOVE", reader.id());
+        assertEquals(opcodes.opcode("MOVE"), reader.getOpcode());
+        assertEquals(frame.length, reader.getWireSize());
+        assertEquals(-7, reader.getByte());
+        assertTrue(reader.getBoolean());
+        assertEquals(-300, reader.getShort());
+        assertEquals(Integer.MIN_VALUE, reader.getInt());
+        assertEquals(Long.MAX_VALUE, reader.getLong());
+        assertEquals(1.5f, reader.getFloat(), 0);
+        assertEquals(-2.25, reader.getDouble(), 0);
+        assertEquals(300, reader.getVarInt());
+        assertEquals(-1L, reader.getVarLong());
+        assertEquals("h\u00e9llo \u2603", reader.getString());
+        assertEquals("", reader.getString(new StringBuilder()).toString());
+        assertArrayEquals(bytes, reader.getBytes());
+        byte[] into = new byte[4];
+        assertEquals(2, reader.getBytes(into, 1));
+        assertArrayEquals(new byte[]{ 0, 2, 3, 0 }, into);
+        assertEquals(0, reader.remaining());
+    }
+
+    @Test
+    public void sendsTheIdentifierWithoutAnOpcodeTable() throws IOException {
+        byte[] frame = frame(MessageWriter.get("Unlisted").putInt(5), null);
+        assertTrue(Wire.isRaw(frame, Wire.LENGTH_SIZE));
+
+        MessageReader reader = read(frame, null);
+        assertEquals("Unlisted", reader.id());
+        assertEquals(OpcodeTable.NONE, reader.getOpcode());
+        assertEquals(5, reader.getInt());
+    }
+
+    @Test
+    public void lengthPrefixMatchesTheFrame() throws IOException {
+        byte[] frame = frame(MessageWriter.get("MOVE").putLong(1), opcodes);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        assertEquals(frame.length - Wire.LENGTH_SIZE, in.readInt());
+    }
+
+    @Test
+    public void growsForLargeMessages() throws IOException {
+        MessageWriter writer = MessageWriter.get("MOVE");
+        for (int i = 0; i < 10000; i++){
+            writer.putInt(i);
+        }
+        MessageReader reader = read(frame(writer, opcodes), opcodes);
+        for (int i = 0; i < 10000; i++){
+            assertEquals(i, reader.getInt());
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void refusesToReadPastTheEnd() throws IOException {
+        MessageReader reader = read(frame(MessageWriter.get("MOVE").putShort(1), opcodes), opcodes);
+        reader.getInt();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsLengthsPastTheEnd() throws IOException {
+        // a byte array claiming 1000 bytes with 2 behind it
+        MessageReader reader = read(frame(MessageWriter.get("MOVE").putVarInt(1000).putShort(0), opcodes), opcodes);
+        reader.getBytes();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsNegativeLengths() throws IOException {
+        MessageReader reader = read(frame(MessageWriter.get("MOVE").putVarInt(-1).putLong(0), opcodes), opcodes);
+        reader.getString();
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsUnknownOpcodes() throws IOException {
+        read(frame(MessageWriter.get("MOVE"), opcodes), new OpcodeTable(Arrays.asList("PING")));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsDataFrames() throws IOException {
+        read(Wire.encode(new Data("MOVE", 1), new BinaryCodec(), opcodes), opcodes);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsTruncatedHeaders() throws IOException {
+        byte[] frame = frame(MessageWriter.get("LONG_IDENTIFIER"), null);
+        MessageReader.wrap(frame, Wire.LENGTH_SIZE, 4, null);
+    }
+}
@@ -0,0 +1,81 @@
+
+package data;
+
+import java.util.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jaron
+ */
+public class OpcodeTableTest {
+
+    private final OpcodeTable table = new OpcodeTable(Arrays.asList("PING", "Chat", "MOVE"));
+
+    @Test
+    public void assignsOpcodesInOrderFromOne() {
+        assertEquals(3, table.size());
+        assertEquals(1, table.opcode("PING"));
+        assertEquals(2, table.opcode("Chat"));
+        assertEquals(3, table.opcode("MOVE"));
+        assertEquals("Chat", table.identifier(2));
+    }
+
+    @Test
+    public void matchesIdentifiersCaseInsensitively() {
+        assertEquals(2, table.opcode("CHAT"));
+        assertEquals(2, table.opcode("chat"));
+        assertEquals(3, table.opcode("move"));
+    }
+
+    @Test
+    public void returnsNoneForUnknownIdentifiersAndOpcodes() {
+        assertEquals(OpcodeTable.NONE, table.opcode("JUMP"));
+        assertNull(table.identifier(OpcodeTable.NONE));
+        assertNull(table.identifier(-1));
+        assertNull(table.identifier(4));
+    }
+
+    @Test
+    public void skipsDuplicateIdentifiers() {
+        OpcodeTable duplicated = new OpcodeTable(Arrays.asList("PING", "ping", "CHAT", "PING"));
+        assertEquals(2, duplicated.size());
+        assertEquals(2, duplicated.opcode("chat"));
+    }
+
+    @Test
+    public void peerBuildsTheSameTableFromTheSentIdentifiers() {
+        // what a client does with the server's OPCODES reply, and the server with REGISTER_CLIENT
+        OpcodeTable received = new OpcodeTable(table.identifiers());
+        assertEquals(table, received);
+        assertEquals(table.hashCode(), received.hashCode());
+        for (String id : table.identifiers()){
+            assertEquals(table.opcode(id), received.opcode(id));
+        }
+    }
+
+    @Test
+    public void extendKeepsExistingOpcodes() {
+        OpcodeTable extended = table.extend(Arrays.asList("JUMP", "ping", "FIRE"));
+        assertEquals(5, extended.size());
+        for (String id : table.identifiers()){
+            assertEquals(table.opcode(id), extended.opcode(id));
+        }
+        assertEquals(4, extended.opcode("JUMP"));
+        assertEquals(5, extended.opcode("FIRE"));
+        assertEquals(3, table.size());
+    }
+
+    @Test
+    public void extendWithNothingNewReturnsTheSameTable() {
+        assertSame(table, table.extend(Arrays.asList("CHAT", "move")));
+        assertSame(table, table.extend(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void identifiersAreACopy() {
+        table.identifiers().add("JUMP");
+        assertEquals(3, table.size());
+    }
+}
@@ -0,0 +1,132 @@
+
+package data;
+
+import java.io.IOException;
+import java.util.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jaron
+ */
+public class SnapshotTest {
+
+    private static Snapshot snapshot(long sequence, int[] ids, Object[]... states){
+        return new Snapshot(sequence, sequence * 1000, ids, states);
+    }
+
+    private static void assertSameState(Snapshot expected, Snapshot actual){
+        assertNotNull(actual);
+        assertEquals(expected.getSequence(), actual.getSequence());
+        assertEquals(expected.getTime(), actual.getTime());
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++){
+            assertEquals(expected.getId(i), actual.getId(i));
+            assertArrayEquals(expected.stateAt(i), actual.stateAt(i));
+        }
+    }
+
+    // sends the delta through the codec, as it would go over the network
+    private static Data send(Data delta) throws IOException {
+        Codec codec = new BinaryCodec();
+        byte[] frame = Wire.encode(delta, codec);
+        return Wire.decode(frame, Wire.LENGTH_SIZE, frame.length - Wire.LENGTH_SIZE, codec, null);
+    }
+
+    private final Object[] first = { 1.0f, 2.0f, "idle" };
+    private final Object[] second = { 5.0f, 6.0f, "run" };
+    private final Snapshot base = snapshot(1, new int[]{ 1, 2 }, first, second);
+
+    @Test
+    public void fullStateRebuildsWithoutABase() throws IOException {
+        Data delta = send(base.delta(null));
+        assertEquals(0, Snapshot.baseSequence(delta));
+        assertSameState(base, Snapshot.apply(null, delta));
+    }
+
+    @Test
+    public void deltaOnlyCarriesChangedFields() throws IOException {
+        Snapshot next = snapshot(2, new int[]{ 1, 2 }, first, new Object[]{ 5.0f, 7.0f, "run" });
+        Data delta = next.delta(base);
+        // header, then entity 2 with a mask marking field 1 and the new value
+        assertEquals(Arrays.<Object>asList("SNAPSHOT", 2L, 1L, 2000L, 0, 2, 2L, 7.0f), delta);
+        assertSameState(next, Snapshot.apply(base, send(delta)));
+    }
+
+    @Test
+    public void unchangedSnapshotsSendOnlyTheHeader() throws IOException {
+        Snapshot next = snapshot(2, new int[]{ 1, 2 }, first, second.clone());
+        Data delta = next.delta(base);
+        assertEquals(5, delta.size());
+        assertSameState(next, Snapshot.apply(base, send(delta)));
+    }
+
+    @Test
+    public void removesAndAddsEntities() throws IOException {
+        Object[] third = { 0.0f, 0.0f, "spawn" };
+        Snapshot next = snapshot(2, new int[]{ 2, 3 }, second, third);
+        Snapshot applied = Snapshot.apply(base, send(next.delta(base)));
+        assertSameState(next, applied);
+        assertFalse(applied.contains(1));
+        assertArrayEquals(third, applied.get(3));
+    }
+
+    @Test
+    public void removesEveryEntity() throws IOException {
+        Snapshot next = snapshot(2, new int[0]);
+        assertSameState(next, Snapshot.apply(base, send(next.delta(base))));
+    }
+
+    @Test
+    public void sendsEntitiesThatChangedShapeWhole() throws IOException {
+        Snapshot next = snapshot(2, new int[]{ 1, 2 }, first, new Object[]{ 5.0f, 6.0f });
+        Data delta = next.delta(base);
+        assertEquals(-2 - 1, delta.get(5));
+        assertSameState(next, Snapshot.apply(base, send(delta)));
+    }
+
+    @Test
+    public void sendsEntitiesWithTooManyFieldsForAMaskWhole() throws IOException {
+        Object[] wide = new Object[64];
+        Arrays.fill(wide, 0);
+        Object[] changed = wide.clone();
+        changed[63] = 1;
+        Snapshot before = snapshot(1, new int[]{ 1 }, wide);
+        Snapshot next = snapshot(2, new int[]{ 1 }, changed);
+        Data delta = next.delta(before);
+        assertEquals(-1 - 1, delta.get(5));
+        assertSameState(next, Snapshot.apply(before, send(delta)));
+    }
+
+    @Test
+    public void needsTheSnapshotTheDeltaWasBuiltOn() {
+        Snapshot next = snapshot(2, new int[]{ 1 }, first);
+        Data delta = next.delta(base);
+        assertEquals(1, Snapshot.baseSequence(delta));
+        assertNull(Snapshot.apply(null, delta));
+        assertNull(Snapshot.apply(snapshot(7, new int[]{ 1 }, first), delta));
+    }
+
+    @Test
+    public void chainsDeltas() throws IOException {
+        Snapshot received = Snapshot.apply(null, send(base.delta(null)));
+        Snapshot current = base;
+        Random random = new Random(3);
+        for (long sequence = 2; sequence < 50; sequence++){
+            int count = random.nextInt(6);
+            int[] ids = new int[count];
+            Object[][] states = new Object[count][];
+            for (int i = 0; i < count; i++){
+                ids[i] = i * 2 + random.nextInt(2);
+                Object[] previous = current.state(ids[i]);
+                states[i] = previous != null && random.nextBoolean() ? previous
+                        : new Object[]{ random.nextInt(3), random.nextInt(3) };
+            }
+            Snapshot next = snapshot(sequence, ids, states);
+            received = Snapshot.apply(received, send(next.delta(current)));
+            assertSameState(next, received);
+            current = next;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+
+package data;
+
+import java.io.*;
+import java.util.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jaron
+ */
+public class WireTest {
+
+    private final Codec codec = new BinaryCodec();
+    private final OpcodeTable opcodes = new OpcodeTable(Arrays.asList("PING", "CHAT"));
+
+    private Data decode(byte[] frame, OpcodeTable opcodes) throws IOException {
+        return Wire.decode(frame, Wire.LENGTH_SIZE, frame.length - Wire.LENGTH_SIZE, codec, opcodes);
+    }
+
+    @Test
+    public void roundTripsByIdentifier() throws IOException {
+        Data data = new Data("Chat", "hello", 3);
+        data.sign("client");
+        byte[] frame = Wire.encode(data, codec);
+
+        Data read = decode(frame, null);
+        assertEquals(data, read);
+        assertEquals("client", read.getSenderID());
+        assertEquals(OpcodeTable.NONE, read.getOpcode());
+        assertEquals(frame.length, read.getWireSize());
+    }
+
+    @Test
+    public void roundTripsByOpcode() throws IOException {
+        Data data = new Data("chat", "hello");
+        byte[] frame = Wire.encode(data, codec, opcodes);
+        assertTrue(frame.length < Wire.encode(data, codec).length);
+
+        Data read = decode(frame, opcodes);
+        assertEquals("CHAT", read.id());
+        assertEquals(opcodes.opcode("CHAT"), read.getOpcode());
+        assertEquals("hello", read.get(1));
+    }
+
+    @Test
+    public void carriesRequestAndReplyIDs() throws IOException {
+        Data data = new Data("CHAT");
+        Data request = decode(Wire.encodeRequest(data, 17, codec, opcodes), opcodes);
+        assertEquals(17, request.getRequestID());
+        assertFalse(request.isReply());
+        assertEquals(0, data.getRequestID());
+
+        Data reply = new Data("CHAT");
+        reply.markReply(17);
+        Data read = decode(Wire.encode(reply, codec, opcodes), opcodes);
+        assertEquals(17, read.getRequestID());
+        assertTrue(read.isReply());
+    }
+
+    @Test
+    public void readsLengthPrefixedFrames() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(Wire.encode(new Data("A", 1), codec));
+        stream.write(Wire.encode(new Data("B", 2), codec));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream.toByteArray()));
+
+        assertEquals(new Data("A", 1), Wire.read(in, codec, null));
+        assertEquals(new Data("B", 2), Wire.read(in, codec, null));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsUnknownOpcodes() throws IOException {
+        byte[] frame = Wire.encode(new Data("CHAT"), codec, opcodes);
+        decode(frame, new OpcodeTable(Arrays.asList("PING")));
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsNegativeFrameLengths() throws IOException {
+        Wire.read(new DataInputStream(new ByteArrayInputStream(new byte[]{ (byte) 0xff, 0, 0, 0 })), codec, null);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsOversizedFrameLengths() throws IOException {
+        Wire.checkLength(Wire.MAX_FRAME_SIZE + 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesToEncodeOversizedMessages() throws IOException {
+        Wire.encode(new Data("BIG", new byte[Wire.MAX_FRAME_SIZE]), codec);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedFrames() throws IOException {
+        byte[] frame = Wire.encode(new Data("CHAT", "hello"), codec);
+        Wire.decode(frame, Wire.LENGTH_SIZE, frame.length - Wire.LENGTH_SIZE - 2, codec, null);
+    }
+
+    @Test
+    public void roundTripsVarInts() throws IOException {
+        int[] ints = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1 };
+        long[] longs = { 0, 127, 128, Long.MAX_VALUE, -1 };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int value : ints){
+            Wire.writeVarInt(out, value);
+        }
+        for (long value : longs){
+            Wire.writeVarLong(out, value);
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (int value : ints){
+            assertEquals(value, Wire.readVarInt(in));
+        }
+        for (long value : longs){
+            assertEquals(value, Wire.readVarLong(in));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+
+package server;
+
+import java.util.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jaron
+ */
+public class ClientRegistryTest {
+
+    private final ClientRegistry registry = new ClientRegistry();
+
+    private RemoteClient register(String id, String... tags){
+        DefaultClientDataImpl data = new DefaultClientDataImpl();
+        data.setClientID(id);
+        data.setClientTags(new ArrayList<>(Arrays.asList(tags)));
+        RemoteClient client = new RemoteClient(id, null, data);
+        registry.add(client);
+        return client;
+    }
+
+    private static Set<String> ids(RemoteClient[] clients){
+        Set<String> ids = new HashSet<>();
+        for (RemoteClient client : clients){
+            ids.add(client.getId());
+        }
+        return ids;
+    }
+
+    private static Set<String> set(String... values){
+        return new HashSet<>(Arrays.asList(values));
+    }
+
+    @Test
+    public void looksUpClientsIgnoringCase() {
+        RemoteClient client = register("Alice");
+        assertSame(client, registry.get("alice"));
+        assertSame(client, registry.get("ALICE"));
+        assertNull(registry.get("bob"));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void replacesAClientRegisteredAgain() {
+        RemoteClient first = register("alice", "red");
+        RemoteClient second = register("Alice", "blue");
+        assertNotSame(first, second);
+        assertSame(second, registry.get("alice"));
+        assertEquals(0, registry.countTagged("red"));
+        assertEquals(set("Alice"), ids(registry.withAnyTag(Arrays.asList("blue"))));
+        assertFalse(registry.remove(first));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void answersAnyAndAllTagQueries() {
+        register("a", "red", "big");
+        register("b", "red");
+        register("c", "blue", "big");
+        register("d");
+
+        assertEquals(set("a", "b"), ids(registry.withAnyTag(Arrays.asList("red"))));
+        assertEquals(set("a", "b", "c"), ids(registry.withAnyTag(Arrays.asList("red", "blue"))));
+        assertEquals(set("a"), ids(registry.withAllTags(Arrays.asList("red", "big"))));
+        assertEquals(0, registry.withAllTags(Arrays.asList("red", "green")).length);
+        assertEquals(0, registry.withAnyTag(Arrays.asList("green")).length);
+        assertEquals(2, registry.countTagged("big"));
+    }
+
+    @Test
+    public void keepsTheTagListAndIndexTogether() {
+        RemoteClient client = register("a", "red");
+        assertTrue(registry.addTags(client, Arrays.asList("blue", "red")));
+        assertEquals(Arrays.asList("red", "blue"), client.getClientData().getClientTags());
+        assertEquals(1, registry.countTagged("red"));
+
+        assertTrue(registry.removeTags(client, Arrays.asList("red")));
+        assertEquals(Arrays.asList("blue"), client.getClientData().getClientTags());
+        assertEquals(0, registry.countTagged("red"));
+
+        assertTrue(registry.setTags(client, Arrays.asList("green")));
+        assertEquals(Arrays.asList("green"), client.getClientData().getClientTags());
+        assertEquals(0, registry.countTagged("blue"));
+        assertEquals(set("a"), ids(registry.withAnyTag(Arrays.asList("green"))));
+    }
+
+    @Test
+    public void replacesTheTagListInsteadOfModifyingIt() {
+        RemoteClient client = register("a", "red");
+        ArrayList<String> before = client.getClientData().getClientTags();
+        registry.addTags(client, Arrays.asList("blue"));
+        assertEquals(Arrays.asList("red"), before);
+    }
+
+    @Test
+    public void ignoresTagChangesForUnregisteredClients() {
+        RemoteClient client = register("a", "red");
+        registry.remove(client);
+        assertFalse(registry.addTags(client, Arrays.asList("blue")));
+        assertFalse(registry.setTags(client, Arrays.asList("blue")));
+        assertEquals(0, registry.countTagged("red"));
+        assertEquals(0, registry.countTagged("blue"));
+    }
+
+    @Test
+    public void reusesTagIDsOnceNoClientHasTheTag() {
+        RemoteClient a = register("a", "first");
+        int firstID = a.tagIDs.nextSetBit(0);
+
+        registry.removeTags(a, Arrays.asList("first"));
+        assertTrue(a.tagIDs.isEmpty());
+        RemoteClient b = register("b", "second");
+        assertEquals(firstID, b.tagIDs.nextSetBit(0));
+        assertEquals(0, registry.withAnyTag(Arrays.asList("first")).length);
+        assertEquals(set("b"), ids(registry.withAnyTag(Arrays.asList("second"))));
+    }
+
+    @Test
+    public void freesTagsWhenTheirLastClientLeaves() {
+        for (int i = 0; i < 1000; i++){
+            RemoteClient client = register("c" + i, "tag" + i);
+            assertEquals(0, client.tagIDs.nextSetBit(0));
+            registry.remove(client);
+        }
+        assertEquals(0, registry.size());
+        assertEquals(0, registry.countTagged("tag0"));
+    }
+}
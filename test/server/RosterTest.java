@@ -0,0 +1,143 @@
+
+package server;
+
+import java.util.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jaron
+ */
+public class RosterTest {
+
+    private final Roster roster = new Roster();
+
+    private static IClientData client(String id){
+        DefaultClientDataImpl data = new DefaultClientDataImpl();
+        data.setClientID(id);
+        return data;
+    }
+
+    private static List<String> ids(List<IClientData> clients){
+        List<String> ids = new ArrayList<>();
+        for (IClientData client : clients){
+            ids.add(client.getClientID());
+        }
+        return ids;
+    }
+
+    @Test
+    public void sendsAFullSnapshotWithoutAnAcknowledgedVersion() {
+        roster.put("a", client("a"));
+        roster.put("b", client("b"));
+
+        Roster.Update update = roster.since(0);
+        assertTrue(update.full);
+        assertEquals(2, update.version);
+        assertEquals(0, update.baseVersion);
+        assertEquals(Arrays.asList("a", "b"), ids(update.changed));
+        assertTrue(update.removed.isEmpty());
+    }
+
+    @Test
+    public void sendsOnlyTheChangesSinceTheAcknowledgedVersion() {
+        IClientData a = client("a");
+        roster.put("a", a);
+        roster.put("b", client("b"));
+        long acked = roster.version();
+
+        roster.put("c", client("c"));
+        roster.changed("A");
+        roster.remove("b", roster.since(0).changed.get(1));
+
+        Roster.Update update = roster.since(acked);
+        assertFalse(update.full);
+        assertEquals(acked, update.baseVersion);
+        assertEquals(5, update.version);
+        assertEquals(set("a", "c"), new HashSet<>(ids(update.changed)));
+        assertEquals(Arrays.asList("b"), update.removed);
+    }
+
+    @Test
+    public void upToDateClientsGetAnEmptyUpdate() {
+        roster.put("a", client("a"));
+        Roster.Update update = roster.since(roster.version());
+        assertTrue(update.isEmpty());
+        assertEquals(roster.version(), update.version);
+    }
+
+    @Test
+    public void ignoresRemovalsOfReplacedData() {
+        IClientData old = client("a");
+        roster.put("a", old);
+        roster.put("A", client("A"));
+        long version = roster.version();
+
+        roster.remove("a", old);
+        assertEquals(version, roster.version());
+        assertEquals(1, roster.since(0).changed.size());
+    }
+
+    @Test
+    public void sendsASnapshotToClientsTooFarBehind() {
+        roster.put("keep", client("keep"));
+        long acked = roster.version();
+        for (int i = 0; i <= Roster.MAX_REMOVALS; i++){
+            IClientData data = client("c" + i);
+            roster.put("c" + i, data);
+            roster.remove("c" + i, data);
+        }
+
+        Roster.Update update = roster.since(acked);
+        assertTrue(update.full);
+        assertEquals(Arrays.asList("keep"), ids(update.changed));
+    }
+
+    @Test
+    public void sendsASnapshotForVersionsFromTheFuture() {
+        roster.put("a", client("a"));
+        assertTrue(roster.since(roster.version() + 1).full);
+    }
+
+    @Test
+    public void deltasAppliedInTurnMatchTheRoster() {
+        // mirrors what Client.applyRoster does with each PING
+        Map<String, IClientData> local = new HashMap<>();
+        long acked = 0;
+        Random random = new Random(1);
+        Map<String, IClientData> live = new HashMap<>();
+
+        for (int round = 0; round < 200; round++){
+            String id = "c" + random.nextInt(20);
+            if (live.containsKey(id) && random.nextBoolean()){
+                roster.remove(id, live.remove(id));
+            } else if (live.containsKey(id)){
+                roster.changed(id);
+            } else {
+                IClientData data = client(id);
+                live.put(id, data);
+                roster.put(id, data);
+            }
+
+            if (random.nextInt(3) == 0){
+                Roster.Update update = roster.since(acked);
+                assertTrue(update.full || update.baseVersion == acked);
+                if (update.full)
+                    local.clear();
+                for (String removed : update.removed){
+                    local.remove(removed);
+                }
+                for (IClientData changed : update.changed){
+                    local.put(changed.getClientID(), changed);
+                }
+                acked = update.version;
+                assertEquals(live, local);
+            }
+        }
+    }
+
+    private static Set<String> set(String... values){
+        return new HashSet<>(Arrays.asList(values));
+    }
+}